@@ -31,12 +31,31 @@ public abstract class AbstractMapProcessor implements MapProcessor {
 	public boolean skipRels(){
 		return false;
 	}
+	public boolean skipNodeBlock(Area bounds, long minId, long maxId){
+		return false;
+	}
 
 	public void boundTag(Area bounds){}
 
 	public void processNode(Node n){}
 
 	public void processWay(Way w){}
+
+	/**
+	 * Default implementation: pass each node to {@link #processNode(Node)}.
+	 */
+	public void processNodes(NodeBatch nodes){
+		for (int i = 0; i < nodes.size(); i++)
+			processNode(nodes.createNode(i));
+	}
+
+	/**
+	 * Default implementation: pass each way to {@link #processWay(Way)}.
+	 */
+	public void processWays(WayBatch ways){
+		for (int i = 0; i < ways.size(); i++)
+			processWay(ways.createWay(i));
+	}
 	
 	public void processRelation(Relation r) {}
 
@@ -152,6 +152,16 @@ public class Area {
 				&& lon <= maxLong;
 	}
 
+	/**
+	 * @return true if this area and the other area have at least one point in common
+	 */
+	public boolean intersects(Area area) {
+		return minLat <= area.maxLat
+				&& maxLat >= area.minLat
+				&& minLong <= area.maxLong
+				&& maxLong >= area.minLong;
+	}
+
 	public Area add(Area area) {
 		return new Area(
 						Math.min(minLat, area.minLat),
@@ -14,37 +14,79 @@ package uk.me.parabola.splitter;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 
+/**
+ * Reads the source on a separate thread into a pool of reusable buffers,
+ * so that the I/O overlaps with the decoding of the data.
+ * <p>
+ * The number of buffers that are read ahead and their size start small and
+ * grow each time the consumer has to wait for the reader thread, so that
+ * slow disks and network storage get larger reads and more read-ahead.
+ * <p>
+ * When the source is a FileChannel, {@link #skip(long)} moves the read
+ * position of the reader thread instead of reading the skipped bytes.
+ * The channel is not closed by this stream.
+ */
 public class BackgroundInputStream extends InputStream {
-	private static final int QUEUE_SIZE = 5;
-	private static final int BUFFER_SIZE = 32768;
-	private static final byte[] EOF_MARKER = new byte[0];
-
-	// These variables are accessed from both threads
-	private final BlockingQueue<byte[]> inQueue;
-	private final BlockingQueue<byte[]> recycleQueue;
-	private final int bufferSize;
+	private static final int QUEUE_SIZE = 4;
+	private static final int MAX_QUEUE_SIZE = 16;
+	private static final int BUFFER_SIZE = 65536;
+	private static final int MAX_BUFFER_SIZE = 1 << 20;
+
+	private static class Buffer {
+		final byte[] data;
+		final ByteBuffer wrapped;
+		// the number of valid bytes
+		int len;
+
+		Buffer(int size) {
+			data = new byte[size];
+			wrapped = ByteBuffer.wrap(data);
+		}
+	}
+
+	// one of these is null
 	private final InputStream sourceStream;
-	private volatile boolean closed;
+	private final FileChannel sourceChannel;
 
-	// These variables are only accessed from the reader thread
-	private byte[] currentBuffer;
+	// These variables are accessed from both threads, guarded by lock
+	private final Object lock = new Object();
+	private final ArrayDeque<Buffer> filled = new ArrayDeque<Buffer>();
+	private final ArrayDeque<Buffer> free = new ArrayDeque<Buffer>();
+	private int allocated;
+	private int queueSize;
+	private int bufferSize;
+	// the source position of the next buffer that is read
+	private long readPos;
+	private boolean eof;
+	private boolean closed;
+	private IOException error;
+
+	// These variables are only accessed from the consumer thread
+	private Buffer currentBuffer;
 	private int currentIndex;
 	private Thread loaderThread;
 
 	public BackgroundInputStream(InputStream source) {
-		this(source, QUEUE_SIZE, BUFFER_SIZE);
+		this(source, null);
 	}
 
-	public BackgroundInputStream(InputStream source, int queueSize, int bufferSize)
-	{
-		inQueue = new ArrayBlockingQueue<byte[]>(queueSize);
-		recycleQueue = new ArrayBlockingQueue<byte[]>(queueSize + 1);
-		sourceStream = source;
-		this.bufferSize = bufferSize;
+	/**
+	 * Read a file, starting at the current position of the channel.
+	 */
+	public BackgroundInputStream(FileChannel source) throws IOException {
+		this(null, source);
+		readPos = source.position();
+	}
+
+	private BackgroundInputStream(InputStream sourceStream, FileChannel sourceChannel) {
+		this.sourceStream = sourceStream;
+		this.sourceChannel = sourceChannel;
+		queueSize = QUEUE_SIZE;
+		bufferSize = BUFFER_SIZE;
 	}
 
 	@Override
@@ -52,9 +94,7 @@ public class BackgroundInputStream extends InputStream {
 		if (!ensureBuffer()) {
 			return -1;
 		}
-		int b = currentBuffer[currentIndex++];
-		recycle();
-		return b;
+		return currentBuffer.data[currentIndex++] & 0xff;
 	}
 
 	@Override
@@ -69,95 +109,216 @@ public class BackgroundInputStream extends InputStream {
 			if (!ensureBuffer()) {
 				return count == 0 ? -1 : count;
 			}
-			int remaining = currentBuffer.length - currentIndex;
-			int bytesToCopy = Math.min(remaining, len);
-			System.arraycopy(currentBuffer, currentIndex, b, off, bytesToCopy);
+			int bytesToCopy = Math.min(currentBuffer.len - currentIndex, len);
+			System.arraycopy(currentBuffer.data, currentIndex, b, off, bytesToCopy);
 			count += bytesToCopy;
 			currentIndex += bytesToCopy;
 			off += bytesToCopy;
 			len -= bytesToCopy;
-			recycle();
 		}
 		return count;
 	}
 
-	private boolean ensureBuffer() throws IOException {
-		if (loaderThread == null) {
-			loaderThread = new Thread(new Loader(), "BackgroundInputStream");
-			loaderThread.start();
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (n > 0) {
+			if (currentBuffer != null && currentIndex < currentBuffer.len) {
+				int k = (int) Math.min(n, currentBuffer.len - currentIndex);
+				currentIndex += k;
+				skipped += k;
+				n -= k;
+			} else if (sourceChannel != null && seek(n)) {
+				skipped += n;
+				n = 0;
+			} else if (!ensureBuffer())
+				break;
 		}
-		if (currentBuffer == null) {
-			try {
-				currentBuffer = inQueue.take();
-			} catch (InterruptedException e) {
-				throw new IOException("Failed to take a buffer from the queue", e);
+		return skipped;
+	}
+
+	/**
+	 * Let the reader thread continue n bytes after the data that was
+	 * already read.
+	 * @return false if there is read-ahead data that must be skipped first
+	 * or the new position would be behind the end of the file
+	 */
+	private boolean seek(long n) throws IOException {
+		synchronized (lock) {
+			if (!filled.isEmpty() || readPos + n > sourceChannel.size())
+				return false;
+			recycle();
+			readPos += n;
+			eof = false;
+			startLoader();
+			lock.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * Make sure that currentBuffer contains unread data.
+	 * @return false at the end of the source
+	 */
+	private boolean ensureBuffer() throws IOException {
+		if (currentBuffer != null && currentIndex < currentBuffer.len)
+			return true;
+		synchronized (lock) {
+			recycle();
+			startLoader();
+			if (filled.isEmpty() && !eof && error == null) {
+				// the consumer is faster than the source, read more ahead
+				if (queueSize < MAX_QUEUE_SIZE)
+					queueSize++;
+				if (bufferSize < MAX_BUFFER_SIZE)
+					bufferSize *= 2;
+				lock.notifyAll();
+				while (filled.isEmpty() && !eof && error == null) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while waiting for data", e);
+					}
+				}
+			}
+			if (!filled.isEmpty()) {
+				currentBuffer = filled.poll();
+				currentIndex = 0;
+				return true;
 			}
-			currentIndex = 0;
+			if (error != null)
+				throw new IOException("Unable to read from source", error);
+			return false;
 		}
-		return currentBuffer != EOF_MARKER;
 	}
 
+	/**
+	 * Return the current buffer to the pool, must be called with the lock held.
+	 */
 	private void recycle() {
-		if (currentIndex == currentBuffer.length) {
-			if (currentIndex == bufferSize) {
-				recycleQueue.offer(currentBuffer);
-			}
+		if (currentBuffer != null) {
+			free.add(currentBuffer);
 			currentBuffer = null;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Must be called with the lock held.
+	 */
+	private void startLoader() {
+		if (loaderThread == null) {
+			loaderThread = new Thread(new Loader(), "BackgroundInputStream");
+			loaderThread.setDaemon(true);
+			loaderThread.start();
 		}
 	}
 
 	@Override
 	public int available() throws IOException {
-		return currentBuffer == null ? 0 : currentBuffer.length;
+		return currentBuffer == null ? 0 : currentBuffer.len - currentIndex;
 	}
 
 	@Override
 	public void close() throws IOException {
-		closed = true;
-		inQueue.clear();
-		recycleQueue.clear();
-		currentBuffer = null;
+		synchronized (lock) {
+			closed = true;
+			filled.clear();
+			free.clear();
+			currentBuffer = null;
+			lock.notifyAll();
+			if (loaderThread == null && sourceStream != null)
+				sourceStream.close();
+		}
 	}
 
 	private class Loader implements Runnable {
 		@Override
 		public void run() {
-			{
-				int bytesRead = 0;
-				while (!closed) {
-					byte[] buffer = recycleQueue.poll();
-					if (buffer == null) {
-						buffer = new byte[bufferSize];
-					}
-					int offset = 0;
-					try {
-						while ((offset < bufferSize) && ((bytesRead = sourceStream.read(buffer, offset, bufferSize - offset)) != -1)) {
-							offset += bytesRead;
+			try {
+				while (true) {
+					Buffer buffer;
+					long pos;
+					synchronized (lock) {
+						while (!closed && (eof || filled.size() >= queueSize || (free.isEmpty() && allocated >= queueSize)))
+							lock.wait();
+						if (closed)
+							return;
+						buffer = free.poll();
+						if (buffer != null && buffer.data.length != bufferSize) {
+							// the buffer size was increased
+							buffer = null;
+							allocated--;
 						}
-					} catch (IOException e) {
-						throw new RuntimeException("Unable to read from stream", e);
-					}
-					if (offset < bufferSize) {
-						buffer = Arrays.copyOf(buffer, offset);
-					}
-					try {
-						inQueue.put(buffer);
-						if (bytesRead == -1) {
-							inQueue.put(EOF_MARKER);
-							closed = true;
+						if (buffer == null) {
+							buffer = new Buffer(bufferSize);
+							allocated++;
 						}
-					} catch (InterruptedException e) {
-						throw new RuntimeException("Unable to put data onto queue", e);
+						pos = readPos;
 					}
-					if (closed) {
-						try {
-							sourceStream.close();
-						} catch (IOException e) {
-							throw new RuntimeException("Unable to close source stream", e);
+					int len = (sourceChannel != null) ? readChannel(buffer, pos) : readStream(buffer);
+					synchronized (lock) {
+						if (closed)
+							return;
+						if (pos != readPos) {
+							// the consumer skipped while we were reading
+							free.add(buffer);
+							continue;
 						}
+						buffer.len = len;
+						if (len > 0) {
+							filled.add(buffer);
+							readPos += len;
+						} else
+							free.add(buffer);
+						if (len < buffer.data.length)
+							eof = true;
+						lock.notifyAll();
+						// a stream can't be repositioned, we are done
+						if (eof && sourceStream != null)
+							return;
 					}
 				}
+			} catch (IOException e) {
+				synchronized (lock) {
+					error = e;
+					lock.notifyAll();
+				}
+			} catch (InterruptedException e) {
+				synchronized (lock) {
+					error = new IOException("Reader thread was interrupted", e);
+					lock.notifyAll();
+				}
+			} finally {
+				if (sourceStream != null) {
+					try {
+						sourceStream.close();
+					} catch (IOException e) {
+						// ignore, all data was read
+					}
+				}
+			}
+		}
+
+		private int readStream(Buffer buffer) throws IOException {
+			int len = 0;
+			while (len < buffer.data.length) {
+				int n = sourceStream.read(buffer.data, len, buffer.data.length - len);
+				if (n < 0)
+					break;
+				len += n;
+			}
+			return len;
+		}
+
+		private int readChannel(Buffer buffer, long pos) throws IOException {
+			ByteBuffer bb = buffer.wrapped;
+			bb.clear();
+			while (bb.hasRemaining()) {
+				if (sourceChannel.read(bb, pos + bb.position()) < 0)
+					break;
 			}
+			return bb.position();
 		}
 	}
 }
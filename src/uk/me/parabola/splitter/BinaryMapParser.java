@@ -1,246 +1,915 @@
 package uk.me.parabola.splitter;
 
-import crosby.binary.BinaryParser;
-import crosby.binary.Osmformat;
-import crosby.binary.file.FileBlockPosition;
-
-
-import it.unimi.dsi.fastutil.shorts.ShortArrayList;
-
-import java.util.List;
-
-public class BinaryMapParser extends BinaryParser {
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for the pbf format. The blobs are read on the calling thread,
+ * inflating and decoding is done by a pool of threads. The decoded blocks
+ * are passed to the processor in the original file order.
+ */
+public class BinaryMapParser {
 	// How many elements to process before displaying a status update
 	private static final int NODE_STATUS_UPDATE_THRESHOLD = 10000000;
 	private static final int WAY_STATUS_UPDATE_THRESHOLD = 1000000;
 	private static final int RELATION_STATUS_UPDATE_THRESHOLD = 100000;
-	private static final short TYPE_DENSE = 0x1; 
-	private static final short TYPE_NODES = 0x2; 
-	private static final short TYPE_WAYS = 0x4; 
-	private static final short TYPE_RELS = 0x8; 
-	private final ShortArrayList blockTypes = new ShortArrayList();
-	private final ShortArrayList knownBlockTypes;
-	
-	private short blockType = -1;
-	private int blockCount = -1;
+	// limits given by the pbf format description
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+	private static final int MAX_BODY_SIZE = 32 * 1024 * 1024;
+	// the index that is collected while the file is read or null
+	private final FileIndex index;
+	private final FileIndex knownIndex;
+
 	private long nodeCount;
 	private long wayCount;
-	private long relationCount;	
-	private boolean skipTags;
-	private boolean skipNodes;
-	private boolean skipWays;
-	private boolean skipRels;
-	private boolean isStartNodeOnly;
+	private long relationCount;
+	private final boolean skipTags;
+	private final boolean skipNodes;
+	private final boolean skipWays;
+	private final boolean skipRels;
+	private final boolean isStartNodeOnly;
 	short wantedTypeMask = 0;
-	
-	BinaryMapParser(MapProcessor processor, ShortArrayList knownBlockTypes) {
+	private final MapProcessor processor;
+	private final int numThreads;
+	// batches that were passed to the processor and can be reused by the decoders
+	private final ConcurrentLinkedQueue<NodeBatch> freeNodeBatches = new ConcurrentLinkedQueue<NodeBatch>();
+	private final ConcurrentLinkedQueue<WayBatch> freeWayBatches = new ConcurrentLinkedQueue<WayBatch>();
+	// decoders that are not in use, each keeps its buffers for the next blob
+	private final ConcurrentLinkedQueue<BlockDecoder> freeDecoders = new ConcurrentLinkedQueue<BlockDecoder>();
+	private final byte[] headerBuf = new byte[MAX_HEADER_SIZE];
+	private final WireReader headerReader = new WireReader();
+
+	/**
+	 * @param processor the processor that receives the decoded elements
+	 * @param knownIndex the index that was returned by {@link #getIndex()} 
+	 * in a previous pass or null
+	 * @param numThreads number of threads used to decode the blobs
+	 */
+	BinaryMapParser(MapProcessor processor, FileIndex knownIndex, int numThreads) {
 		this.processor = processor;
-		this.knownBlockTypes = knownBlockTypes;
+		this.knownIndex = knownIndex;
+		this.index = (knownIndex == null) ? new FileIndex(FileIndex.FORMAT_PBF) : null;
+		this.numThreads = Math.max(1, numThreads);
 		this.skipTags = processor.skipTags();
 		this.skipNodes = processor.skipNodes();
 		this.skipWays = processor.skipWays();
 		this.skipRels = processor.skipRels();
 		this.isStartNodeOnly = processor.isStartNodeOnly();
-		
+
 		if (skipNodes == false){
-			wantedTypeMask |= TYPE_DENSE;
-			wantedTypeMask |= TYPE_NODES;
+			wantedTypeMask |= FileIndex.TYPE_DENSE;
+			wantedTypeMask |= FileIndex.TYPE_NODES;
 		}
 		if (skipWays == false)
-			wantedTypeMask |= TYPE_WAYS;
+			wantedTypeMask |= FileIndex.TYPE_WAYS;
 		if (skipRels == false)
-			wantedTypeMask |= TYPE_RELS;
+			wantedTypeMask |= FileIndex.TYPE_RELS;
 	}
-	MapProcessor processor;
 
-	public ShortArrayList getBlockList(){
-		return blockTypes;
-	}
-	
-	@Override
-    public boolean skipBlock(FileBlockPosition block) {
-		blockCount++;
-		if (knownBlockTypes != null){
-			blockType = knownBlockTypes.get(blockCount);
-			if (blockType != 0 && (blockType & wantedTypeMask) == 0)
-				return true;
-		}
-		else if (blockType != -1){
-			//System.out.println("previous block contained " + blockType );
-			blockTypes.add(blockType);
-		}
-		blockType = 0;
-        // System.out.println("Seeing block of type: "+block.getType());
-        if (block.getType().equals("OSMData"))
-            return false;
-        if (block.getType().equals("OSMHeader"))
-            return false;
-        System.out.println("Skipped block of type: " + block.getType());
-        return true;
-    }
-	
-	@Override
-	public void complete() {
-		blockTypes.add(blockType);
-		// End of map is sent when all input files are processed.
-		// So do nothing.
+	/**
+	 * @return the index of the blocks that was collected while reading the 
+	 * file or null if the parser was created with a known index
+	 */
+	public FileIndex getIndex(){
+		return index;
 	}
 
-	// Per-block state for parsing, set when processing the header of a block;
-	@Override
-	protected void parseDense(Osmformat.DenseNodes nodes) {
-		blockType |= TYPE_DENSE;
-		if (skipNodes)
-			return;
-		long last_id = 0, last_lat = 0, last_lon = 0;
-		int j = 0;
-		int maxi = nodes.getIdCount();
-		Node tmp = new Node();
-		for (int i=0 ; i < maxi; i++) {
-			long lat = nodes.getLat(i)+last_lat; last_lat = lat;
-			long lon = nodes.getLon(i)+last_lon; last_lon = lon;
-			long id =  nodes.getId(i)+last_id; last_id = id;
-			double latf = parseLat(lat), lonf = parseLon(lon);
-
-			if (!isStartNodeOnly) 
-				tmp = new Node();
-			tmp.set(id, latf, lonf);
-
-			if (!isStartNodeOnly && !skipTags) {
-				if (nodes.getKeysValsCount() > 0) {
-					while (nodes.getKeysVals(j) != 0) {
-						int keyid = nodes.getKeysVals(j++);
-						int valid = nodes.getKeysVals(j++);
-						tmp.addTag(getStringById(keyid),getStringById(valid));
+	/**
+	 * Read the pbf stream and pass all wanted elements to the processor.
+	 * @param stream the input stream
+	 * @throws IOException
+	 */
+	public void parse(InputStream stream) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		// blocks that are decoded or waiting to be decoded, in file order
+		ArrayDeque<Future<DecodedBlock>> pending = new ArrayDeque<Future<DecodedBlock>>();
+		final int maxPending = 2 * numThreads + 1;
+		long filePos = 0;
+		int blockCount = 0;
+		EOFException readError = null;
+		try {
+			try {
+				while (true){
+					if (knownIndex != null){
+						// skip all blocks that are not needed 
+						int firstBlock = blockCount;
+						while (blockCount < knownIndex.size() && isUnwanted(blockCount))
+							blockCount++;
+						if (blockCount >= knownIndex.size())
+							break;
+						if (blockCount > firstBlock){
+							long offset = knownIndex.getOffset(blockCount);
+							skipFully(input, offset - filePos);
+							filePos = offset;
+						}
 					}
-					j++; // Skip over the '0' delimiter.
-
+					long blockPos = filePos;
+					blockCount++;
+					int headerSize;
+					try {
+						headerSize = input.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+						throw new IOException("Unexpectedly long header " + headerSize + " bytes. Possibly corrupt file.");
+					input.readFully(headerBuf, 0, headerSize);
+					String type = null;
+					int dataSize = -1;
+					headerReader.init(headerBuf, 0);
+					while (headerReader.pos < headerSize){
+						int key = headerReader.readKey();
+						if (WireReader.field(key) == 1)
+							type = headerReader.readString();
+						else if (WireReader.field(key) == 3)
+							dataSize = headerReader.readVarint32();
+						else 
+							headerReader.skip(WireReader.wireType(key));
+					}
+					if (type == null)
+						throw new IOException("Missing blob type in header. Possibly corrupt file.");
+					if (dataSize < 0 || dataSize > MAX_BODY_SIZE)
+						throw new IOException("Unexpectedly long body " + dataSize + " bytes. Possibly corrupt file.");
+					filePos += 4 + headerSize + dataSize;
+					if (isUnknownType(type)){
+						skipFully(input, dataSize);
+						if (index != null){
+							// keep the index in file order
+							while (!pending.isEmpty())
+								deliver(pending.poll());
+							index.addBlock(blockPos, (short) 0, 0, 0, null);
+						}
+						continue;
+					}
+					byte[] blob = new byte[dataSize];
+					input.readFully(blob);
+					if (pending.size() >= maxPending)
+						deliver(pending.poll());
+					pending.add(pool.submit(new DecodeTask(type, blob, blockPos)));
 				}
+			} catch (EOFException e) {
+				// the file is truncated, the blocks that were read completely
+				// are still delivered before the error is reported
+				readError = e;
+			}
+			while (!pending.isEmpty())
+				deliver(pending.poll());
+			if (readError != null)
+				throw readError;
+		} finally {
+			pool.shutdownNow();
+			// after an error, tasks may still be running. They end after 
+			// the current blob and return their decoders to freeDecoders
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-			processor.processNode(tmp);
-			CountNode(tmp.getId());
+			BlockDecoder decoder;
+			while ((decoder = freeDecoders.poll()) != null)
+				decoder.close();
+		}
+	}
+
+	/**
+	 * @return true if the index says that the block contains only elements 
+	 * that are not needed. Blocks with nodes are also not needed when the
+	 * processor doesn't want nodes in that area.
+	 * Must be called in file order.
+	 */
+	private boolean isUnwanted(int block) {
+		short blockType = knownIndex.getType(block);
+		if (blockType == 0)
+			return false;
+		short wantedTypes = (short) (blockType & wantedTypeMask);
+		if (wantedTypes == 0)
+			return true;
+		if ((wantedTypes & ~FileIndex.TYPE_ANY_NODES) != 0)
+			return false;
+		Area bounds = knownIndex.getBounds(block);
+		return bounds != null && processor.skipNodeBlock(bounds, knownIndex.getMinId(block), knownIndex.getMaxId(block));
+	}
+
+	private static boolean isUnknownType(String type) {
+		if (type.equals("OSMData"))
+			return false;
+		if (type.equals("OSMHeader"))
+			return false;
+		System.out.println("Skipped block of type: " + type);
+		return true;
+	}
+
+	private static void skipFully(DataInputStream input, long len) throws IOException{
+		while (len > 0){
+			int skipped = input.skipBytes((int) Math.min(len, Integer.MAX_VALUE));
+			if (skipped <= 0)
+				throw new EOFException();
+			len -= skipped;
 		}
 	}
 
-	@Override
-	protected void parseNodes(List<Osmformat.Node> nodes) {
-		if (nodes.size() == 0) 
-			return;
-		blockType |= TYPE_NODES;
-		if (skipNodes) 
-			return;
-		for (Osmformat.Node i : nodes) {
-			Node tmp = new Node();
-			for (int j=0 ; j < i.getKeysCount(); j++)
-				tmp.addTag(getStringById(i.getKeys(j)),getStringById(i.getVals(j)));
-			long id = i.getId();
-			double latf = parseLat(i.getLat()), lonf = parseLon(i.getLon());
-
-			tmp.set(id, latf, lonf);
-
-			processor.processNode(tmp);
-			CountNode(tmp.getId());
+	/**
+	 * Wait for the decoder of the next block and pass the result
+	 * to the processor.
+	 */
+	private void deliver(Future<DecodedBlock> future) throws IOException {
+		DecodedBlock block;
+		try {
+			block = future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		if (index != null){
+			Area nodeBounds = null;
+			if (block.minLat <= block.maxLat)
+				nodeBounds = new Area(Utils.fixedToMapUnit(block.minLat), Utils.fixedToMapUnit(block.minLon),
+						Utils.fixedToMapUnit(block.maxLat), Utils.fixedToMapUnit(block.maxLon));
+			if (block.minId > block.maxId)
+				index.addBlock(block.offset, block.blockType, 0, 0, nodeBounds);
+			else 
+				index.addBlock(block.offset, block.blockType, block.minId, block.maxId, nodeBounds);
 		}
+		if (block.bounds != null)
+			processor.boundTag(block.bounds);
+		for (Object part : block.parts){
+			if (part instanceof NodeBatch){
+				NodeBatch nodes = (NodeBatch) part;
+				processor.processNodes(nodes);
+				countNodes(nodes);
+				nodes.clear();
+				freeNodeBatches.add(nodes);
+			} else if (part instanceof WayBatch){
+				WayBatch ways = (WayBatch) part;
+				processor.processWays(ways);
+				countWays(ways);
+				ways.clear();
+				freeWayBatches.add(ways);
+			} else {
+				Relation rel = (Relation) part;
+				processor.processRelation(rel);
+				countRelation(rel.getId());
+			}
+		}
+	}
+
+	/**
+	 * The result of decoding one blob.
+	 */
+	private static class DecodedBlock {
+		long offset;
+		short blockType;
+		long minId = Long.MAX_VALUE;
+		long maxId = Long.MIN_VALUE;
+		// bounding box of the nodes in units of 0.0000001 degrees
+		int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+		Area bounds;
+		// the primitive groups: a NodeBatch, a WayBatch, or single relations 
+		final ArrayList<Object> parts = new ArrayList<Object>();
 	}
 
+	/**
+	 * Decodes a single blob with one of the reusable decoders.
+	 */
+	private class DecodeTask implements Callable<DecodedBlock> {
+		private final String type;
+		private final byte[] blob;
+		private final long offset;
+
+		DecodeTask(String type, byte[] blob, long offset){
+			this.type = type;
+			this.blob = blob;
+			this.offset = offset;
+		}
 
-	@Override
-	protected void parseWays(List<Osmformat.Way> ways) {
-		long numways = ways.size();
-		if (numways == 0) 
-			return;
-		blockType |= TYPE_WAYS;
-		if (skipWays) 
-			return;
-		for (Osmformat.Way i : ways) {
-			Way tmp = new Way();
-			if (skipTags == false){
-				for (int j=0 ; j < i.getKeysCount(); j++)
-					tmp.addTag(getStringById(i.getKeys(j)),getStringById(i.getVals(j)));
+		@Override
+		public DecodedBlock call() throws IOException {
+			BlockDecoder decoder = freeDecoders.poll();
+			if (decoder == null)
+				decoder = new BlockDecoder();
+			try {
+				return decoder.decode(type, blob, offset);
+			} finally {
+				freeDecoders.add(decoder);
 			}
-			long last_id=0;
-			for (long j : i.getRefsList()) {
-				tmp.addRef(j+last_id);
-				last_id = j+last_id;
+		}
+	}
+
+	/**
+	 * Inflates and decodes blobs. The protobuf wire format is read directly
+	 * from the inflated data, so no protobuf objects are created, and
+	 * strings of the string table are only decoded when a tag or role
+	 * needs them. A decoder is used by one thread at a time and keeps its
+	 * buffers for the next blob.
+	 */
+	private class BlockDecoder {
+		private static final int UNRESOLVED = -2;
+		private final WireReader in = new WireReader();
+		private final Inflater inflater = new Inflater();
+		private byte[] data = new byte[64 * 1024];
+		// the inflated block, either in data or in the raw blob
+		private byte[] buf;
+		private int bufStart, bufEnd;
+		private DecodedBlock result;
+		// the string table: position and length of each string in buf, the decoded 
+		// strings and their ids in the TagDictionary
+		private int[] stringPos = new int[1024];
+		private int[] stringLen = new int[1024];
+		private String[] strings = new String[1024];
+		private int[] keyIds = new int[1024];
+		private int[] valueIds = new int[1024];
+		private int numStrings;
+		private int granularity;
+		private long latOffset, lonOffset;
+		// start and end position of each primitive group
+		private final IntArrayList groups = new IntArrayList();
+		// the repeated fields of the current element
+		private final LongArrayList ids = new LongArrayList();
+		private final LongArrayList lats = new LongArrayList();
+		private final LongArrayList lons = new LongArrayList();
+		private final LongArrayList refs = new LongArrayList();
+		private final IntArrayList keys = new IntArrayList();
+		private final IntArrayList vals = new IntArrayList();
+		private final IntArrayList roles = new IntArrayList();
+		private final IntArrayList types = new IntArrayList();
+
+		DecodedBlock decode(String type, byte[] blob, long offset) throws IOException {
+			result = new DecodedBlock();
+			result.offset = offset;
+			try {
+				inflate(blob);
+				if (type.equals("OSMHeader"))
+					parseHeader();
+				else
+					parsePrimitiveBlock();
+				return result;
+			} finally {
+				result = null;
+				buf = null;
 			}
+		}
 
-			long id = i.getId();
-			tmp.set(id);
+		void close() {
+			inflater.end();
+		}
 
-			processor.processWay(tmp);
-			countWay(i.getId());
+		private void inflate(byte[] blob) throws IOException {
+			int rawStart = -1, rawEnd = 0, zlibStart = -1, zlibEnd = 0;
+			int rawSize = -1;
+			in.init(blob, 0);
+			while (in.pos < blob.length){
+				int key = in.readKey();
+				switch (WireReader.field(key)){
+				case 1:
+					rawEnd = in.readLength();
+					rawStart = in.pos;
+					in.pos = rawEnd;
+					break;
+				case 2:
+					rawSize = in.readVarint32();
+					break;
+				case 3:
+					zlibEnd = in.readLength();
+					zlibStart = in.pos;
+					in.pos = zlibEnd;
+					break;
+				default:
+					in.skip(WireReader.wireType(key));
+				}
+			}
+			if (rawStart >= 0){
+				buf = blob;
+				bufStart = rawStart;
+				bufEnd = rawEnd;
+				return;
+			}
+			if (zlibStart < 0 || rawSize < 0)
+				throw new IOException("Unsupported blob compression in pbf file");
+			if (data.length < rawSize)
+				data = new byte[Math.max(rawSize, data.length * 2)];
+			inflater.reset();
+			try {
+				inflater.setInput(blob, zlibStart, zlibEnd - zlibStart);
+				inflater.inflate(data, 0, rawSize);
+				if (!inflater.finished())
+					throw new IOException("Blob in pbf file is larger than the given raw size");
+			} catch (DataFormatException e) {
+				throw new IOException("Failed to inflate blob in pbf file: " + e.getMessage());
+			}
+			buf = data;
+			bufStart = 0;
+			bufEnd = rawSize;
 		}
-	}
 
+		/** Convert a latitude value stored in a protobuf into units of 0.0000001 degrees */
+		private int fixedLat(long val) {
+			return nanoToFixed(granularity * val + latOffset);
+		}
 
+		/** Convert a longitude value stored in a protobuf into units of 0.0000001 degrees */
+		private int fixedLon(long val) {
+			return nanoToFixed(granularity * val + lonOffset);
+		}
 
-	@Override
-	protected void parseRelations(List<Osmformat.Relation> rels) {
-		if (rels.size() == 0) 
-			return;
-		blockType |= TYPE_RELS;
-		if (skipRels)
-			return;
-		for (Osmformat.Relation i : rels) {
-			Relation tmp = new Relation();
-			if (skipTags == false){
-				for (int j=0 ; j < i.getKeysCount(); j++)
-					tmp.addTag(getStringById(i.getKeys(j)),getStringById(i.getVals(j)));
+		/**
+		 * Add a tag to the last element of the batch. The strings are
+		 * resolved with the TagDictionary only once per block.
+		 */
+		private void addTag(ElementBatch batch, int key, int val) throws IOException {
+			int keyId = getKeyId(key);
+			if (TagDictionary.isKeyDropped(keyId))
+				return;
+			batch.addTag(keyId, getValueId(val), getString(val));
+		}
+
+		/**
+		 * @return the TagDictionary id of a key or role 
+		 */
+		private int getKeyId(int s) throws IOException {
+			String str = getString(s);
+			if (keyIds[s] == UNRESOLVED)
+				keyIds[s] = TagDictionary.getKeyId(str);
+			return keyIds[s];
+		}
+
+		/**
+		 * @return the TagDictionary id of a value or {@link TagDictionary#NO_ID}
+		 */
+		private int getValueId(int s) throws IOException {
+			String str = getString(s);
+			if (valueIds[s] == UNRESOLVED)
+				valueIds[s] = TagDictionary.getValueId(str);
+			return valueIds[s];
+		}
+
+		private String getString(int id) throws IOException {
+			if (id < 0 || id >= numStrings)
+				throw new IOException("Invalid string index " + id + " in pbf file");
+			String s = strings[id];
+			if (s == null){
+				s = new String(buf, stringPos[id], stringLen[id], WireReader.UTF8);
+				strings[id] = s;
 			}
-			long id = i.getId();
-			tmp.set(id);
-
-			long last_mid=0;
-			for (int j =0; j < i.getMemidsCount() ; j++) {
-				long mid = last_mid + i.getMemids(j);
-				last_mid = mid;
-				String role = getStringById(i.getRolesSid(j));
-				String etype=null;
-
-				if (i.getTypes(j) == Osmformat.Relation.MemberType.NODE)
-					etype = "node";
-				else if (i.getTypes(j) == Osmformat.Relation.MemberType.WAY)
-					etype = "way";
-				else if (i.getTypes(j) == Osmformat.Relation.MemberType.RELATION)
-					etype = "relation";
-				else
-					assert false; // TODO; Illegal file?
+			return s;
+		}
 
-				tmp.addMember(etype,mid,role);
+		private void parsePrimitiveBlock() throws IOException {
+			granularity = 100;
+			latOffset = 0;
+			lonOffset = 0;
+			numStrings = 0;
+			groups.clear();
+			// the offsets follow the groups, so the groups are decoded later
+			in.init(buf, bufStart);
+			while (in.pos < bufEnd){
+				int key = in.readKey();
+				switch (WireReader.field(key)){
+				case 1:
+					parseStringTable(in.readLength());
+					break;
+				case 2:
+					int end = in.readLength();
+					groups.add(in.pos);
+					groups.add(end);
+					in.pos = end;
+					break;
+				case 17:
+					granularity = in.readVarint32();
+					break;
+				case 19:
+					latOffset = in.readVarint();
+					break;
+				case 20:
+					lonOffset = in.readVarint();
+					break;
+				default:
+					in.skip(WireReader.wireType(key));
+				}
+			}
+			for (int i = 0; i < groups.size(); i += 2){
+				int start = groups.getInt(i);
+				int end = groups.getInt(i + 1);
+				parseNodes(start, end);
+				parseWays(start, end);
+				parseRelations(start, end);
+				parseDense(start, end);
+			}
+		}
+
+		private void parseStringTable(int end) throws IOException {
+			while (in.pos < end){
+				int key = in.readKey();
+				if (WireReader.field(key) != 1){
+					in.skip(WireReader.wireType(key));
+					continue;
+				}
+				int stringEnd = in.readLength();
+				if (numStrings == strings.length){
+					stringPos = Arrays.copyOf(stringPos, numStrings * 2);
+					stringLen = Arrays.copyOf(stringLen, numStrings * 2);
+					strings = new String[numStrings * 2];
+					keyIds = Arrays.copyOf(keyIds, numStrings * 2);
+					valueIds = Arrays.copyOf(valueIds, numStrings * 2);
+				}
+				stringPos[numStrings] = in.pos;
+				stringLen[numStrings] = stringEnd - in.pos;
+				strings[numStrings] = null;
+				keyIds[numStrings] = UNRESOLVED;
+				valueIds[numStrings] = UNRESOLVED;
+				numStrings++;
+				in.pos = stringEnd;
+			}
+		}
+
+		/**
+		 * Read a packed or unpacked list of string ids, or skip it if
+		 * the strings are not needed.
+		 */
+		private void readStringIds(int key, IntArrayList list, boolean wanted) throws IOException {
+			if (wanted)
+				in.readInts(WireReader.wireType(key), list);
+			else 
+				in.skip(WireReader.wireType(key));
+		}
+
+		private void parseDense(int start, int end) throws IOException {
+			boolean wantTags = !skipNodes && !isStartNodeOnly && !skipTags;
+			in.init(buf, start);
+			while (in.pos < end){
+				int key = in.readKey();
+				if (WireReader.field(key) != 2){
+					in.skip(WireReader.wireType(key));
+					continue;
+				}
+				int denseEnd = in.readLength();
+				result.blockType |= FileIndex.TYPE_DENSE;
+				ids.clear();
+				lats.clear();
+				lons.clear();
+				keys.clear();
+				while (in.pos < denseEnd){
+					key = in.readKey();
+					switch (WireReader.field(key)){
+					case 1:
+						in.readSInt64s(WireReader.wireType(key), ids);
+						break;
+					case 8:
+						in.readSInt64s(WireReader.wireType(key), lats);
+						break;
+					case 9:
+						in.readSInt64s(WireReader.wireType(key), lons);
+						break;
+					case 10:
+						readStringIds(key, keys, wantTags);
+						break;
+					default:
+						in.skip(WireReader.wireType(key));
+					}
+				}
+				NodeBatch batch = skipNodes ? null : getNodeBatch();
+				long id = 0, lat = 0, lon = 0;
+				int j = 0;
+				for (int i = 0; i < ids.size(); i++){
+					id += ids.getLong(i);
+					lat += lats.getLong(i);
+					lon += lons.getLong(i);
+					int fixedLat = fixedLat(lat), fixedLon = fixedLon(lon);
+					noteId(id);
+					noteCoord(fixedLat, fixedLon);
+					if (batch == null)
+						continue;
+					batch.add(id, fixedLat, fixedLon);
+					if (keys.size() > 0){
+						while (keys.getInt(j) != 0){
+							int keyid = keys.getInt(j++);
+							int valid = keys.getInt(j++);
+							addTag(batch, keyid, valid);
+						}
+						j++; // Skip over the '0' delimiter.
+					}
+				}
+				if (batch != null)
+					result.parts.add(batch);
 			}
-			processor.processRelation(tmp);
-			countRelation(tmp.getId());
 		}
-	}
 
-	@Override
-	public void parse(Osmformat.HeaderBlock block) {
+		/**
+		 * Update the id range of the block. 
+		 */
+		private void noteId(long id){
+			if (id < result.minId)
+				result.minId = id;
+			if (id > result.maxId)
+				result.maxId = id;
+		}
 
-		for (String s : block.getRequiredFeaturesList()) {
-			if (s.equals("OsmSchema-V0.6")) continue; // OK.
-			if (s.equals("DenseNodes")) continue; // OK.
-			throw new UnknownFeatureException(s);
+		/**
+		 * Update the bounding box of the nodes in the block. 
+		 */
+		private void noteCoord(int fixedLat, int fixedLon){
+			if (fixedLat < result.minLat)
+				result.minLat = fixedLat;
+			if (fixedLat > result.maxLat)
+				result.maxLat = fixedLat;
+			if (fixedLon < result.minLon)
+				result.minLon = fixedLon;
+			if (fixedLon > result.maxLon)
+				result.maxLon = fixedLon;
 		}
 
-		if (block.hasBbox()) {
-			final double multiplier = .000000001;
-			double rightf = block.getBbox().getRight() * multiplier;
-			double leftf = block.getBbox().getLeft() * multiplier;
-			double topf = block.getBbox().getTop() * multiplier;
-			double bottomf = block.getBbox().getBottom() * multiplier;
+		private NodeBatch getNodeBatch(){
+			NodeBatch batch = freeNodeBatches.poll();
+			return (batch != null) ? batch : new NodeBatch();
+		}
 
-			System.out.println("Bounding box "+leftf+" "+bottomf+" "+rightf+" "+topf);
+		private WayBatch getWayBatch(){
+			WayBatch batch = freeWayBatches.poll();
+			return (batch != null) ? batch : new WayBatch();
+		}
 
-			Area area = new Area(
-					Utils.toMapUnit(bottomf),
-					Utils.toMapUnit(leftf),
-					Utils.toMapUnit(topf),
-					Utils.toMapUnit(rightf));
-			processor.boundTag(area);
+		private void addTags(ElementBatch batch) throws IOException {
+			for (int j = 0; j < keys.size(); j++)
+				addTag(batch, keys.getInt(j), vals.getInt(j));
 		}
+
+		private void parseNodes(int start, int end) throws IOException {
+			boolean wantTags = !skipNodes && !isStartNodeOnly && !skipTags;
+			NodeBatch batch = null;
+			in.init(buf, start);
+			while (in.pos < end){
+				int key = in.readKey();
+				if (WireReader.field(key) != 1){
+					in.skip(WireReader.wireType(key));
+					continue;
+				}
+				int nodeEnd = in.readLength();
+				result.blockType |= FileIndex.TYPE_NODES;
+				long id = 0, lat = 0, lon = 0;
+				keys.clear();
+				vals.clear();
+				while (in.pos < nodeEnd){
+					key = in.readKey();
+					switch (WireReader.field(key)){
+					case 1:
+						id = in.readSInt64();
+						break;
+					case 2:
+						readStringIds(key, keys, wantTags);
+						break;
+					case 3:
+						readStringIds(key, vals, wantTags);
+						break;
+					case 8:
+						lat = in.readSInt64();
+						break;
+					case 9:
+						lon = in.readSInt64();
+						break;
+					default:
+						in.skip(WireReader.wireType(key));
+					}
+				}
+				int fixedLat = fixedLat(lat), fixedLon = fixedLon(lon);
+				noteId(id);
+				noteCoord(fixedLat, fixedLon);
+				if (skipNodes)
+					continue;
+				if (batch == null)
+					batch = getNodeBatch();
+				batch.add(id, fixedLat, fixedLon);
+				addTags(batch);
+			}
+			if (batch != null)
+				result.parts.add(batch);
+		}
+
+		private void parseWays(int start, int end) throws IOException {
+			boolean wantTags = !skipWays && !skipTags;
+			WayBatch batch = null;
+			in.init(buf, start);
+			while (in.pos < end){
+				int key = in.readKey();
+				if (WireReader.field(key) != 3){
+					in.skip(WireReader.wireType(key));
+					continue;
+				}
+				int wayEnd = in.readLength();
+				result.blockType |= FileIndex.TYPE_WAYS;
+				long id = 0;
+				keys.clear();
+				vals.clear();
+				refs.clear();
+				while (in.pos < wayEnd){
+					key = in.readKey();
+					switch (WireReader.field(key)){
+					case 1:
+						id = in.readVarint();
+						break;
+					case 2:
+						readStringIds(key, keys, wantTags);
+						break;
+					case 3:
+						readStringIds(key, vals, wantTags);
+						break;
+					case 8:
+						if (skipWays)
+							in.skip(WireReader.wireType(key));
+						else 
+							in.readSInt64s(WireReader.wireType(key), refs);
+						break;
+					default:
+						in.skip(WireReader.wireType(key));
+					}
+				}
+				noteId(id);
+				if (skipWays)
+					continue;
+				if (batch == null)
+					batch = getWayBatch();
+				batch.add(id);
+				addTags(batch);
+				long ref = 0;
+				for (int j = 0; j < refs.size(); j++){
+					ref += refs.getLong(j);
+					batch.addRef(ref);
+				}
+			}
+			if (batch != null)
+				result.parts.add(batch);
+		}
+
+		private void parseRelations(int start, int end) throws IOException {
+			boolean wantTags = !skipRels && !skipTags;
+			in.init(buf, start);
+			while (in.pos < end){
+				int key = in.readKey();
+				if (WireReader.field(key) != 4){
+					in.skip(WireReader.wireType(key));
+					continue;
+				}
+				int relEnd = in.readLength();
+				result.blockType |= FileIndex.TYPE_RELS;
+				long id = 0;
+				keys.clear();
+				vals.clear();
+				roles.clear();
+				refs.clear();
+				types.clear();
+				while (in.pos < relEnd){
+					key = in.readKey();
+					switch (WireReader.field(key)){
+					case 1:
+						id = in.readVarint();
+						break;
+					case 2:
+						readStringIds(key, keys, wantTags);
+						break;
+					case 3:
+						readStringIds(key, vals, wantTags);
+						break;
+					case 8:
+						readStringIds(key, roles, !skipRels);
+						break;
+					case 9:
+						if (skipRels)
+							in.skip(WireReader.wireType(key));
+						else 
+							in.readSInt64s(WireReader.wireType(key), refs);
+						break;
+					case 10:
+						readStringIds(key, types, !skipRels);
+						break;
+					default:
+						in.skip(WireReader.wireType(key));
+					}
+				}
+				noteId(id);
+				if (skipRels)
+					continue;
+				Relation tmp = new Relation();
+				for (int j = 0; j < keys.size(); j++)
+					tmp.addTag(getKeyId(keys.getInt(j)), getValueId(vals.getInt(j)), getString(vals.getInt(j)));
+				tmp.set(id);
+				long mid = 0;
+				for (int j = 0; j < refs.size(); j++){
+					mid += refs.getLong(j);
+					int type = types.getInt(j);
+					// the member types of the pbf format are used by Relation
+					if (type < Relation.MEMBER_NODE || type > Relation.MEMBER_RELATION)
+						throw new IOException("Unknown member type " + type + " in relation " + id);
+					tmp.addMember((byte) type, mid, getKeyId(roles.getInt(j)));
+				}
+				if (!tmp.isIgnored())
+					result.parts.add(tmp);
+			}
+		}
+
+		private void parseHeader() throws IOException {
+			boolean hasBbox = false;
+			long left = 0, right = 0, top = 0, bottom = 0;
+			in.init(buf, bufStart);
+			while (in.pos < bufEnd){
+				int key = in.readKey();
+				switch (WireReader.field(key)){
+				case 1:
+					hasBbox = true;
+					int end = in.readLength();
+					while (in.pos < end){
+						key = in.readKey();
+						switch (WireReader.field(key)){
+						case 1:
+							left = in.readSInt64();
+							break;
+						case 2:
+							right = in.readSInt64();
+							break;
+						case 3:
+							top = in.readSInt64();
+							break;
+						case 4:
+							bottom = in.readSInt64();
+							break;
+						default:
+							in.skip(WireReader.wireType(key));
+						}
+					}
+					break;
+				case 4:
+					String s = in.readString();
+					if (s.equals("OsmSchema-V0.6")) continue; // OK.
+					if (s.equals("DenseNodes")) continue; // OK.
+					throw new UnknownFeatureException(s);
+				default:
+					in.skip(WireReader.wireType(key));
+				}
+			}
+
+			if (hasBbox) {
+				final double multiplier = .000000001;
+				double rightf = right * multiplier;
+				double leftf = left * multiplier;
+				double topf = top * multiplier;
+				double bottomf = bottom * multiplier;
+
+				System.out.println("Bounding box "+leftf+" "+bottomf+" "+rightf+" "+topf);
+
+				result.bounds = new Area(
+						Utils.fixedToMapUnit(nanoToFixed(bottom)),
+						Utils.fixedToMapUnit(nanoToFixed(left)),
+						Utils.fixedToMapUnit(nanoToFixed(top)),
+						Utils.fixedToMapUnit(nanoToFixed(right)));
+			}
+		}
+	}
+
+	/**
+	 * Convert nano degrees to units of 0.0000001 degrees, rounded to the nearest value.
+	 */
+	private static int nanoToFixed(long nano) {
+		if (nano >= 0)
+			return (int) ((nano + 50) / 100);
+		return (int) ((nano - 50) / 100);
+	}
+
+	private void countNodes(NodeBatch nodes) {
+		for (int i = 0; i < nodes.size(); i++)
+			countNode(nodes.getId(i));
+	}
+
+	private void countWays(WayBatch ways) {
+		for (int i = 0; i < ways.size(); i++)
+			countWay(ways.getId(i));
 	}
 
-	private void CountNode(long id) {
+	private void countNode(long id) {
 		nodeCount++;
 		if (nodeCount % NODE_STATUS_UPDATE_THRESHOLD == 0) {
 			System.out.println(Utils.format(nodeCount) + " nodes processed... id=" + id);
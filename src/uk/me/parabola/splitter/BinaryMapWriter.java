@@ -17,11 +17,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
-import uk.me.parabola.splitter.Relation.Member;
 import crosby.binary.BinarySerializer;
 import crosby.binary.Osmformat;
 import crosby.binary.StringTable;
@@ -32,6 +30,9 @@ import crosby.binary.file.FileBlock;
 
 public class BinaryMapWriter extends AbstractOSMWriter {
 
+  // indexed by the member types of Relation
+  private static final MemberType[] MEMBER_TYPES = {MemberType.NODE, MemberType.WAY, MemberType.RELATION};
+
   private PBFSerializer serializer;
 
   private BlockOutputStream output;
@@ -48,6 +49,11 @@ public class BinaryMapWriter extends AbstractOSMWriter {
       omit_metadata = true;
     }
 
+    /** Convert a value in units of 0.0000001 degrees to the granularity of the pbf file. */
+    public int mapFixed(int fixed) {
+      return (int) (fixed * 100L / granularity);
+    }
+
     /** Base class containing common code needed for serializing each type of primitives. */
     private abstract class Prim<T extends Element> {
       /** Queue that tracks the list of all primitives. */
@@ -65,11 +71,9 @@ public class BinaryMapWriter extends AbstractOSMWriter {
       {
         StringTable stable = getStringTable();
         for(T i : contents) {
-          Iterator<Element.Tag> tags = i.tagsIterator();
-          while(tags.hasNext()) {
-            Element.Tag tag = tags.next();
-            stable.incr(tag.getKey());
-            stable.incr(tag.getValue());
+          for(int t = 0; t < i.getTagCount(); t++) {
+            stable.incr(i.getTagKey(t));
+            stable.incr(i.getTagValue(t));
           }
           if(!omit_metadata) {
             //            stable.incr(i.getUser().getName());
@@ -166,7 +170,7 @@ public class BinaryMapWriter extends AbstractOSMWriter {
         boolean doesBlockHaveTags = false;
         // Does anything in this block have tags?
         for(Node i : contents) {
-          doesBlockHaveTags = doesBlockHaveTags || (i.tagsIterator().hasNext());
+          doesBlockHaveTags = doesBlockHaveTags || i.hasTags();
         }
         if(!omit_metadata) {
           Osmformat.DenseInfo.Builder bdi = Osmformat.DenseInfo.newBuilder();
@@ -176,8 +180,8 @@ public class BinaryMapWriter extends AbstractOSMWriter {
 
         for(Node i : contents) {
           long id = i.getId();
-          int lat = mapDegrees(i.getLat());
-          int lon = mapDegrees(i.getLon());
+          int lat = mapFixed(i.getFixedLat());
+          int lon = mapFixed(i.getFixedLon());
           bi.addId(id - lastid);
           lastid = id;
           bi.addLon(lon - lastlon);
@@ -187,11 +191,9 @@ public class BinaryMapWriter extends AbstractOSMWriter {
 
           // Then we must include tag information.
           if(doesBlockHaveTags) {
-            Iterator<Element.Tag> tags = i.tagsIterator();
-            while(tags.hasNext()) {
-              Element.Tag t = tags.next();
-              bi.addKeysVals(stable.getIndex(t.getKey()));
-              bi.addKeysVals(stable.getIndex(t.getValue()));
+            for(int t = 0; t < i.getTagCount(); t++) {
+              bi.addKeysVals(stable.getIndex(i.getTagKey(t)));
+              bi.addKeysVals(stable.getIndex(i.getTagValue(t)));
             }
             bi.addKeysVals(0); // Add delimiter.
           }
@@ -216,17 +218,15 @@ public class BinaryMapWriter extends AbstractOSMWriter {
             .newBuilder();
         for(Node i : contents) {
           long id = i.getId();
-          int lat = mapDegrees(i.getLat());
-          int lon = mapDegrees(i.getLon());
+          int lat = mapFixed(i.getFixedLat());
+          int lon = mapFixed(i.getFixedLon());
           Osmformat.Node.Builder bi = Osmformat.Node.newBuilder();
           bi.setId(id);
           bi.setLon(lon);
           bi.setLat(lat);
-          Iterator<Element.Tag> tags = i.tagsIterator();
-          while(tags.hasNext()) {
-            Element.Tag t = tags.next();
-            bi.addKeys(stable.getIndex(t.getKey()));
-            bi.addVals(stable.getIndex(t.getValue()));
+          for(int t = 0; t < i.getTagCount(); t++) {
+            bi.addKeys(stable.getIndex(i.getTagKey(t)));
+            bi.addVals(stable.getIndex(i.getTagValue(t)));
           }
           if(!omit_metadata) {
             bi.setInfo(serializeMetadata(i));
@@ -259,11 +259,9 @@ public class BinaryMapWriter extends AbstractOSMWriter {
             bi.addRefs(id - lastid);
             lastid = id;
           }
-          Iterator<Element.Tag> tags = i.tagsIterator();
-          while(tags.hasNext()) {
-            Element.Tag t = tags.next();
-            bi.addKeys(stable.getIndex(t.getKey()));
-            bi.addVals(stable.getIndex(t.getValue()));
+          for(int t = 0; t < i.getTagCount(); t++) {
+            bi.addKeys(stable.getIndex(i.getTagKey(t)));
+            bi.addVals(stable.getIndex(i.getTagValue(t)));
           }
           if(!omit_metadata) {
             bi.setInfo(serializeMetadata(i));
@@ -281,8 +279,8 @@ public class BinaryMapWriter extends AbstractOSMWriter {
         StringTable stable = serializer.getStringTable();
         super.addStringsToStringtable();
         for(Relation i : contents) {
-          for(Member j : i.getMembers()) {
-            stable.incr(j.getRole());
+          for(int j = 0; j < i.getMemberCount(); j++) {
+            stable.incr(i.getMemberRole(j));
           }
         }
       }
@@ -300,30 +298,18 @@ public class BinaryMapWriter extends AbstractOSMWriter {
         for(Relation i : contents) {
           Osmformat.Relation.Builder bi = Osmformat.Relation.newBuilder();
           bi.setId(i.getId());
-          Member[] arr = new Member[i.getMembers().size()];
-          i.getMembers().toArray(arr);
           long lastid = 0;
-          for(Member j : i.getMembers()) {
-            long id = j.getRef();
+          for(int j = 0; j < i.getMemberCount(); j++) {
+            long id = i.getMemberRef(j);
             bi.addMemids(id - lastid);
             lastid = id;
-            if(j.getType().equals("node")) {
-              bi.addTypes(MemberType.NODE);
-            } else if(j.getType().equals("way")) {
-              bi.addTypes(MemberType.WAY);
-            } else if(j.getType().equals("relation")) {
-              bi.addTypes(MemberType.RELATION);
-            } else {
-              assert (false); // Software bug: Unknown entity.
-            }
-            bi.addRolesSid(stable.getIndex(j.getRole()));
+            bi.addTypes(MEMBER_TYPES[i.getMemberType(j)]);
+            bi.addRolesSid(stable.getIndex(i.getMemberRole(j)));
           }
 
-          Iterator<Element.Tag> tags = i.tagsIterator();
-          while(tags.hasNext()) {
-            Element.Tag t = tags.next();
-            bi.addKeys(stable.getIndex(t.getKey()));
-            bi.addVals(stable.getIndex(t.getValue()));
+          for(int t = 0; t < i.getTagCount(); t++) {
+            bi.addKeys(stable.getIndex(i.getTagKey(t)));
+            bi.addVals(stable.getIndex(i.getTagValue(t)));
           }
           if(!omit_metadata) {
             bi.setInfo(serializeMetadata(i));
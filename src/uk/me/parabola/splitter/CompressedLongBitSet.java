@@ -0,0 +1,829 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of long values that is stored like a roaring bitmap. The upper 48
+ * bits of a key select a container, the lower 16 bits are stored in the
+ * container. A container is either a sorted array of the values, a bitmap
+ * with 65536 bits or a list of runs of consecutive values, whichever is
+ * smallest for the stored values.
+ * <p>
+ * New containers are arrays, an array is converted to a bitmap when it
+ * grows beyond {@link #MAX_ARRAY_SIZE} values. Runs are only created by
+ * {@link #optimize()}, a run container is converted back when it is
+ * modified. OSM ids come in dense clusters, so after optimize() most
+ * containers are bitmaps or runs.
+ * <p>
+ * The keys can be iterated in ascending order, which allows to walk
+ * through the set together with sorted input data instead of looking up
+ * each id.
+ */
+public class CompressedLongBitSet {
+	private static final int LOW_BITS = 16;
+	private static final int LOW_MASK = (1 << LOW_BITS) - 1;
+	private static final int BITMAP_WORDS = (1 << LOW_BITS) / 64;
+	private static final int BITMAP_BYTES = BITMAP_WORDS * 8;
+	/** an array container with more values is converted to a bitmap */
+	static final int MAX_ARRAY_SIZE = 4096;
+
+	private static final byte ARRAY = 1;
+	private static final byte BITMAP = 2;
+	private static final byte RUNS = 3;
+	private static final int INITIAL_CONTAINERS = 16;
+
+	// the sorted upper bits of the keys and the containers for them
+	private long[] highKeys;
+	private Container[] containers;
+	private int numContainers;
+	private int cardinality;
+	// the position of the container that was used last
+	private int lastPos;
+
+	public CompressedLongBitSet() {
+		clear();
+	}
+
+	/**
+	 * @return the position of the container for the upper bits or
+	 * (-(insertion point) - 1) if there is none
+	 */
+	private int findContainer(long high) {
+		if (lastPos < numContainers && highKeys[lastPos] == high)
+			return lastPos;
+		int pos = Arrays.binarySearch(highKeys, 0, numContainers, high);
+		if (pos >= 0)
+			lastPos = pos;
+		return pos;
+	}
+
+	private void insertContainer(int pos, long high, Container c) {
+		if (numContainers == highKeys.length) {
+			int len = Math.max(INITIAL_CONTAINERS, numContainers * 2);
+			highKeys = Arrays.copyOf(highKeys, len);
+			containers = Arrays.copyOf(containers, len);
+		}
+		System.arraycopy(highKeys, pos, highKeys, pos + 1, numContainers - pos);
+		System.arraycopy(containers, pos, containers, pos + 1, numContainers - pos);
+		highKeys[pos] = high;
+		containers[pos] = c;
+		numContainers++;
+		lastPos = pos;
+	}
+
+	private void removeContainer(int pos) {
+		numContainers--;
+		System.arraycopy(highKeys, pos + 1, highKeys, pos, numContainers - pos);
+		System.arraycopy(containers, pos + 1, containers, pos, numContainers - pos);
+		containers[numContainers] = null;
+		lastPos = 0;
+	}
+
+	public void set(long key) {
+		long high = key >> LOW_BITS;
+		int pos = findContainer(high);
+		if (pos < 0) {
+			pos = -pos - 1;
+			insertContainer(pos, high, new ArrayContainer(0));
+		}
+		Container c = containers[pos];
+		int before = c.cardinality;
+		c = c.add((int) key & LOW_MASK);
+		containers[pos] = c;
+		cardinality += c.cardinality - before;
+	}
+
+	/**
+	 * Set the bits for all keys in the list.
+	 */
+	public void setAll(LongArrayList keyList) {
+		for (int i = 0; i < keyList.size(); i++)
+			set(keyList.getLong(i));
+	}
+
+	public void clear(long key) {
+		int pos = findContainer(key >> LOW_BITS);
+		if (pos < 0)
+			return;
+		Container c = containers[pos];
+		int before = c.cardinality;
+		c = c.remove((int) key & LOW_MASK);
+		cardinality -= before - c.cardinality;
+		if (c.cardinality == 0)
+			removeContainer(pos);
+		else
+			containers[pos] = c;
+	}
+
+	public boolean get(long key) {
+		int pos = findContainer(key >> LOW_BITS);
+		return pos >= 0 && containers[pos].contains((int) key & LOW_MASK);
+	}
+
+	public void clear() {
+		highKeys = new long[INITIAL_CONTAINERS];
+		containers = new Container[INITIAL_CONTAINERS];
+		numContainers = 0;
+		cardinality = 0;
+		lastPos = 0;
+	}
+
+	public int cardinality() {
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	/**
+	 * Add all keys of the other set to this set.
+	 */
+	public void or(CompressedLongBitSet other) {
+		int len = numContainers + other.numContainers;
+		long[] keys = new long[Math.max(INITIAL_CONTAINERS, len)];
+		Container[] merged = new Container[keys.length];
+		int i = 0, j = 0, n = 0;
+		cardinality = 0;
+		while (i < numContainers || j < other.numContainers) {
+			Container c;
+			if (j >= other.numContainers || (i < numContainers && highKeys[i] < other.highKeys[j])) {
+				keys[n] = highKeys[i];
+				c = containers[i++];
+			} else if (i >= numContainers || other.highKeys[j] < highKeys[i]) {
+				keys[n] = other.highKeys[j];
+				c = other.containers[j++].copy();
+			} else {
+				keys[n] = highKeys[i];
+				c = containers[i++].or(other.containers[j++]);
+			}
+			merged[n++] = c;
+			cardinality += c.cardinality;
+		}
+		highKeys = keys;
+		containers = merged;
+		numContainers = n;
+		lastPos = 0;
+	}
+
+	/**
+	 * Remove all keys from this set that are not in the other set.
+	 */
+	public void and(CompressedLongBitSet other) {
+		int n = 0, j = 0;
+		cardinality = 0;
+		for (int i = 0; i < numContainers; i++) {
+			long high = highKeys[i];
+			while (j < other.numContainers && other.highKeys[j] < high)
+				j++;
+			if (j < other.numContainers && other.highKeys[j] == high) {
+				Container c = containers[i].and(other.containers[j]);
+				if (c.cardinality > 0) {
+					highKeys[n] = high;
+					containers[n++] = c;
+					cardinality += c.cardinality;
+				}
+			}
+		}
+		Arrays.fill(containers, n, numContainers, null);
+		numContainers = n;
+		lastPos = 0;
+	}
+
+	/**
+	 * Convert each container to the smallest representation for its values.
+	 * Should be called when no more keys are added.
+	 */
+	public void optimize() {
+		for (int i = 0; i < numContainers; i++)
+			containers[i] = containers[i].optimize();
+	}
+
+	/**
+	 * calculate estimated required heap
+	 */
+	public long bytes() {
+		long bytes = highKeys.length * 12L;
+		for (int i = 0; i < numContainers; i++)
+			bytes += containers[i].bytes();
+		return bytes;
+	}
+
+	/**
+	 * @return an iterator over all keys in ascending order. The set must not
+	 * be modified while the iterator is used.
+	 */
+	public LongIterator iterator() {
+		return iterator(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param fromKey the smallest key that is returned
+	 * @param toKey the keys that are returned are smaller than this
+	 * @return an iterator over the keys in the range in ascending order.
+	 * The set must not be modified while the iterator is used.
+	 */
+	public LongIterator iterator(final long fromKey, final long toKey) {
+		return new AbstractLongIterator() {
+			private int pos;
+			private int startLow;
+			private long base;
+			private ContainerIterator iter;
+			private long next;
+			private boolean hasNext;
+			{
+				pos = Arrays.binarySearch(highKeys, 0, numContainers, fromKey >> LOW_BITS);
+				if (pos >= 0)
+					startLow = (int) fromKey & LOW_MASK;
+				else
+					pos = -pos - 1;
+				advance();
+			}
+
+			private void advance() {
+				while (true) {
+					if (iter != null) {
+						int low = iter.next();
+						if (low >= 0) {
+							next = base + low;
+							hasNext = next < toKey;
+							return;
+						}
+						iter = null;
+						pos++;
+					}
+					if (pos >= numContainers) {
+						hasNext = false;
+						return;
+					}
+					base = highKeys[pos] << LOW_BITS;
+					iter = containers[pos].iterator(startLow);
+					startLow = 0;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return hasNext;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext)
+					throw new NoSuchElementException();
+				long key = next;
+				advance();
+				return key;
+			}
+		};
+	}
+
+	/**
+	 * Write the set to a stream so that it can be read with
+	 * {@link #readFrom(DataInputStream)}.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(numContainers);
+		for (int i = 0; i < numContainers; i++) {
+			out.writeLong(highKeys[i]);
+			out.writeByte(containers[i].type());
+			containers[i].write(out);
+		}
+	}
+
+	public static CompressedLongBitSet readFrom(DataInputStream in) throws IOException {
+		CompressedLongBitSet set = new CompressedLongBitSet();
+		int n = in.readInt();
+		set.highKeys = new long[Math.max(INITIAL_CONTAINERS, n)];
+		set.containers = new Container[set.highKeys.length];
+		for (int i = 0; i < n; i++) {
+			set.highKeys[i] = in.readLong();
+			byte type = in.readByte();
+			Container c;
+			if (type == ARRAY)
+				c = ArrayContainer.read(in);
+			else if (type == BITMAP)
+				c = BitmapContainer.read(in);
+			else if (type == RUNS)
+				c = RunContainer.read(in);
+			else
+				throw new IOException("Unknown container type " + type);
+			set.containers[i] = c;
+			set.cardinality += c.cardinality;
+		}
+		set.numContainers = n;
+		return set;
+	}
+
+	/**
+	 * Returns the values of a container in ascending order.
+	 */
+	private static abstract class ContainerIterator {
+		/**
+		 * @return the next value or -1 if there is none
+		 */
+		abstract int next();
+	}
+
+	private static abstract class Container {
+		int cardinality;
+
+		abstract byte type();
+
+		abstract boolean contains(int low);
+
+		/**
+		 * @return this or the container that replaces this
+		 */
+		abstract Container add(int low);
+
+		/**
+		 * @return this or the container that replaces this
+		 */
+		abstract Container remove(int low);
+
+		/**
+		 * @return an iterator over the values that are equal to or larger
+		 * than fromLow
+		 */
+		abstract ContainerIterator iterator(int fromLow);
+
+		abstract Container copy();
+
+		abstract long bytes();
+
+		abstract void write(DataOutputStream out) throws IOException;
+
+		/**
+		 * Set the bits of all values in the bitmap.
+		 */
+		void fillBitmap(long[] words) {
+			ContainerIterator iter = iterator(0);
+			for (int v = iter.next(); v >= 0; v = iter.next())
+				words[v >>> 6] |= 1L << v;
+		}
+
+		int countRuns() {
+			int runs = 0;
+			int prev = -2;
+			ContainerIterator iter = iterator(0);
+			for (int v = iter.next(); v >= 0; v = iter.next()) {
+				if (v != prev + 1)
+					runs++;
+				prev = v;
+			}
+			return runs;
+		}
+
+		/**
+		 * @return a new bitmap container with the values of this
+		 */
+		BitmapContainer toBitmap() {
+			BitmapContainer b = new BitmapContainer();
+			fillBitmap(b.words);
+			b.cardinality = cardinality;
+			return b;
+		}
+
+		ArrayContainer toArray() {
+			ArrayContainer a = new ArrayContainer(cardinality);
+			ContainerIterator iter = iterator(0);
+			for (int v = iter.next(); v >= 0; v = iter.next())
+				a.values[a.cardinality++] = (char) v;
+			return a;
+		}
+
+		RunContainer toRuns() {
+			RunContainer rc = new RunContainer(countRuns());
+			int start = -1;
+			int prev = -2;
+			ContainerIterator iter = iterator(0);
+			for (int v = iter.next(); v >= 0; v = iter.next()) {
+				if (v != prev + 1) {
+					if (start >= 0)
+						rc.addRun(start, prev);
+					start = v;
+				}
+				prev = v;
+			}
+			if (start >= 0)
+				rc.addRun(start, prev);
+			return rc;
+		}
+
+		Container optimize() {
+			long runBytes = 4L * countRuns();
+			long arrayBytes = 2L * cardinality;
+			byte best;
+			if (runBytes < arrayBytes && runBytes < BITMAP_BYTES)
+				best = RUNS;
+			else if (cardinality <= MAX_ARRAY_SIZE)
+				best = ARRAY;
+			else
+				best = BITMAP;
+			if (best == type())
+				return this;
+			if (best == RUNS)
+				return toRuns();
+			return (best == ARRAY) ? toArray() : toBitmap();
+		}
+
+		/**
+		 * @return a new container with the values of this and other
+		 */
+		Container or(Container other) {
+			if (this instanceof ArrayContainer && other instanceof ArrayContainer
+					&& cardinality + other.cardinality <= MAX_ARRAY_SIZE)
+				return ((ArrayContainer) this).merge((ArrayContainer) other);
+			BitmapContainer b = toBitmap();
+			other.fillBitmap(b.words);
+			b.recount();
+			return b;
+		}
+
+		/**
+		 * @return a new container with the values that are in this and other
+		 */
+		Container and(Container other) {
+			Container small = (cardinality <= other.cardinality) ? this : other;
+			Container large = (small == this) ? other : this;
+			if (small.cardinality <= MAX_ARRAY_SIZE) {
+				ArrayContainer a = new ArrayContainer(small.cardinality);
+				ContainerIterator iter = small.iterator(0);
+				for (int v = iter.next(); v >= 0; v = iter.next()) {
+					if (large.contains(v))
+						a.values[a.cardinality++] = (char) v;
+				}
+				return a;
+			}
+			BitmapContainer b = small.toBitmap();
+			long[] words = (large instanceof BitmapContainer) ? ((BitmapContainer) large).words : large.toBitmap().words;
+			for (int i = 0; i < BITMAP_WORDS; i++)
+				b.words[i] &= words[i];
+			b.recount();
+			return (b.cardinality <= MAX_ARRAY_SIZE) ? b.toArray() : b;
+		}
+	}
+
+	/**
+	 * The values are stored in a sorted array.
+	 */
+	private static class ArrayContainer extends Container {
+		char[] values;
+
+		ArrayContainer(int capacity) {
+			values = new char[Math.max(4, capacity)];
+		}
+
+		@Override
+		byte type() {
+			return ARRAY;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return Arrays.binarySearch(values, 0, cardinality, (char) low) >= 0;
+		}
+
+		@Override
+		Container add(int low) {
+			int pos = Arrays.binarySearch(values, 0, cardinality, (char) low);
+			if (pos >= 0)
+				return this;
+			if (cardinality >= MAX_ARRAY_SIZE)
+				return toBitmap().add(low);
+			pos = -pos - 1;
+			if (cardinality == values.length)
+				values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, cardinality * 2));
+			System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+			values[pos] = (char) low;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(int low) {
+			int pos = Arrays.binarySearch(values, 0, cardinality, (char) low);
+			if (pos < 0)
+				return this;
+			cardinality--;
+			System.arraycopy(values, pos + 1, values, pos, cardinality - pos);
+			return this;
+		}
+
+		@Override
+		ContainerIterator iterator(int fromLow) {
+			int start = Arrays.binarySearch(values, 0, cardinality, (char) fromLow);
+			final int first = (start >= 0) ? start : -start - 1;
+			return new ContainerIterator() {
+				private int i = first;
+
+				@Override
+				int next() {
+					return (i < cardinality) ? values[i++] : -1;
+				}
+			};
+		}
+
+		@Override
+		Container copy() {
+			ArrayContainer a = new ArrayContainer(0);
+			a.values = Arrays.copyOf(values, Math.max(4, cardinality));
+			a.cardinality = cardinality;
+			return a;
+		}
+
+		/**
+		 * @return a new array with the values of this and other
+		 */
+		ArrayContainer merge(ArrayContainer other) {
+			ArrayContainer a = new ArrayContainer(cardinality + other.cardinality);
+			int i = 0, j = 0, n = 0;
+			while (i < cardinality && j < other.cardinality) {
+				char v1 = values[i];
+				char v2 = other.values[j];
+				if (v1 <= v2) {
+					a.values[n++] = v1;
+					i++;
+					if (v1 == v2)
+						j++;
+				} else {
+					a.values[n++] = v2;
+					j++;
+				}
+			}
+			while (i < cardinality)
+				a.values[n++] = values[i++];
+			while (j < other.cardinality)
+				a.values[n++] = other.values[j++];
+			a.cardinality = n;
+			return a;
+		}
+
+		@Override
+		long bytes() {
+			return 16 + 2L * values.length;
+		}
+
+		@Override
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(cardinality);
+			for (int i = 0; i < cardinality; i++)
+				out.writeChar(values[i]);
+		}
+
+		static ArrayContainer read(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			ArrayContainer a = new ArrayContainer(n);
+			for (int i = 0; i < n; i++)
+				a.values[i] = in.readChar();
+			a.cardinality = n;
+			return a;
+		}
+	}
+
+	/**
+	 * The values are stored as bits in an array of 1024 longs.
+	 */
+	private static class BitmapContainer extends Container {
+		final long[] words = new long[BITMAP_WORDS];
+
+		@Override
+		byte type() {
+			return BITMAP;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		Container add(int low) {
+			long bit = 1L << low;
+			int w = low >>> 6;
+			if ((words[w] & bit) == 0) {
+				words[w] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(int low) {
+			long bit = 1L << low;
+			int w = low >>> 6;
+			if ((words[w] & bit) != 0) {
+				words[w] &= ~bit;
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		ContainerIterator iterator(final int fromLow) {
+			return new ContainerIterator() {
+				private int w = fromLow >>> 6;
+				private long word = words[w] & (-1L << fromLow);
+
+				@Override
+				int next() {
+					while (word == 0) {
+						if (++w >= BITMAP_WORDS)
+							return -1;
+						word = words[w];
+					}
+					int v = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					return v;
+				}
+			};
+		}
+
+		@Override
+		void fillBitmap(long[] other) {
+			for (int i = 0; i < BITMAP_WORDS; i++)
+				other[i] |= words[i];
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			return copy();
+		}
+
+		@Override
+		BitmapContainer copy() {
+			BitmapContainer b = new BitmapContainer();
+			System.arraycopy(words, 0, b.words, 0, BITMAP_WORDS);
+			b.cardinality = cardinality;
+			return b;
+		}
+
+		void recount() {
+			int n = 0;
+			for (long word : words)
+				n += Long.bitCount(word);
+			cardinality = n;
+		}
+
+		@Override
+		long bytes() {
+			return 16 + BITMAP_BYTES;
+		}
+
+		@Override
+		void write(DataOutputStream out) throws IOException {
+			for (long word : words)
+				out.writeLong(word);
+		}
+
+		static BitmapContainer read(DataInputStream in) throws IOException {
+			BitmapContainer b = new BitmapContainer();
+			for (int i = 0; i < BITMAP_WORDS; i++)
+				b.words[i] = in.readLong();
+			b.recount();
+			return b;
+		}
+	}
+
+	/**
+	 * The values are stored as pairs of the first value and the length - 1
+	 * of each run of consecutive values.
+	 */
+	private static class RunContainer extends Container {
+		char[] runs;
+		int numRuns;
+
+		RunContainer(int capacity) {
+			runs = new char[2 * Math.max(1, capacity)];
+		}
+
+		void addRun(int start, int end) {
+			runs[2 * numRuns] = (char) start;
+			runs[2 * numRuns + 1] = (char) (end - start);
+			numRuns++;
+			cardinality += end - start + 1;
+		}
+
+		@Override
+		byte type() {
+			return RUNS;
+		}
+
+		@Override
+		boolean contains(int low) {
+			int lo = 0;
+			int hi = numRuns - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int start = runs[2 * mid];
+				if (low < start)
+					hi = mid - 1;
+				else if (low > start + runs[2 * mid + 1])
+					lo = mid + 1;
+				else
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		Container add(int low) {
+			if (contains(low))
+				return this;
+			Container c = (cardinality < MAX_ARRAY_SIZE) ? toArray() : toBitmap();
+			return c.add(low);
+		}
+
+		@Override
+		Container remove(int low) {
+			if (!contains(low))
+				return this;
+			Container c = (cardinality <= MAX_ARRAY_SIZE) ? toArray() : toBitmap();
+			return c.remove(low);
+		}
+
+		@Override
+		ContainerIterator iterator(final int fromLow) {
+			return new ContainerIterator() {
+				private int r;
+				private int v;
+				{
+					while (r < numRuns && runs[2 * r] + runs[2 * r + 1] < fromLow)
+						r++;
+					if (r < numRuns)
+						v = Math.max(fromLow, runs[2 * r]);
+				}
+
+				@Override
+				int next() {
+					if (r >= numRuns)
+						return -1;
+					int res = v;
+					if (v == runs[2 * r] + runs[2 * r + 1]) {
+						if (++r < numRuns)
+							v = runs[2 * r];
+					} else
+						v++;
+					return res;
+				}
+			};
+		}
+
+		@Override
+		int countRuns() {
+			return numRuns;
+		}
+
+		@Override
+		Container copy() {
+			RunContainer rc = new RunContainer(0);
+			rc.runs = Arrays.copyOf(runs, Math.max(2, 2 * numRuns));
+			rc.numRuns = numRuns;
+			rc.cardinality = cardinality;
+			return rc;
+		}
+
+		@Override
+		long bytes() {
+			return 20 + 2L * runs.length;
+		}
+
+		@Override
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(numRuns);
+			for (int i = 0; i < 2 * numRuns; i++)
+				out.writeChar(runs[i]);
+		}
+
+		static RunContainer read(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			RunContainer rc = new RunContainer(n);
+			for (int i = 0; i < n; i++) {
+				int start = in.readChar();
+				rc.addRun(start, start + in.readChar());
+			}
+			return rc;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A SparseLong2ShortMapFunction that can be used by several threads at
+ * the same time. It uses the same division of the keys as
+ * {@link SparseLong2ShortMapInline}: a map of large vectors, each
+ * vector addresses chunks of 64 values that are stored with a bit mask
+ * and RLE compression.
+ * <p>
+ * Each thread that calls put() has its own current chunk. When the
+ * thread moves to another chunk, the encoded chunk is published in the
+ * vector with compareAndSet. Chunks are never modified after they are
+ * published, so get() needs no locks. If two threads write to the same
+ * chunk, the values of both are merged. The values that a thread put
+ * into its current chunk are visible to other threads after it called
+ * {@link #flush()}, which each writing thread must do when it is done.
+ * The threads should store disjoint keys, otherwise a key may be counted
+ * twice in size().
+ */
+public class ConcurrentLong2ShortMap implements SparseLong2ShortMapFunction {
+	private static final long TOP_ID_MASK = 0xfffffffff8000000L;  			// the part of the key that is saved in the HashMap
+	private static final int TOP_ID_SHIFT = Long.numberOfTrailingZeros(TOP_ID_MASK);
+	private static final int CHUNK_SIZE = 64; 							// 64  = 1<< 6 (last 6 bits of the key)
+	private static final long CHUNK_OFFSET_MASK = CHUNK_SIZE-1;  		// the part of the key that contains the offset in the chunk
+	private static final long OLD_CHUNK_ID_MASK = ~CHUNK_OFFSET_MASK;	// first 58 bits of a long. If this part of the key changes, a different chunk is needed
+	private static final long CHUNK_ID_MASK     = ~TOP_ID_MASK; 		// the bits that are not stored in the HashMap
+	private static final long INVALID_CHUNK_ID = 1L; // must NOT be divisible by CHUNK_SIZE
+	private static final int LARGE_VECTOR_SIZE = (int)(CHUNK_ID_MASK/ CHUNK_SIZE + 1); // number of entries addressed by one topMap entry
+	// a chunk starts with the mask in 4 shorts, followed by the values
+	private static final int MASK_LEN = 4;
+	private static final int ONE_VALUE_CHUNK_LEN = MASK_LEN + 1;
+
+	/** A large vector with its top id */
+	private static class Vector {
+		final long topId;
+		final AtomicReferenceArray<short[]> chunks = new AtomicReferenceArray<short[]>(LARGE_VECTOR_SIZE);
+
+		Vector(long topId) {
+			this.topId = topId;
+		}
+	}
+
+	/** The current chunk of a writing thread */
+	private class Cursor {
+		long chunkId = INVALID_CHUNK_ID;
+		final short[] values = new short[CHUNK_SIZE];
+		// the positions in values that were written by this thread
+		long written;
+		// the number of new keys that are not yet counted in size
+		long added;
+		boolean open;
+		final short[] merged = new short[CHUNK_SIZE];
+		final short[] tmpWork = new short[CHUNK_SIZE];
+		final short[] RLEWork = new short[CHUNK_SIZE];
+	}
+
+	/** What to return on unassigned indices */
+	private short unassigned = UNASSIGNED;
+	private ConcurrentHashMap<Long, Vector> topMap;
+	// the vector that was used last by any thread
+	private volatile Vector lastVector;
+	private final AtomicLong size = new AtomicLong();
+	// the number of threads that have values which are not yet published
+	private final AtomicInteger openCursors = new AtomicInteger();
+	private final ThreadLocal<Cursor> cursors = new ThreadLocal<Cursor>() {
+		@Override
+		protected Cursor initialValue() {
+			return new Cursor();
+		}
+	};
+
+	ConcurrentLong2ShortMap() {
+		clear();
+	}
+
+	private Vector getVector(long key, boolean create) {
+		long topId = key >> TOP_ID_SHIFT;
+		Vector vector = lastVector;
+		if (vector != null && vector.topId == topId)
+			return vector;
+		vector = topMap.get(topId);
+		if (vector == null) {
+			if (!create)
+				return null;
+			Vector newVector = new Vector(topId);
+			vector = topMap.putIfAbsent(topId, newVector);
+			if (vector == null)
+				vector = newVector;
+		}
+		lastVector = vector;
+		return vector;
+	}
+
+	private static int chunkIndex(long key) {
+		return (int) (key & CHUNK_ID_MASK) / CHUNK_SIZE;
+	}
+
+	@Override
+	public short put(long key, short val) {
+		if (val == unassigned)
+			throw new IllegalArgumentException("Cannot store the value that is reserved as being unassigned. val=" + val);
+		Cursor c = cursors.get();
+		long chunkId = key & OLD_CHUNK_ID_MASK;
+		if (c.chunkId != chunkId) {
+			if (!c.open) {
+				c.open = true;
+				openCursors.incrementAndGet();
+			} else
+				publish(c);
+			Vector vector = getVector(chunkId, false);
+			short[] chunk = (vector == null) ? null : vector.chunks.get(chunkIndex(chunkId));
+			decode(chunk, c.values);
+			c.chunkId = chunkId;
+		}
+		int chunkoffset = (int) (key & CHUNK_OFFSET_MASK);
+		short out = c.values[chunkoffset];
+		c.values[chunkoffset] = val;
+		c.written |= 1L << chunkoffset;
+		if (out == unassigned)
+			c.added++;
+		return out;
+	}
+
+	/**
+	 * Publish the values that the calling thread has put into the map.
+	 */
+	public void flush() {
+		Cursor c = cursors.get();
+		if (c.open) {
+			publish(c);
+			c.chunkId = INVALID_CHUNK_ID;
+			c.open = false;
+			openCursors.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Store the current chunk of the cursor, merged with the values that
+	 * other threads have published for the same chunk in the meantime.
+	 */
+	private void publish(Cursor c) {
+		if (c.written == 0)
+			return;
+		AtomicReferenceArray<short[]> chunks = getVector(c.chunkId, true).chunks;
+		int idx = chunkIndex(c.chunkId);
+		while (true) {
+			short[] old = chunks.get(idx);
+			decode(old, c.merged);
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				if ((c.written & (1L << i)) != 0)
+					c.merged[i] = c.values[i];
+			}
+			if (chunks.compareAndSet(idx, old, encode(c)))
+				break;
+		}
+		size.addAndGet(c.added);
+		c.added = 0;
+		c.written = 0;
+	}
+
+	/**
+	 * Encode the values in c.merged.
+	 */
+	private short[] encode(Cursor c) {
+		long mask = 0;
+		int opos = 0;
+		for (int j = 0; j < CHUNK_SIZE; j++) {
+			if (c.merged[j] != unassigned) {
+				mask |= 1L << j;
+				c.tmpWork[opos++] = c.merged[j];
+			}
+		}
+		short[] src = c.tmpWork;
+		int len = opos;
+		if (opos > 1) {
+			int RLELen = chunkCompressRLE(c, opos);
+			if (RLELen > 0) {
+				src = c.RLEWork;
+				len = RLELen;
+			}
+		}
+		short[] chunk = new short[MASK_LEN + len];
+		for (int i = 0; i < MASK_LEN; i++)
+			chunk[i] = (short) (mask >>> (16 * i));
+		System.arraycopy(src, 0, chunk, MASK_LEN, len);
+		return chunk;
+	}
+
+	/**
+	 * Try to use Run Length Encoding to compress the values in tmpWork.
+	 * @return -1 if compression doesn't save space, else the number of elements in the
+	 * compressed chunk stored in RLEWork.
+	 */
+	private int chunkCompressRLE(Cursor c, int maxlen) {
+		short[] tmpWork = c.tmpWork;
+		short[] RLEWork = c.RLEWork;
+		int opos = 1;
+		for (int i = 0; i < maxlen; i++) {
+			short runLength = 1;
+			while (i + 1 < maxlen && tmpWork[i] == tmpWork[i + 1]) {
+				runLength++;
+				i++;
+			}
+			if (opos + 2 >= tmpWork.length)
+				return -1; // compressed record is not shorter
+			RLEWork[opos++] = runLength;
+			RLEWork[opos++] = tmpWork[i];
+		}
+		if (opos == 3) {
+			// the chunk contains only one distinct value
+			RLEWork[0] = RLEWork[2];
+			return 1;
+		}
+		if (opos < maxlen) {
+			RLEWork[0] = unassigned; // signal a normal compressed record
+			return opos;
+		}
+		return -1;
+	}
+
+	private static long getMask(short[] chunk) {
+		return (chunk[0] & 0xffffL) | (chunk[1] & 0xffffL) << 16 | (chunk[2] & 0xffffL) << 32 | (chunk[3] & 0xffffL) << 48;
+	}
+
+	/**
+	 * Decode a chunk into 64 values.
+	 */
+	private void decode(short[] chunk, short[] values) {
+		Arrays.fill(values, unassigned);
+		if (chunk == null)
+			return;
+		long mask = getMask(chunk);
+		if (chunk.length == ONE_VALUE_CHUNK_LEN) {
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				if ((mask & (1L << i)) != 0)
+					values[i] = chunk[MASK_LEN];
+			}
+		} else if (chunk[MASK_LEN] == unassigned) {
+			int opos = 0;
+			for (int ipos = MASK_LEN + 1; ipos + 1 < chunk.length; ipos += 2) {
+				int len = chunk[ipos];
+				short val = chunk[ipos + 1];
+				while (len > 0 && opos < CHUNK_SIZE) {
+					if ((mask & (1L << opos)) != 0) {
+						values[opos] = val;
+						--len;
+					}
+					++opos;
+				}
+			}
+		} else {
+			int ipos = MASK_LEN;
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				if ((mask & (1L << i)) != 0)
+					values[i] = chunk[ipos++];
+			}
+		}
+	}
+
+	@Override
+	public short get(long key) {
+		int chunkoffset = (int) (key & CHUNK_OFFSET_MASK);
+		if (openCursors.get() > 0) {
+			// the calling thread may have unpublished values
+			Cursor c = cursors.get();
+			if (c.chunkId == (key & OLD_CHUNK_ID_MASK))
+				return c.values[chunkoffset];
+		}
+		Vector vector = getVector(key, false);
+		if (vector == null)
+			return unassigned;
+		short[] chunk = vector.chunks.get(chunkIndex(key));
+		if (chunk == null)
+			return unassigned;
+		long mask = getMask(chunk);
+		if ((mask & (1L << chunkoffset)) == 0)
+			return unassigned;
+		short first = chunk[MASK_LEN];
+		if (chunk.length == ONE_VALUE_CHUNK_LEN)
+			return first;
+		int index = Long.bitCount(mask & ((1L << chunkoffset) - 1));
+		if (first != unassigned)
+			return chunk[MASK_LEN + index];
+		for (int j = MASK_LEN + 1; j + 1 < chunk.length; j += 2) {
+			index -= chunk[j];
+			if (index < 0)
+				return chunk[j + 1];
+		}
+		return unassigned; // should not happen
+	}
+
+	@Override
+	public boolean containsKey(long key) {
+		return get(key) != unassigned;
+	}
+
+	/**
+	 * Remove all keys. Must not be called while other threads use the map.
+	 */
+	@Override
+	public void clear() {
+		System.out.println(this.getClass().getSimpleName() + ": Allocating three-tier structure to save area info (HashMap->vector->chunkvector)");
+		topMap = new ConcurrentHashMap<Long, Vector>();
+		lastVector = null;
+		size.set(0);
+		Cursor c = cursors.get();
+		if (c.open) {
+			c.open = false;
+			openCursors.decrementAndGet();
+		}
+		c.chunkId = INVALID_CHUNK_ID;
+		c.written = 0;
+		c.added = 0;
+	}
+
+	/**
+	 * @return the number of published keys plus the number of keys that
+	 * the calling thread has not yet published
+	 */
+	@Override
+	public long size() {
+		if (openCursors.get() > 0)
+			return size.get() + cursors.get().added;
+		return size.get();
+	}
+
+	@Override
+	public short defaultReturnValue() {
+		return unassigned;
+	}
+
+	@Override
+	public void defaultReturnValue(short arg0) {
+		unassigned = arg0;
+	}
+
+	@Override
+	public void stats(int msgLevel) {
+		if (size() == 0) {
+			System.out.println("Map is empty");
+			return;
+		}
+		long chunks = 0;
+		long shorts = 0;
+		for (Vector vector : topMap.values()) {
+			for (int i = 0; i < LARGE_VECTOR_SIZE; i++) {
+				short[] chunk = vector.chunks.get(i);
+				if (chunk != null) {
+					chunks++;
+					shorts += chunk.length;
+				}
+			}
+		}
+		System.out.println("Number of stored ids: " + Utils.format(size()) + " in " + Utils.format(chunks) + " chunks with "
+				+ Utils.format(shorts * 2) + " bytes of data, " + topMap.size() + " vectors with " + LARGE_VECTOR_SIZE * 4 / 1024 / 1024 + " MB");
+	}
+}
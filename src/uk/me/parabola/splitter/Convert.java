@@ -185,4 +185,60 @@ public class Convert {
 		else
 			return decimal;
 	}
+
+	/**
+	 * Parses a decimal degree value into a fixed point value with 7 decimal 
+	 * places (the precision used by OSM) without floating point math. 
+	 * Values with more decimal places are rounded.  
+	 * @param cs the characters to parse
+	 * @return the value in units of 0.0000001
+	 * @throws NumberFormatException if the value failed to parse.
+	 */
+	public static int parseFixed(CharSequence cs) throws NumberFormatException {
+		int end = cs.length();
+		int i = 0;
+		if (end == 0)
+			throw new NumberFormatException("empty String");
+		char c = cs.charAt(i);
+		boolean isNegative = (c == '-');
+		if (isNegative || c == '+')
+			++i;
+		long val = 0;
+		int decimals = -1;
+		boolean roundUp = false;
+		boolean haveDigits = false;
+		for (; i < end; i++){
+			c = cs.charAt(i);
+			if (c >= '0' && c <= '9'){
+				haveDigits = true;
+				if (decimals < 7){
+					val = val * 10 + (c - '0');
+					if (val > Integer.MAX_VALUE)
+						throw new NumberFormatException("Value too large: " + cs);
+					if (decimals >= 0)
+						++decimals;
+				} else if (decimals == 7){
+					roundUp = c >= '5';
+					++decimals;
+				}
+			} else if (c == '.' && decimals < 0)
+				decimals = 0;
+			else {
+				// exponent or other unusual format
+				double d = Double.parseDouble(cs.toString());
+				return (int) Math.round(d * 10000000);
+			}
+		}
+		if (!haveDigits)
+			throw new NumberFormatException("no digits in " + cs);
+		if (decimals < 0)
+			decimals = 0;
+		for (; decimals < 7; decimals++)
+			val *= 10;
+		if (roundUp)
+			++val;
+		if (val > Integer.MAX_VALUE)
+			throw new NumberFormatException("Value too large: " + cs);
+		return (int) (isNegative ? -val : val);
+	}
 }
@@ -35,6 +35,11 @@ public class DataStorer{
 	private SparseLong2ShortMapFunction usedWays = null;
 	private final HashMap<Long,Integer> usedRels = new HashMap<Long, Integer>();
 	private boolean idsAreNotSorted;
+	private boolean offHeapMaps;
+	// the range of node ids if they are dense enough for a DenseLong2ShortMap
+	private boolean denseNodeIds;
+	private long minNodeId;
+	private long maxNodeId;
 
 	/** 
 	 * Create a dictionary for a given number of writers
@@ -84,6 +89,41 @@ public class DataStorer{
 		usedWays = ways;
 	}
 
+	/**
+	 * @param offHeapMaps true if the node and way maps should be stored in direct memory
+	 */
+	public void setOffHeapMaps(boolean offHeapMaps) {
+		this.offHeapMaps = offHeapMaps;
+	}
+
+	/**
+	 * Create a map that stores the writers of nodes or ways.
+	 */
+	public SparseLong2ShortMapFunction createSparseMap() {
+		if (offHeapMaps)
+			return new SparseLong2ShortMapOffHeap();
+		return new SparseLong2ShortMapInline();
+	}
+
+	/**
+	 * Let {@link #createNodeMap()} return a map that is directly indexed
+	 * by the node ids.
+	 */
+	public void setDenseNodeIds(long minNodeId, long maxNodeId) {
+		this.denseNodeIds = true;
+		this.minNodeId = minNodeId;
+		this.maxNodeId = maxNodeId;
+	}
+
+	/**
+	 * Create a map that stores the writers of nodes.
+	 */
+	public SparseLong2ShortMapFunction createNodeMap() {
+		if (denseNodeIds)
+			return new DenseLong2ShortMap(minNodeId, maxNodeId, offHeapMaps);
+		return createSparseMap();
+	}
+
 	public boolean isIdsAreNotSorted() {
 		return idsAreNotSorted;
 	}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * DenseLong2ShortMap implements SparseLong2ShortMapFunction with pages
+ * of short values that are indexed directly by the key. A page is
+ * allocated when the first key in its range is stored. Each possible
+ * key in an allocated page needs 2 bytes, so this map is only smaller
+ * than {@link SparseLong2ShortMapInline} if the keys are dense, but
+ * it needs no hashing, chunk switching or decoding on get() and put().
+ * <p>
+ * The pages cover the range of keys that is given to the constructor
+ * and grow when larger keys are stored. Keys before the range are stored
+ * in a SparseLong2ShortMapInline.
+ */
+public class DenseLong2ShortMap implements SparseLong2ShortMapFunction {
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private static final long MAX_KEYS = 1L << 40;
+
+	// the key of the first value in the first page
+	private final long firstKey;
+	private final boolean direct;
+	private short[][] pages;
+	private ShortBuffer[] directPages;
+	// the content of a new direct page
+	private short[] emptyPage;
+	// the number of keys that are covered by the page arrays
+	private long capacity;
+	private int usedPages;
+	// keys before firstKey, created when needed
+	private SparseLong2ShortMapInline others;
+
+	/** What to return on unassigned indices */
+	private short unassigned = UNASSIGNED;
+	private long size;
+
+	/**
+	 * @param minKey the smallest expected key
+	 * @param maxKey the largest expected key
+	 * @param direct true if the pages should be allocated in direct memory
+	 */
+	DenseLong2ShortMap(long minKey, long maxKey, boolean direct) {
+		this.firstKey = minKey & ~(long) PAGE_MASK;
+		this.direct = direct;
+		this.capacity = Math.min(MAX_KEYS, Math.max(0, maxKey - firstKey + 1));
+		clear();
+	}
+
+	@Override
+	public short put(long key, short val) {
+		if (val == unassigned)
+			throw new IllegalArgumentException("Cannot store the value that is reserved as being unassigned. val=" + val);
+		long idx = key - firstKey;
+		if (idx < 0 || idx >= MAX_KEYS){
+			if (others == null){
+				others = new SparseLong2ShortMapInline();
+				others.defaultReturnValue(unassigned);
+			}
+			short old = others.put(key, val);
+			if (old == unassigned)
+				size++;
+			return old;
+		}
+		if (idx >= capacity)
+			grow(idx);
+		int p = (int) (idx >>> PAGE_BITS);
+		int pos = (int) idx & PAGE_MASK;
+		short old;
+		if (direct){
+			ShortBuffer page = directPages[p];
+			if (page == null)
+				page = allocateDirectPage(p);
+			old = page.get(pos);
+			page.put(pos, val);
+		} else {
+			short[] page = pages[p];
+			if (page == null)
+				page = allocatePage(p);
+			old = page[pos];
+			page[pos] = val;
+		}
+		if (old == unassigned)
+			size++;
+		return old;
+	}
+
+	@Override
+	public short get(long key) {
+		long idx = key - firstKey;
+		if (idx >= 0 && idx < capacity){
+			int p = (int) (idx >>> PAGE_BITS);
+			if (direct){
+				ShortBuffer page = directPages[p];
+				return (page == null) ? unassigned : page.get((int) idx & PAGE_MASK);
+			}
+			short[] page = pages[p];
+			return (page == null) ? unassigned : page[(int) idx & PAGE_MASK];
+		}
+		if (others != null && (idx < 0 || idx >= MAX_KEYS))
+			return others.get(key);
+		return unassigned;
+	}
+
+	private void grow(long idx) {
+		int numPages = (int) Math.min(MAX_KEYS >>> PAGE_BITS, Math.max((idx >>> PAGE_BITS) + 1, (capacity >>> PAGE_BITS) * 5 / 4));
+		if (direct)
+			directPages = Arrays.copyOf(directPages, numPages);
+		else
+			pages = Arrays.copyOf(pages, numPages);
+		capacity = (long) numPages << PAGE_BITS;
+	}
+
+	private short[] allocatePage(int p) {
+		short[] page = new short[PAGE_SIZE];
+		Arrays.fill(page, unassigned);
+		pages[p] = page;
+		usedPages++;
+		return page;
+	}
+
+	private ShortBuffer allocateDirectPage(int p) {
+		ShortBuffer page = ByteBuffer.allocateDirect(PAGE_SIZE * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+		if (emptyPage == null || emptyPage[0] != unassigned){
+			emptyPage = new short[PAGE_SIZE];
+			Arrays.fill(emptyPage, unassigned);
+		}
+		page.put(emptyPage);
+		page.rewind();
+		directPages[p] = page;
+		usedPages++;
+		return page;
+	}
+
+	@Override
+	public boolean containsKey(long key) {
+		return get(key) != unassigned;
+	}
+
+	@Override
+	public void clear() {
+		System.out.println(this.getClass().getSimpleName() + ": Allocating pages for ids " + firstKey + " to " + (firstKey + capacity - 1)
+				+ (direct ? " in direct memory" : ""));
+		int numPages = (int) ((capacity + PAGE_MASK) >>> PAGE_BITS);
+		capacity = (long) numPages << PAGE_BITS;
+		if (direct)
+			directPages = new ShortBuffer[numPages];
+		else
+			pages = new short[numPages][];
+		usedPages = 0;
+		others = null;
+		size = 0;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public short defaultReturnValue() {
+		return unassigned;
+	}
+
+	/**
+	 * Set the value that marks unassigned keys. The pages contain this
+	 * value, so it can only be changed while the map is empty.
+	 */
+	@Override
+	public void defaultReturnValue(short arg0) {
+		if (arg0 != unassigned && (usedPages > 0 || others != null))
+			throw new IllegalStateException("The unassigned value of " + this.getClass().getSimpleName() + " cannot be changed after keys were stored");
+		unassigned = arg0;
+	}
+
+	@Override
+	public void stats(int msgLevel) {
+		if (size() == 0){
+			System.out.println("Map is empty");
+			return;
+		}
+		long bytes = (long) usedPages * PAGE_SIZE * 2;
+		System.out.println("Number of stored ids: " + Utils.format(size()) + " require ca. "
+				+ (float) (bytes * 100 / size()) / 100 + " bytes per pair. " + Utils.format(usedPages) + " pages with "
+				+ Utils.format(bytes) + " bytes are used.");
+		if (others != null)
+			others.stats(msgLevel);
+	}
+}
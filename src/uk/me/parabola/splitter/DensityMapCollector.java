@@ -64,6 +64,23 @@ class DensityMapCollector extends AbstractMapProcessor implements MapCollector{
 		int glon = n.getMapLon();
 		densityMap.addNode(glat, glon);
 		details.addToBounds(glat, glon);
+		details.addNodeId(n.getId());
+	}
+
+	@Override
+	public void processNodes(NodeBatch nodes) {
+		for (int i = 0; i < nodes.size(); i++){
+			int glat = nodes.getMapLat(i);
+			int glon = nodes.getMapLon(i);
+			densityMap.addNode(glat, glon);
+			details.addToBounds(glat, glon);
+			details.addNodeId(nodes.getId(i));
+		}
+	}
+
+	@Override
+	public MapDetails getDetails() {
+		return details;
 	}
 
 	@Override
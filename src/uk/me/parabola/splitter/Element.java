@@ -12,15 +12,16 @@
  */
 package uk.me.parabola.splitter;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * @author Steve Ratcliffe
  */
 public class Element {
-	protected ArrayList<Tag> tags; 
+	// the tags as pairs of key id and value id, see TagDictionary
+	private int[] tagIds;
+	private String[] tagValues;
+	private int numTags;
 	private long id;
 
 	
@@ -34,47 +35,58 @@ public class Element {
 
 	public void reset() {
 		this.id = 0;
-		if (tags != null)
-		tags.clear();
-		//tags = null;
+		numTags = 0;
 	}
 
-	class Tag {
-		public Tag(String key,String value) {
-			this.key = key;
-			this.value = value;
-		}
-		public String getKey() {
-			return key;
-		}
-		public String getValue() {
-			return value;
-		}
-		public String toString (){
-			return key + "=" + value;
-		}
-		final public String key,value;
-	}
-	
 	public void addTag(String key, String value) {
-		if (key.equals("created_by"))
+		addTag(TagDictionary.getKeyId(key), TagDictionary.getValueId(value), value);
+	}
+
+	/**
+	 * Add a tag that was already resolved with the {@link TagDictionary}.
+	 * @param valueId the id of the value or {@link TagDictionary#NO_ID}
+	 */
+	void addTag(int keyId, int valueId, String value) {
+		if (TagDictionary.isDropped(keyId, value))
 			return;
 		// Most elements are nodes. Most nodes have no tags. Create the tag table lazily
-		if (tags == null)
-			tags = new ArrayList<Tag>(4);
-
-		tags.add(new Tag(key, value));
+		if (tagIds == null) {
+			tagIds = new int[8];
+			tagValues = new String[4];
+		} else if (numTags >= tagValues.length) {
+			tagIds = Arrays.copyOf(tagIds, tagIds.length * 2);
+			tagValues = Arrays.copyOf(tagValues, tagValues.length * 2);
+		}
+		tagIds[2 * numTags] = keyId;
+		tagIds[2 * numTags + 1] = valueId;
+		tagValues[numTags] = value;
+		++numTags;
 	}
 
 	public boolean hasTags() {
-		return tags != null && !tags.isEmpty();
+		return numTags > 0;
+	}
+
+	public int getTagCount() {
+		return numTags;
+	}
+
+	public String getTagKey(int i) {
+		return TagDictionary.get(tagIds[2 * i]);
+	}
+
+	public String getTagValue(int i) {
+		return tagValues[i];
 	}
 
-	public Iterator<Tag> tagsIterator() {
-		if (tags == null)
-			return Collections.EMPTY_LIST.iterator();
+	int getTagKeyId(int i) {
+		return tagIds[2 * i];
+	}
 
-		//Map.Entry<String,String> foo=new Map.Entry<String,String>("A","B");
-		return tags.iterator();
+	/**
+	 * @return the id of the value or {@link TagDictionary#NO_ID}
+	 */
+	int getTagValueId(int i) {
+		return tagIds[2 * i + 1];
 	}
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.util.Arrays;
+
+/**
+ * Base class for a reusable block of elements that are stored in
+ * primitive arrays. The tags of element i are stored at the positions
+ * getTagStart(i) to getTagEnd(i)-1.
+ */
+public abstract class ElementBatch {
+	protected static final int INITIAL_SIZE = 1024;
+	protected int size;
+	protected long[] ids = new long[INITIAL_SIZE];
+	private int[] tagStart = new int[INITIAL_SIZE + 1];
+	// key and value ids of the tags, see TagDictionary
+	private int[] keys = new int[INITIAL_SIZE];
+	private int[] valueIds = new int[INITIAL_SIZE];
+	private String[] values = new String[INITIAL_SIZE];
+	private int numTags;
+
+	/**
+	 * @return the number of elements in this batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * Remove all elements. The arrays are kept for reuse.
+	 */
+	public void clear() {
+		size = 0;
+		numTags = 0;
+	}
+
+	/**
+	 * Append a new element, the tags of it have to be added
+	 * with {@link #addTag(String, String)} before the next element is added.
+	 * @param id the id of the element
+	 */
+	protected void addElement(long id) {
+		if (size + 1 >= ids.length)
+			grow(ids.length * 2);
+		ids[size] = id;
+		tagStart[size] = numTags;
+		++size;
+		tagStart[size] = numTags;
+	}
+
+	/**
+	 * Enlarge the arrays that are indexed by the element number.
+	 * @param newSize the new length
+	 */
+	protected void grow(int newSize) {
+		ids = Arrays.copyOf(ids, newSize);
+		tagStart = Arrays.copyOf(tagStart, newSize + 1);
+	}
+
+	/**
+	 * Add a tag to the last added element.
+	 */
+	public void addTag(String key, String value) {
+		addTag(TagDictionary.getKeyId(key), TagDictionary.getValueId(value), value);
+	}
+
+	/**
+	 * Add a tag that was already resolved with the {@link TagDictionary}
+	 * to the last added element.
+	 * @param valueId the id of the value or {@link TagDictionary#NO_ID}
+	 */
+	void addTag(int keyId, int valueId, String value) {
+		if (TagDictionary.isDropped(keyId, value))
+			return;
+		if (numTags >= keys.length){
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			valueIds = Arrays.copyOf(valueIds, valueIds.length * 2);
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+		keys[numTags] = keyId;
+		valueIds[numTags] = valueId;
+		values[numTags] = value;
+		++numTags;
+		tagStart[size] = numTags;
+	}
+
+	public int getTagStart(int i) {
+		return tagStart[i];
+	}
+
+	public int getTagEnd(int i) {
+		return tagStart[i + 1];
+	}
+
+	public String getKey(int tagPos) {
+		return TagDictionary.get(keys[tagPos]);
+	}
+
+	public String getValue(int tagPos) {
+		return values[tagPos];
+	}
+
+	int getKeyId(int tagPos) {
+		return keys[tagPos];
+	}
+
+	/**
+	 * @return the id of the value or {@link TagDictionary#NO_ID}
+	 */
+	int getValueId(int tagPos) {
+		return valueIds[tagPos];
+	}
+
+	/**
+	 * Add the tags of element i of another batch to the last added element.
+	 */
+	protected void addTags(ElementBatch other, int i) {
+		int end = other.tagStart[i + 1];
+		for (int t = other.tagStart[i]; t < end; t++)
+			addTag(other.keys[t], other.valueIds[t], other.values[t]);
+	}
+
+	/**
+	 * Add the tags of an element to the last added element.
+	 */
+	public void addTags(Element el) {
+		for (int t = 0; t < el.getTagCount(); t++)
+			addTag(el.getTagKeyId(t), el.getTagValueId(t), el.getTagValue(t));
+	}
+
+	/**
+	 * Add the tags of element i to the given element.
+	 */
+	protected void copyTags(int i, Element el) {
+		int end = tagStart[i + 1];
+		for (int t = tagStart[i]; t < end; t++)
+			el.addTag(keys[t], valueIds[t], values[t]);
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Describes the blocks of a pbf file or the segments between the reset
+ * flags of an o5m file: the file position, the types of the
+ * contained elements, the range of their ids and the bounding box
+ * of the contained nodes.
+ * The index is collected when a file is read for the first time and
+ * saved in a file next to the input file, so that later runs can skip
+ * the blocks that are not needed already in the first pass.
+ */
+public class FileIndex {
+	/** the block contains dense nodes */
+	public static final short TYPE_DENSE = 0x1;
+	/** the block contains nodes */
+	public static final short TYPE_NODES = 0x2;
+	/** the block contains ways */
+	public static final short TYPE_WAYS = 0x4;
+	/** the block contains relations */
+	public static final short TYPE_RELS = 0x8;
+	/** the types that are stored in node blocks */
+	public static final short TYPE_ANY_NODES = TYPE_DENSE | TYPE_NODES;
+
+	public static final byte FORMAT_PBF = 1;
+	public static final byte FORMAT_O5M = 2;
+
+	private static final String SUFFIX = ".idx";
+	private static final int MAGIC = 0x53504c49; // "SPLI"
+	private static final int VERSION = 2;
+
+	private final byte format;
+	private final LongArrayList offsets = new LongArrayList();
+	private final ShortArrayList types = new ShortArrayList();
+	private final LongArrayList minIds = new LongArrayList();
+	private final LongArrayList maxIds = new LongArrayList();
+	// bounding box of the nodes in map units, minLat > maxLat if not known
+	private final IntArrayList minLats = new IntArrayList();
+	private final IntArrayList minLons = new IntArrayList();
+	private final IntArrayList maxLats = new IntArrayList();
+	private final IntArrayList maxLons = new IntArrayList();
+	// o5m: the position of the first data set of each type
+	private long[] firstPosInFile;
+
+	public FileIndex(byte format) {
+		this.format = format;
+	}
+
+	/**
+	 * Add the next block.
+	 * @param offset the file position of the block
+	 * @param type the combination of the TYPE_ flags for the elements in the block
+	 * @param minId the lowest id of an element in the block
+	 * @param maxId the highest id of an element in the block
+	 * @param bounds the bounding box of the nodes in the block or null
+	 * if it is not known
+	 */
+	public void addBlock(long offset, short type, long minId, long maxId, Area bounds) {
+		if (bounds == null)
+			addBlock(offset, type, minId, maxId, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+		else 
+			addBlock(offset, type, minId, maxId, bounds.getMinLat(), bounds.getMinLong(), bounds.getMaxLat(), bounds.getMaxLong());
+	}
+
+	private void addBlock(long offset, short type, long minId, long maxId, 
+			int minLat, int minLon, int maxLat, int maxLon) {
+		offsets.add(offset);
+		types.add(type);
+		minIds.add(minId);
+		maxIds.add(maxId);
+		minLats.add(minLat);
+		minLons.add(minLon);
+		maxLats.add(maxLat);
+		maxLons.add(maxLon);
+	}
+
+	public int size() {
+		return offsets.size();
+	}
+
+	public long getOffset(int i) {
+		return offsets.getLong(i);
+	}
+
+	public short getType(int i) {
+		return types.getShort(i);
+	}
+
+	public long getMinId(int i) {
+		return minIds.getLong(i);
+	}
+
+	public long getMaxId(int i) {
+		return maxIds.getLong(i);
+	}
+
+	/**
+	 * @return the bounding box of the nodes in block i or null 
+	 * if the block contains no nodes or the box is not known
+	 */
+	public Area getBounds(int i) {
+		if (minLats.getInt(i) > maxLats.getInt(i))
+			return null;
+		return new Area(minLats.getInt(i), minLons.getInt(i), maxLats.getInt(i), maxLons.getInt(i));
+	}
+
+	public long[] getFirstPosInFile() {
+		return firstPosInFile;
+	}
+
+	public void setFirstPosInFile(long[] firstPosInFile) {
+		this.firstPosInFile = firstPosInFile;
+	}
+
+	private static File getIndexFile(String filename) {
+		return new File(filename + SUFFIX);
+	}
+
+	/**
+	 * Read the index of the given input file.
+	 * @param filename the name of the input file
+	 * @param format the expected format
+	 * @return the index or null if there is no index for the current version of the file
+	 */
+	public static FileIndex load(String filename, byte format) {
+		File input = new File(filename);
+		File indexFile = getIndexFile(filename);
+		if (!indexFile.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+				if (in.readByte() != format || in.readLong() != input.length() || in.readLong() != input.lastModified())
+					return null;
+				FileIndex index = new FileIndex(format);
+				int size = in.readInt();
+				for (int i = 0; i < size; i++)
+					index.addBlock(in.readLong(), in.readShort(), in.readLong(), in.readLong(),
+							in.readInt(), in.readInt(), in.readInt(), in.readInt());
+				int numPos = in.readInt();
+				if (numPos > 0) {
+					index.firstPosInFile = new long[numPos];
+					for (int i = 0; i < numPos; i++)
+						index.firstPosInFile[i] = in.readLong();
+				}
+				return index;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Ignoring unreadable index file " + indexFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Write the index next to the input file.
+	 * @param filename the name of the input file
+	 */
+	public void save(String filename) {
+		File input = new File(filename);
+		File indexFile = getIndexFile(filename);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeByte(format);
+				out.writeLong(input.length());
+				out.writeLong(input.lastModified());
+				out.writeInt(size());
+				for (int i = 0; i < size(); i++) {
+					out.writeLong(offsets.getLong(i));
+					out.writeShort(types.getShort(i));
+					out.writeLong(minIds.getLong(i));
+					out.writeLong(maxIds.getLong(i));
+					out.writeInt(minLats.getInt(i));
+					out.writeInt(minLons.getInt(i));
+					out.writeInt(maxLats.getInt(i));
+					out.writeInt(maxLons.getInt(i));
+				}
+				if (firstPosInFile == null)
+					out.writeInt(0);
+				else {
+					out.writeInt(firstPosInFile.length);
+					for (long pos : firstPosInFile)
+						out.writeLong(pos);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Cannot write index file " + indexFile + ": " + e.getMessage());
+			indexFile.delete();
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Combines the elements of several input files that are read at the
+ * same time. Each file is read by its own thread that passes the elements
+ * to a source of this class. The merge stage passes the elements to the
+ * processor ordered by type (nodes, ways, relations) and id. An element
+ * that is contained in more than one file is passed only once.
+ *
+ * The order is only guaranteed when the ids in each file are sorted.
+ */
+class InputMerger {
+	private static final int BATCH_SIZE = 4096;
+	private static final int QUEUE_SIZE = 8;
+	private static final Object END_OF_FILE = new Object();
+
+	private static final int RANK_NODE = 0;
+	private static final int RANK_WAY = 1;
+	private static final int RANK_REL = 2;
+
+	private final MapProcessor processor;
+	private final ArrayList<Source> sources = new ArrayList<Source>();
+	private final NodeBatch nodeBatch = new NodeBatch();
+	private final WayBatch wayBatch = new WayBatch();
+	private boolean unsortedReported;
+
+	InputMerger(MapProcessor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * Create a new source. The reader of the file must pass the
+	 * elements to the returned processor and call {@link #finish(MapProcessor)}
+	 * when the file was read.
+	 * @return the processor that collects the elements of one input file
+	 */
+	public MapProcessor addSource() {
+		Source source = new Source();
+		sources.add(source);
+		return source;
+	}
+
+	/**
+	 * Signal that the file of the source was read completely.
+	 */
+	public void finish(MapProcessor source) {
+		((Source) source).put(END_OF_FILE);
+	}
+
+	/**
+	 * Signal that the reader of the source failed. The elements that
+	 * were read are still merged, the error is reported by 
+	 * {@link #throwReaderError()}.
+	 */
+	public void fail(MapProcessor source, Throwable error) {
+		((Source) source).error = error;
+		finish(source);
+	}
+
+	/**
+	 * Throw the error of the first source that failed, if any. Must be 
+	 * called after {@link #merge()}.
+	 */
+	public void throwReaderError() {
+		for (Source source : sources) {
+			Throwable error = source.error;
+			if (error == null)
+				continue;
+			if (error instanceof RuntimeException)
+				throw (RuntimeException) error;
+			if (error instanceof Error)
+				throw (Error) error;
+			throw new RuntimeException(error);
+		}
+	}
+
+	/**
+	 * Pass the elements of all sources to the processor. Returns when all
+	 * sources are finished.
+	 */
+	public void merge() {
+		for (Source source : sources)
+			source.advance();
+		int lastRank = RANK_NODE;
+		long lastId = Long.MIN_VALUE;
+		while (true) {
+			Source best = null;
+			for (Source source : sources) {
+				if (source.chunk != END_OF_FILE && (best == null || source.compareTo(best) < 0))
+					best = source;
+			}
+			if (best == null)
+				break;
+			int rank = best.rank;
+			long id = best.id;
+			if ((rank < lastRank || rank == lastRank && id < lastId) && !unsortedReported) {
+				System.out.println("Warning: the input files are not sorted by type and id, duplicates may not be removed.");
+				unsortedReported = true;
+			}
+			lastRank = rank;
+			lastId = id;
+			pass(best);
+			// skip the copies of the element in the other files
+			for (Source source : sources) {
+				while (source.chunk != END_OF_FILE && source.rank == rank && source.id == id)
+					source.advance();
+			}
+		}
+		flushNodes();
+		flushWays();
+	}
+
+	/**
+	 * Pass the current element of the source to the processor.
+	 */
+	private void pass(Source source) {
+		if (source.rank == RANK_NODE) {
+			flushWays();
+			nodeBatch.add((NodeBatch) source.chunk, source.pos);
+			if (nodeBatch.size() >= BATCH_SIZE)
+				flushNodes();
+		} else if (source.rank == RANK_WAY) {
+			flushNodes();
+			wayBatch.add((WayBatch) source.chunk, source.pos);
+			if (wayBatch.size() >= BATCH_SIZE)
+				flushWays();
+		} else {
+			flushNodes();
+			flushWays();
+			processor.processRelation((Relation) source.chunk);
+		}
+	}
+
+	private void flushNodes() {
+		if (nodeBatch.size() == 0)
+			return;
+		processor.processNodes(nodeBatch);
+		nodeBatch.clear();
+	}
+
+	private void flushWays() {
+		if (wayBatch.size() == 0)
+			return;
+		processor.processWays(wayBatch);
+		wayBatch.clear();
+	}
+
+	/**
+	 * Collects the elements of one input file. The parser of the file
+	 * runs in its own thread, the merge stage takes the elements from the queue.
+	 */
+	private class Source extends AbstractMapProcessor implements Comparable<Source> {
+		private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+		// the current chunk: a NodeBatch, a WayBatch, a Relation or END_OF_FILE
+		private Object chunk;
+		// the position and key of the current element in the chunk
+		private int pos;
+		private int rank;
+		private long id;
+		// the error of the reader, set before END_OF_FILE is queued
+		private volatile Throwable error;
+
+		@Override
+		public boolean isStartNodeOnly() {
+			return processor.isStartNodeOnly();
+		}
+
+		@Override
+		public boolean skipTags() {
+			return processor.skipTags();
+		}
+
+		@Override
+		public boolean skipNodes() {
+			return processor.skipNodes();
+		}
+
+		@Override
+		public boolean skipWays() {
+			return processor.skipWays();
+		}
+
+		@Override
+		public boolean skipRels() {
+			return processor.skipRels();
+		}
+
+		@Override
+		public boolean skipNodeBlock(Area bounds, long minId, long maxId) {
+			// the processor is not thread-safe and is used by the merge 
+			// stage at the same time, so all blocks are read 
+			return false;
+		}
+
+		@Override
+		public void boundTag(Area bounds) {
+			put(bounds);
+		}
+
+		@Override
+		public void processNode(Node n) {
+			NodeBatch nodes = new NodeBatch();
+			nodes.add(n.getId(), n.getFixedLat(), n.getFixedLon());
+			nodes.addTags(n);
+			put(nodes);
+		}
+
+		@Override
+		public void processNodes(NodeBatch nodes) {
+			// the reader reuses the batch
+			NodeBatch copy = new NodeBatch();
+			for (int i = 0; i < nodes.size(); i++)
+				copy.add(nodes, i);
+			put(copy);
+		}
+
+		@Override
+		public void processWay(Way w) {
+			WayBatch ways = new WayBatch();
+			ways.add(w.getId());
+			for (int i = 0; i < w.getRefs().size(); i++)
+				ways.addRef(w.getRefs().getLong(i));
+			ways.addTags(w);
+			put(ways);
+		}
+
+		@Override
+		public void processWays(WayBatch ways) {
+			WayBatch copy = new WayBatch();
+			for (int i = 0; i < ways.size(); i++)
+				copy.add(ways, i);
+			put(copy);
+		}
+
+		@Override
+		public void processRelation(Relation r) {
+			put(r);
+		}
+
+		void put(Object part) {
+			try {
+				queue.put(part);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Move to the next element. Bounds are passed to the processor
+		 * as soon as they are found.
+		 */
+		void advance() {
+			if (chunk instanceof ElementBatch && ++pos < ((ElementBatch) chunk).size()) {
+				id = ((ElementBatch) chunk).getId(pos);
+				return;
+			}
+			while (true) {
+				try {
+					chunk = queue.take();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				pos = 0;
+				if (chunk == END_OF_FILE)
+					return;
+				if (chunk instanceof Area) {
+					processor.boundTag((Area) chunk);
+					continue;
+				}
+				if (chunk instanceof Relation) {
+					rank = RANK_REL;
+					id = ((Relation) chunk).getId();
+					return;
+				}
+				ElementBatch batch = (ElementBatch) chunk;
+				if (batch.size() == 0)
+					continue;
+				rank = (batch instanceof NodeBatch) ? RANK_NODE : RANK_WAY;
+				id = batch.getId(0);
+				return;
+			}
+		}
+
+		public int compareTo(Source other) {
+			if (rank != other.rank)
+				return rank < other.rank ? -1 : 1;
+			if (id != other.id)
+				return id < other.id ? -1 : 1;
+			return 0;
+		}
+	}
+}
@@ -12,14 +12,14 @@
  */
  package uk.me.parabola.splitter;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 
@@ -27,10 +27,25 @@ import java.util.Arrays;
  * Stores long/short pairs. 
  * Requires less heap space compared to a HashMap while updates are allowed, and almost no
  * heap when sequential access is used. This is NOT a general purpose class.
+ * <p>
+ * In the temp file that is used for sequential access each pair is stored as
+ * the varint encoded difference to the previous key and the varint encoded
+ * position of the value in a dictionary, the most frequent values have the
+ * lowest positions. The pairs are grouped into blocks, the first key and the
+ * file position of each block are kept in a sparse index, so that a reader
+ * can start with the block that contains the first requested key. The file
+ * is read through memory mapped segments.
  * 
  * @author GerdP 
  */
 class Long2IntClosedMap implements Long2IntClosedMapFunction{
+	// number of pairs in a block of the temp file
+	private static final int BLOCK_SIZE = 1024;
+	// size of the memory mapped parts of the temp file
+	private static final int SEGMENT_SIZE = 1 << 26;
+	// every 2^SAMPLE_SHIFT-th key is copied to the search index
+	private static final int SAMPLE_SHIFT = 6;
+
 	private File tmpFile;
 	private final String name;
 	private long [] keys;
@@ -38,9 +53,22 @@ class Long2IntClosedMap implements Long2IntClosedMapFunction{
 	private final int maxSize;
 	private final int unassigned; 
 	private int size;
-	private long currentKey;
-	private int currentVal;
-	private DataInputStream dis;
+	// a copy of every 64th key, a binary search in this small array
+	// finds the part of keys that contains a key 
+	private long[] samples;
+	// the number of keys that are covered by samples
+	private int indexedSize;
+	// the values that are stored in the temp file, the most frequent first
+	private int[] valueDict;
+	// the sparse index: first key and file position of each block
+	private long[] blockKeys;
+	private long[] blockPos;
+	private int numBlocks;
+	private long fileLength;
+	private RandomAccessFile raf;
+	private Cursor cursor;
+	// a second reader for the sequential range checks
+	private Cursor rangeCursor;
 	
 	
 	public Long2IntClosedMap(String name, int maxSize, int unassigned) {
@@ -70,27 +98,88 @@ class Long2IntClosedMap implements Long2IntClosedMapFunction{
 	public void switchToSeqAccess(File directory) throws IOException {
 		tmpFile = File.createTempFile(name,null,directory);
 		tmpFile.deleteOnExit();
+		int[] codes = createValueDict();
 		FileOutputStream fos = new FileOutputStream(tmpFile);
-		BufferedOutputStream stream = new BufferedOutputStream(fos);
-		DataOutputStream dos = new DataOutputStream(stream);
+		OutputStream stream = new BufferedOutputStream(fos);
+		blockKeys = new long[size / BLOCK_SIZE + 1];
+		blockPos = new long[blockKeys.length];
+		numBlocks = 0;
+		long pos = 0;
 		long lastKey = Long.MIN_VALUE;
+		int inBlock = BLOCK_SIZE;
 		for (int i = 0; i <  size; i++){
 			long key = keys[i];
 			int val = vals[i];
 			assert i == 0  | lastKey < key;
-			lastKey = key;
 			if (val != unassigned){
-				dos.writeLong(key);
-				dos.writeInt(val);
+				if (inBlock == BLOCK_SIZE){
+					blockKeys[numBlocks] = key;
+					blockPos[numBlocks] = pos;
+					numBlocks++;
+					lastKey = key;
+					inBlock = 0;
+				}
+				pos += writeVarLong(key - lastKey, stream);
+				pos += writeVarLong(codes[Arrays.binarySearch(valueDict, val)], stream);
+				lastKey = key;
+				inBlock++;
 			}
 		}
-		// write sentinel
-		dos.writeLong(Long.MAX_VALUE);
-		dos.writeInt(Integer.MAX_VALUE);
-		dos.close();
+		stream.close();
+		fileLength = pos;
+		// the dictionary is ordered by value now, reorder it by code
+		int[] dict = new int[valueDict.length];
+		for (int i = 0; i < valueDict.length; i++)
+			dict[codes[i]] = valueDict[i];
+		valueDict = dict;
 		keys = null;
 		vals = null;
-		System.out.println("Wrote " + size + " " + name + " pairs to " + tmpFile.getAbsolutePath());
+		samples = null;
+		System.out.println("Wrote " + size + " " + name + " pairs to " + tmpFile.getAbsolutePath() + " (" + Utils.format(fileLength) + " bytes)");
+	}
+
+	/**
+	 * Fill valueDict with the distinct assigned values in ascending order.
+	 * @return the code for each value in valueDict, the most frequent value
+	 * has the code 0
+	 */
+	private int[] createValueDict() {
+		int[] sorted = Arrays.copyOf(vals, size);
+		Arrays.sort(sorted);
+		int[] counts = new int[size];
+		int n = 0;
+		for (int i = 0; i < size; i++){
+			if (sorted[i] == unassigned)
+				continue;
+			if (n > 0 && sorted[n-1] == sorted[i])
+				counts[n-1]++;
+			else {
+				sorted[n] = sorted[i];
+				counts[n] = 1;
+				n++;
+			}
+		}
+		valueDict = Arrays.copyOf(sorted, n);
+		// sort by frequency, the position in valueDict is in the lower bits
+		long[] byCount = new long[n];
+		for (int i = 0; i < n; i++)
+			byCount[i] = ((long) counts[i] << 32) | i;
+		Arrays.sort(byCount);
+		int[] codes = new int[n];
+		for (int i = 0; i < n; i++)
+			codes[(int) byCount[n - 1 - i]] = i;
+		return codes;
+	}
+
+	private static int writeVarLong(long v, OutputStream stream) throws IOException {
+		int len = 1;
+		while ((v & ~0x7fL) != 0){
+			stream.write((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+			len++;
+		}
+		stream.write((int) v);
+		return len;
 	}
 
 	@Override
@@ -116,46 +205,159 @@ class Long2IntClosedMap implements Long2IntClosedMapFunction{
 		if (keys == null){
 			throw new IllegalArgumentException("random access on sequential-only map requested");
 		}
-		
-		int pos = Arrays.binarySearch(keys,0,size, key);
-		return pos;
+		// rebuild the index when the number of keys that were added since
+		// the last build exceeds the number of indexed keys
+		if (size - indexedSize > indexedSize)
+			buildIndex();
+		if (indexedSize == 0 || key > keys[indexedSize - 1])
+			return Arrays.binarySearch(keys, indexedSize, size, key);
+		int s = Arrays.binarySearch(samples, 0, (indexedSize + (1 << SAMPLE_SHIFT) - 1) >> SAMPLE_SHIFT, key);
+		if (s >= 0)
+			return s << SAMPLE_SHIFT;
+		s = -s - 2;
+		if (s < 0)
+			return -1;
+		int from = s << SAMPLE_SHIFT;
+		int to = Math.min(indexedSize, from + (1 << SAMPLE_SHIFT));
+		return Arrays.binarySearch(keys, from, to, key);
+	}
+
+	private void buildIndex() {
+		int numSamples = (size + (1 << SAMPLE_SHIFT) - 1) >> SAMPLE_SHIFT;
+		if (samples == null || samples.length < numSamples)
+			samples = new long[numSamples];
+		for (int i = 0; i < numSamples; i++)
+			samples[i] = keys[i << SAMPLE_SHIFT];
+		indexedSize = size;
+	}
+
+	@Override
+	public int getAtPos(int pos) {
+		return vals[pos];
+	}
+
+	@Override
+	public int replaceAtPos(int pos, int val) {
+		int oldVal = vals[pos];
+		vals[pos] = val;
+		return oldVal;
 	}
 
 	@Override
 	public int getSeq(long id){
-		if (currentKey == Long.MIN_VALUE){
-			try{
-				open();
-			} catch (IOException e) {
-				// TODO: handle exception
-			}
-			readPair();
-		}
-		while(id > currentKey)
-			readPair();
-		if (id < currentKey){
+		if (cursor == null)
+			cursor = new Cursor();
+		cursor.skipTo(id);
+		if (id < cursor.key){
 			return unassigned;
 		}
-		return currentVal;
+		return cursor.val;
+
+	}
 
+	@Override
+	public boolean containsKeyInRange(long minKey, long maxKey) {
+		if (keys != null){
+			int pos = getKeyPos(minKey);
+			if (pos < 0)
+				pos = -pos - 1;
+			return pos < size && keys[pos] <= maxKey;
+		}
+		if (rangeCursor == null)
+			rangeCursor = new Cursor();
+		rangeCursor.skipTo(minKey);
+		return rangeCursor.key <= maxKey;
 	}
 
-	private void readPair() {
+	/**
+	 * Map the part of the temp file that starts at the given position. 
+	 */
+	private MappedByteBuffer map(long start) {
 		try {
-			if (dis == null)
-				open();
-			currentKey = dis.readLong();
-			currentVal = dis.readInt();
+			if (raf == null)
+				raf = new RandomAccessFile(tmpFile, "r");
+			long len = Math.min(SEGMENT_SIZE, fileLength - start);
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, len);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new RuntimeException("failed to read temp file " + tmpFile.getAbsolutePath(), e);
 		}
 	}
 
-	void open() throws IOException{
-		FileInputStream fis = new FileInputStream(tmpFile);
-		BufferedInputStream stream = new BufferedInputStream(fis);
-		dis = new DataInputStream(stream);
+	/**
+	 * Reads the pairs of the temp file in key order. A block is always
+	 * completely contained in the mapped segment.
+	 */
+	private class Cursor {
+		private MappedByteBuffer segment;
+		private long segmentStart;
+		private int block = -1;
+		// position in segment where the current block ends
+		private int blockEnd;
+		long key = Long.MIN_VALUE;
+		int val = unassigned;
+
+		/**
+		 * Move to the first pair with a key that is not lower than id.
+		 * Whole blocks before that key are skipped.
+		 */
+		void skipTo(long id) {
+			if (id <= key)
+				return;
+			int next = block + 1;
+			if (next < numBlocks && (block < 0 || blockKeys[next] <= id)){
+				int b = Arrays.binarySearch(blockKeys, next, numBlocks, id);
+				if (b < 0)
+					b = Math.max(next, -b - 2);
+				startBlock(b);
+			}
+			while (key < id)
+				readPair();
+		}
+
+		private void startBlock(int b) {
+			block = b;
+			long start = blockPos[b];
+			long end = (b + 1 < numBlocks) ? blockPos[b + 1] : fileLength;
+			if (segment == null || start < segmentStart || end > segmentStart + segment.capacity()){
+				segment = map(start);
+				segmentStart = start;
+			}
+			segment.position((int) (start - segmentStart));
+			blockEnd = (int) (end - segmentStart);
+			// the first key of a block is stored as difference 0
+			key = blockKeys[b] + readVarLong();
+			readValue();
+		}
+
+		private void readPair() {
+			if (segment == null || segment.position() >= blockEnd){
+				if (block + 1 >= numBlocks){
+					key = Long.MAX_VALUE;
+					val = unassigned;
+					return;
+				}
+				startBlock(block + 1);
+				return;
+			}
+			key += readVarLong();
+			readValue();
+		}
+
+		private void readValue() {
+			val = valueDict[(int) readVarLong()];
+		}
+
+		private long readVarLong() {
+			long v = 0;
+			int shift = 0;
+			while (true){
+				int b = segment.get();
+				v |= (long) (b & 0x7f) << shift;
+				if (b >= 0)
+					return v;
+				shift += 7;
+			}
+		}
 	}
 
 	@Override
@@ -173,10 +375,12 @@ class Long2IntClosedMap implements Long2IntClosedMapFunction{
 
 	@Override
 	public void close() throws IOException {
-		currentKey = Long.MIN_VALUE;
-		currentVal = unassigned;
-		if (dis != null)
-			dis.close();
+		cursor = null;
+		rangeCursor = null;
+		if (raf != null){
+			raf.close();
+			raf = null;
+		}
 	}
 
 	@Override
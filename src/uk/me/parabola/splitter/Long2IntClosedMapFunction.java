@@ -68,6 +68,28 @@ interface Long2IntClosedMapFunction {
 	 * @return the position or a negative value to indicate "not found"
 	 */
 	public int getKeyPos(long key);
+	/**
+	 * Return the value at a position that was returned by {@link #getKeyPos(long)}.
+	 * @param pos the position
+	 * @return the value
+	 */
+	public int getAtPos(int pos);
+	/**
+	 * Replace the value at a position that was returned by {@link #getKeyPos(long)}.
+	 * @param pos the position
+	 * @param val the new value
+	 * @return the previously stored value
+	 */
+	public int replaceAtPos(int pos, int val);
+	/**
+	 * Check if the map contains a key in the given range. With sequential 
+	 * access, the ranges must be given in increasing order. The position
+	 * used by {@link #getSeq(long)} is not changed.
+	 * @param minKey the lowest key of the range
+	 * @param maxKey the highest key of the range
+	 * @return true if at least one key in the range exists 
+	 */
+	public boolean containsKeyInRange(long minKey, long maxKey);
 	/**
 	 * Replace the value for an existing key.
 	 * @param key
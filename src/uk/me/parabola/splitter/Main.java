@@ -13,8 +13,6 @@
 
 package uk.me.parabola.splitter;
 
-import crosby.binary.file.BlockInputStream;
-
 import org.openstreetmap.osmosis.core.filter.common.PolygonFileReader;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -27,7 +25,6 @@ import uk.me.parabola.splitter.geo.DefaultCityFinder;
 import uk.me.parabola.splitter.geo.DummyCityFinder;
 
 import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.shorts.ShortArrayList;
 
 import java.awt.Point;
 import java.awt.Rectangle;
@@ -41,8 +38,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.PrintWriter;
-import java.io.Reader;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -102,6 +97,21 @@ public class Main {
 	// Whether or not the source OSM file(s) contain strictly nodes first, then ways, then rels,
 	// or they're all mixed up. Running with mixed enabled takes longer.
 	private boolean mixed;
+	// Whether or not the input files are read at the same time and merged
+	private boolean mergeInput;
+	// Whether or not the input is written to a spool file in the first pass
+	private boolean spoolInput;
+	// true if the maps of the split passes are stored in direct memory
+	private boolean offHeapMaps;
+	// the node map is directly indexed by the ids if more than this part of the id range is used
+	private static final double DENSE_NODE_ID_DENSITY = 0.5;
+	// the range of node ids if they are dense, measured in the first pass
+	private boolean denseNodeIds;
+	private long minNodeId;
+	private long maxNodeId;
+	// The spool file, it is complete after the first pass
+	private File spoolFile;
+	private boolean spoolComplete;
 	// A polygon file in osmosis polygon format
 	private String polygonFile;
 	private java.awt.geom.Area polygon;
@@ -130,10 +140,8 @@ public class Main {
 	private TreeSet<Long> calculatedProblemWays = new TreeSet<Long>();
 	private TreeSet<Long> calculatedProblemRels = new TreeSet<Long>();
 	
-	// for faster access on blocks in pbf files
-	private final HashMap<String, ShortArrayList> blockTypeMap = new HashMap<String, ShortArrayList>(); 
-	// for faster access on blocks in o5m files
-	private final HashMap<String, long[]> skipArrayMap = new HashMap<String, long[]>();
+	// for faster access on blocks in pbf and o5m files
+	private final HashMap<String, FileIndex> fileIndexMap = new HashMap<String, FileIndex>(); 
 
 	private String stopAfter;
 	
@@ -143,7 +151,7 @@ public class Main {
 		m.start(args);
 	}
 
-	private void start(String[] args) {
+	void start(String[] args) {
 		readArgs(args);
 		if (statusFreq > 0) {
 			JVMHealthMonitor.start(statusFreq);
@@ -178,19 +186,13 @@ public class Main {
 		}
 
 		if (filenames.isEmpty()) {
-			if (areaList == null) {
-				throw new IllegalArgumentException("No .osm files were supplied so --split-file must be specified");
-			} else {
-				int areaCount = areaList.getAreas().size();
-				int passes = getAreasPerPass(areaCount);
-				if (passes > 1) {
-					throw new IllegalArgumentException("No .osm files were supplied, but stdin cannot be used because " + passes
-							+ " passes are required to write out the areas. Increase --max-areas to match the number of areas (" + areaCount + ')');
-				}
-				if (problemRels.isEmpty() == false || problemWays.isEmpty() != false){
-					throw new IllegalArgumentException("No .osm files were supplied, but stdin cannot be used because with problem-file."); 
-				}
-				useStdIn = true;
+			useStdIn = true;
+			// stdin can be read only once, later passes have to read the spool file 
+			boolean singlePass = areaList != null && getAreasPerPass(areaList.getAreas().size()) <= 1
+					&& !keepComplete && problemWays.isEmpty() && problemRels.isEmpty();
+			if (!singlePass && !spoolInput) {
+				System.out.println("No .osm files were supplied, the data from stdin is written to a spool file for the later passes.");
+				spoolInput = true;
 			}
 		}
 
@@ -296,6 +298,9 @@ public class Main {
 			resolution = 13;
 		}
 		mixed = params.isMixed();
+		mergeInput = params.isMergeInput();
+		spoolInput = params.isSpoolInput();
+		offHeapMaps = params.isOffHeapMaps();
 		statusFreq = params.getStatusFreq();
 		
 		String outputDir = params.getOutputDir();
@@ -316,6 +321,16 @@ public class Main {
 			if (!readProblemIds(problemFile))
 				System.exit(-1);
 		}
+		String keepTags = params.getKeepTags();
+		String dropTags = params.getDropTags();
+		if (keepTags != null || dropTags != null){
+			TagFilter tagFilter = new TagFilter();
+			if (keepTags != null && !tagFilter.readRules(keepTags, true))
+				System.exit(-1);
+			if (dropTags != null && !tagFilter.readRules(dropTags, false))
+				System.exit(-1);
+			TagDictionary.setFilter(tagFilter);
+		}
 		keepComplete = params.isKeepComplete();
 		if (mixed && (keepComplete || problemFile != null)){
 			System.err.println("--mixed=true is not supported in combination with --keep-complete=true or --problem-file.");
@@ -325,12 +340,8 @@ public class Main {
 		overlapAmount = params.getOverlap();
 		
 		if (keepComplete){
-			if (filenames.size() > 1){
-				System.err.println("--keep-complete is not supported for multiple input files. Please execute splitter once for each file.");
-				System.exit(-1);
-			}
-			if (filenames.isEmpty()){
-				System.err.println("stdin cannot be used with --keep-complete because multiple read passes are needed.");
+			if (filenames.size() > 1 && !mergeInput){
+				System.err.println("--keep-complete is not supported for multiple input files. Please execute splitter once for each file or use --merge-input.");
 				System.exit(-1);
 			}
 			if (overlapAmount > 0){
@@ -411,6 +422,7 @@ public class Main {
 		System.out.println("Time: " + new Date());
 
 		Area exactArea = pass1Collector.getExactArea();
+		checkNodeIdDensity(pass1Collector.getDetails());
 		if (densityOutData != null )
 			pass1Collector.saveMap(densityOutData.getAbsolutePath());
 		
@@ -430,6 +442,24 @@ public class Main {
 		return new AreaList(areas);
 	}
 	
+	/**
+	 * Decide if the node maps of the later passes are directly indexed
+	 * by the node ids. That needs 2 bytes for each id in the range, so 
+	 * the ids must be dense and the range must fit into the memory.
+	 */
+	private void checkNodeIdDensity(MapDetails details) {
+		double density = details.getNodeIdDensity();
+		if (density < DENSE_NODE_ID_DENSITY)
+			return;
+		long bytes = 2 * (details.getMaxNodeId() - details.getMinNodeId() + 1);
+		if (bytes > Runtime.getRuntime().maxMemory() / 4)
+			return;
+		System.out.println("Node ids are dense (" + Math.round(density * 100) + "% of the range are used), the node maps are indexed by id");
+		denseNodeIds = true;
+		minNodeId = details.getMinNodeId();
+		maxNodeId = details.getMaxNodeId();
+	}
+
 	private void nameAreas() throws IOException {
 		CityFinder cityFinder;
 		if (geoNamesFile != null) {
@@ -497,6 +527,9 @@ public class Main {
 				System.out.println("Pseudo area " + area.getMapId() + " covers " + area);
 		}
 		DataStorer dataStorer = new DataStorer(writers);
+		dataStorer.setOffHeapMaps(offHeapMaps);
+		if (denseNodeIds)
+			dataStorer.setDenseNodeIds(minNodeId, maxNodeId);
 		System.out.println("Starting problem-list-generator pass(es) for partition " + partition); 
 		LongArrayList problemWaysThisPart = new LongArrayList();
 		LongArrayList problemRelsThisPart = new LongArrayList();
@@ -577,6 +610,9 @@ public class Main {
 		int numPasses = getAreasPerPass(areas.size());
 		int areasPerPass = (int) Math.ceil((double) areas.size() / (double) numPasses);
 		DataStorer dataStorer = new DataStorer(allWriters);
+		dataStorer.setOffHeapMaps(offHeapMaps);
+		if (denseNodeIds)
+			dataStorer.setDenseNodeIds(minNodeId, maxNodeId);
 		// add the user given problem polygons
 		problemWays.addAll(calculatedProblemWays);
 		calculatedProblemWays = null;
@@ -632,81 +668,207 @@ public class Main {
 		}
 		System.out.println("Distribution pass(es) took " + (System.currentTimeMillis() - startDistPass) + " ms"); 
 		dataStorer.finish();
+		if (spoolFile != null)
+			spoolFile.delete();
 		
 	}
 	
-	private boolean processMap(MapProcessor processor) throws XmlPullParserException {
-		// Create both an XML reader and a binary reader, Dispatch each input to the
-		// Appropriate parser.
-		OSMParser parser = new OSMParser(processor, mixed);
+	private boolean processMap(MapProcessor processor) {
+		if (spoolComplete) {
+			readSpool(processor);
+			return processor.endMap();
+		}
+		SpoolWriter spool = null;
+		if (spoolInput) {
+			try {
+				spoolFile = createSpoolFile();
+				spoolFile.deleteOnExit();
+				spool = new SpoolWriter(processor, spoolFile, maxThreads > 1);
+				processor = spool;
+			} catch (IOException e) {
+				// stdin can be read only once
+				if (useStdIn)
+					throw new IllegalArgumentException("Cannot create spool file, but the data from stdin is needed in more than one pass: " + e.getMessage());
+				System.out.println("Cannot create spool file, the input files are read in each pass: " + e.getMessage());
+				spoolInput = false;
+			}
+		}
 		if (useStdIn) {
 			System.out.println("Reading osm data from stdin...");
-			Reader reader = new InputStreamReader(System.in, Charset.forName("UTF-8"));
-			parser.setReader(reader);
+			OSMParser parser = new OSMParser(processor, mixed);
+			InputStream stream = new BufferedInputStream(System.in);
+			if (maxThreads > 1)
+				stream = new BackgroundInputStream(stream);
 			try {
 				try {
-					parser.parse();
+					parser.parse(stream);
 				} finally {
-					reader.close();
+					stream.close();
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 
-		for (String filename : filenames) {
-			System.out.println("Processing " + filename);
+		if (mergeInput && filenames.size() > 1)
+			readFilesConcurrently(processor);
+		else {
+			for (String filename : filenames)
+				readFile(processor, filename, maxThreads);
+		}
+		boolean done = processor.endMap();
+		if (spool != null) {
+			spoolComplete = spool.isComplete();
+			if (spoolComplete)
+				System.out.println("Later passes read the spool file " + spoolFile + " (" + Utils.format(spoolFile.length()) + " bytes)");
+			else if (useStdIn)
+				throw new IllegalArgumentException("The spool file is incomplete, but the data from stdin is needed in more than one pass");
+			else 
+				spoolInput = false;
+		}
+		return done;
+	}
+
+	/**
+	 * @return a new temporary file for the spool  
+	 */
+	File createSpoolFile() throws IOException {
+		return File.createTempFile("splitter", ".spool", fileOutputDir);
+	}
+
+	/**
+	 * Pass the elements that were written to the spool file to the processor.
+	 */
+	private void readSpool(MapProcessor processor) {
+		System.out.println("Processing spool file " + spoolFile);
+		try {
+			new SpoolReader(processor, maxThreads > 1).parse(spoolFile);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read spool file " + spoolFile, e);
+		}
+	}
+
+	/**
+	 * Read all input files at the same time, each one in its own thread.
+	 * The elements are merged by type and id before they are passed 
+	 * to the processor.  
+	 */
+	private void readFilesConcurrently(MapProcessor processor) {
+		final InputMerger merger = new InputMerger(processor);
+		final int threadsPerFile = Math.max(1, maxThreads / filenames.size());
+		ArrayList<Thread> readers = new ArrayList<Thread>();
+		for (final String filename : filenames) {
+			final MapProcessor source = merger.addSource();
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						readFile(source, filename, threadsPerFile);
+					} catch (Throwable t) {
+						// reported by the main thread, the elements that 
+						// were read are merged first
+						merger.fail(source, t);
+						return;
+					}
+					merger.finish(source);
+				}
+			});
+			reader.setName("reader-" + readers.size());
+			// don't keep the program alive if the merge stage fails
+			reader.setDaemon(true);
+			readers.add(reader);
+		}
+		for (Thread reader : readers)
+			reader.start();
+		merger.merge();
+		for (Thread reader : readers) {
 			try {
-				if (filename.endsWith(".o5m")) {
-					File file = new File(filename);
-					InputStream stream = new FileInputStream(file);
-					long[] skipArray = skipArrayMap.get(filename);
-					O5mMapParser o5mParser = new O5mMapParser(processor, stream, skipArray);
+				reader.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Failed to join for thread " + reader.getName(), e);
+			}
+		}
+		// stop the run like the serial reader does
+		merger.throwReaderError();
+	}
+
+	/**
+	 * Dispatch the input file to the appropriate parser.
+	 * @param numThreads the number of threads the parser may use 
+	 */
+	private void readFile(MapProcessor processor, String filename, int numThreads) {
+		System.out.println("Processing " + filename);
+		try {
+			if (filename.endsWith(".o5m")) {
+				File file = new File(filename);
+				FileInputStream stream = new FileInputStream(file);
+				try {
+					FileIndex index = getFileIndex(filename, FileIndex.FORMAT_O5M);
+					O5mMapParser o5mParser = new O5mMapParser(processor, stream.getChannel(), index, numThreads);
 					o5mParser.parse();
-					if (skipArray == null){
-						skipArray = o5mParser.getSkipArray();
-						skipArrayMap.put(filename, skipArray);
-					}
+					if (index == null)
+						saveFileIndex(filename, o5mParser.getIndex());
+				} finally {
+					stream.close();
 				}
-				else if (filename.endsWith(".pbf")) {
-					// Is it a binary file?
-					File file = new File(filename);
-					ShortArrayList blockTypes = blockTypeMap.get(filename);
-					BinaryMapParser binParser = new BinaryMapParser(processor, blockTypes);
-					BlockInputStream blockinput = (new BlockInputStream(
-							new FileInputStream(file), binParser));
-					try {
-						blockinput.process();
-					} finally {
-						blockinput.close();
-						if (blockTypes == null){
-							// remember this file 
-							blockTypes = binParser.getBlockList();
-							blockTypeMap.put(filename, blockTypes);
-						}
-					}
-				} else {
-					// No, try XML.
-					Reader reader = Utils.openFile(filename, maxThreads > 1);
-					parser.setReader(reader);
-					try {
-						parser.parse();
-					} finally {
-						reader.close();
-					}
+			}
+			else if (filename.endsWith(".pbf")) {
+				// Is it a binary file?
+				File file = new File(filename);
+				FileIndex index = getFileIndex(filename, FileIndex.FORMAT_PBF);
+				BinaryMapParser binParser = new BinaryMapParser(processor, index, numThreads);
+				FileInputStream fileStream = new FileInputStream(file);
+				InputStream stream = fileStream;
+				if (numThreads > 1)
+					stream = new BackgroundInputStream(fileStream.getChannel());
+				try {
+					binParser.parse(stream);
+					if (index == null)
+						saveFileIndex(filename, binParser.getIndex());
+				} finally {
+					stream.close();
+					fileStream.close();
+				}
+			} else {
+				// No, try XML.
+				InputStream stream = Utils.openFileStream(filename, numThreads);
+				try {
+					OSMParser parser = new OSMParser(processor, mixed);
+					parser.parse(stream);
+				} finally {
+					stream.close();
 				}
-			} catch (FileNotFoundException e) {
-				System.out.printf("ERROR: file %s was not found\n", filename);
-			} catch (XmlPullParserException e) {
-				System.out.printf("ERROR: file %s is not a valid OSM XML file\n", filename);
-			} catch (IllegalArgumentException e) {
-				System.out.printf("ERROR: file %s contains unexpected data\n", filename);
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
+		} catch (FileNotFoundException e) {
+			System.out.printf("ERROR: file %s was not found\n", filename);
+		} catch (IllegalArgumentException e) {
+			System.out.printf("ERROR: file %s contains unexpected data\n", filename);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		boolean done = processor.endMap();
-		return done;
+	}
+
+	/**
+	 * Return the index of a pbf or o5m file. It is read from the index file
+	 * next to the input file when it is needed for the first time.
+	 * @return the index or null if it is not yet known
+	 */
+	private synchronized FileIndex getFileIndex(String filename, byte format) {
+		if (fileIndexMap.containsKey(filename))
+			return fileIndexMap.get(filename);
+		FileIndex index = FileIndex.load(filename, format);
+		if (index != null)
+			System.out.println("Using the block index stored for " + filename);
+		fileIndexMap.put(filename, index);
+		return index;
+	}
+
+	/**
+	 * Remember the index that was collected while reading a file and 
+	 * store it for later runs.
+	 */
+	private synchronized void saveFileIndex(String filename, FileIndex index) {
+		fileIndexMap.put(filename, index);
+		index.save(filename);
 	}
 	
 	/**
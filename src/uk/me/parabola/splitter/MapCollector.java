@@ -16,6 +16,8 @@ package uk.me.parabola.splitter;
 public interface MapCollector extends MapProcessor {
 	Area getExactArea();
 
+	MapDetails getDetails();
+
 	SplittableArea getRoundedArea(int resolution);
 
 	void saveMap(String fileName);
@@ -22,6 +22,9 @@ public class MapDetails {
 	private int minLon = Utils.toMapUnit(180.0);
 	private int maxLat = Utils.toMapUnit(-180.0);
 	private int maxLon = Utils.toMapUnit(-180.0);
+	private long nodeCount;
+	private long minNodeId = Long.MAX_VALUE;
+	private long maxNodeId = Long.MIN_VALUE;
 
 	/**
 	 * Add the given point to the total bounds for the map.
@@ -40,6 +43,39 @@ public class MapDetails {
 			maxLon = lon;
 	}
 
+	/**
+	 * Add the id of a node to the statistics of the node ids.
+	 */
+	public void addNodeId(long id) {
+		nodeCount++;
+		if (id < minNodeId)
+			minNodeId = id;
+		if (id > maxNodeId)
+			maxNodeId = id;
+	}
+
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	public long getMinNodeId() {
+		return minNodeId;
+	}
+
+	public long getMaxNodeId() {
+		return maxNodeId;
+	}
+
+	/**
+	 * @return the number of nodes divided by the size of the range of 
+	 * node ids, 0 if no node ids were added
+	 */
+	public double getNodeIdDensity() {
+		if (nodeCount == 0)
+			return 0;
+		return (double) nodeCount / ((double) maxNodeId - minNodeId + 1);
+	}
+
 	/**
 	 * Get the bounds of this map.
 	 *
@@ -48,6 +48,16 @@ public interface MapProcessor {
 	 */
 	boolean skipRels();
 
+	/**
+	 * (performance) Returns true if the reader is allowed to skip a block
+	 * that contains only nodes. Readers call this for the blocks of a file
+	 * in file order.
+	 * @param bounds the bounding box of the nodes in the block
+	 * @param minId the lowest node id in the block
+	 * @param maxId the highest node id in the block
+	 */
+	boolean skipNodeBlock(Area bounds, long minId, long maxId);
+
 
 	/**
 	 * Called when the bound tag is encountered. Note that it is possible
@@ -67,6 +77,20 @@ public interface MapProcessor {
 	 * Called when a whole way has been processed. 
 	*/
 	void processWay(Way w);
+
+	/**
+	 * Called with a block of nodes. The reader reuses the batch after
+	 * this call returns, so the processor must not keep a reference to it.
+	 * @see AbstractMapProcessor#processNodes(NodeBatch) for the 
+	 * adapter to {@link #processNode(Node)}
+	 */
+	void processNodes(NodeBatch nodes);
+
+	/**
+	 * Called with a block of ways. The reader reuses the batch after
+	 * this call returns, so the processor must not keep a reference to it.
+	 */
+	void processWays(WayBatch ways);
 	
 	/**
 	 * Called when a whole relation has been processed. 
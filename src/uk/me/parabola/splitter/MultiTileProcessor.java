@@ -12,10 +12,9 @@
  */ 
 package uk.me.parabola.splitter;
 
-import uk.me.parabola.splitter.Relation.Member;
-
 import it.unimi.dsi.Util;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 
 import java.awt.Point;
 import java.awt.Rectangle;
@@ -38,10 +37,10 @@ class MultiTileProcessor extends AbstractMapProcessor {
 	private final static int PASS3_NODES_AND_WAYS = 3;
 	private final static int PASS4_WAYS_ONLY = 4;
 	
-	private final static byte MEM_NODE_TYPE = 1;
-	private final static byte MEM_WAY_TYPE  = 2;
-	private final static byte MEM_REL_TYPE  = 3;
-	private final static byte MEM_INVALID_TYPE = -1;
+	private final static byte MEM_NODE_TYPE = Relation.MEMBER_NODE;
+	private final static byte MEM_WAY_TYPE  = Relation.MEMBER_WAY;
+	private final static byte MEM_REL_TYPE  = Relation.MEMBER_RELATION;
+	private final static int INNER_ROLE = Relation.getRoleId("inner");
 	private final static int PROBLEM_WIDTH = Utils.toMapUnit(180.0);
 	private final static String[] NAME_TAGS = {"name","name:en","int_name"}; 
 	
@@ -54,13 +53,19 @@ class MultiTileProcessor extends AbstractMapProcessor {
 	private Long2IntClosedMapFunction relWriterMap;
 	private int [] nodeLons;
 	private int [] nodeLats;
-	private SparseBitSet problemRels = new SparseBitSet();
-	private SparseBitSet neededWays = new SparseBitSet();
-	private SparseBitSet neededNodes = new SparseBitSet();
+	private CompressedLongBitSet problemRels = new CompressedLongBitSet();
+	private CompressedLongBitSet neededWays = new CompressedLongBitSet();
+	private CompressedLongBitSet neededNodes = new CompressedLongBitSet();
+	// walks through the needed nodes while the node ids are sorted
+	private LongIterator neededNodesIter;
+	private long nextNeededNode;
+	private long lastNodeId = Long.MIN_VALUE;
 	private Map<Long, Rectangle> wayBboxMap;
-	private SparseBitSet mpWays = new SparseBitSet();
+	private CompressedLongBitSet mpWays = new CompressedLongBitSet();
 	private Map<Long, JoinedWay> mpWayEndNodesMap;
 	private final BitSet workWriterSet;
+	// the positions of the nodes of the current way in nodeWriterMap
+	private int[] wayNodePos = new int[2000];
 	private long lastCoordId = Long.MIN_VALUE;
 	private int foundWays;
 	private int visitId = 0;
@@ -108,19 +113,39 @@ class MultiTileProcessor extends AbstractMapProcessor {
 	@Override
 	public void processNode(Node node) {
 		if (pass == PASS3_NODES_AND_WAYS){
-			if (neededNodes.get(node.getId()))
+			if (isNeededNode(node.getId()))
 				storeCoord(node);
 		}
 	}
 
+	/**
+	 * Check if the coordinates of a node are needed. The node ids are
+	 * normally sorted, so we can step through the needed ids in ascending
+	 * order instead of searching each id. If a node is out of order we
+	 * fall back to searching the ids.
+	 */
+	private boolean isNeededNode(long id) {
+		if (id < lastNodeId)
+			neededNodesIter = null;
+		lastNodeId = id;
+		if (neededNodesIter == null)
+			return neededNodes.get(id);
+		while (nextNeededNode < id) {
+			if (!neededNodesIter.hasNext()) {
+				neededNodesIter = null;
+				return false;
+			}
+			nextNeededNode = neededNodesIter.nextLong();
+		}
+		return nextNeededNode == id;
+	}
+
 	@Override
 	public void processWay(Way way) {
 		if (pass == PASS2_WAYS_ONLY){
 			if (!neededWays.get(way.getId()))
 				return;
-			for (long id : way.getRefs()) {
-				neededNodes.set(id);
-			}
+			neededNodes.setAll(way.getRefs());
 			if (mpWays.get(way.getId())){
 				int numRefs = way.getRefs().size();
 				if (numRefs >= 2){
@@ -138,7 +163,8 @@ class MultiTileProcessor extends AbstractMapProcessor {
 			int numRefs = way.getRefs().size();
 			boolean isClosed = numRefs > 1 &&  way.getRefs().get(0).equals(way.getRefs().get(numRefs-1));
 			workWriterSet.clear();
-			Rectangle wayBbox = getWayBbox(way.getId(), way.getRefs());
+			findWayNodes(way.getRefs());
+			Rectangle wayBbox = getWayBbox(way.getId(), numRefs);
 			if (wayBbox == null)
 				return;
 			wayBboxMap.put(way.getId(), wayBbox);
@@ -146,7 +172,7 @@ class MultiTileProcessor extends AbstractMapProcessor {
 				checkBoundingBox(workWriterSet, wayBbox);
 			}
 			else {
-				addWritersOfWay(workWriterSet, wayBbox, way.getId(), way.getRefs());
+				addWritersOfWay(workWriterSet, wayBbox, way.getId(), numRefs);
 			}
 			int wayWriterIdx;
 			if (workWriterSet.isEmpty())
@@ -204,6 +230,8 @@ class MultiTileProcessor extends AbstractMapProcessor {
 			}
 			// reallocate to the needed size
 			relMap = new LinkedHashMap<Long, MultiTileProcessor.MTRelation>(relMap);
+			neededWays.optimize();
+			mpWays.optimize();
 			mpWayEndNodesMap = new HashMap<Long, MultiTileProcessor.JoinedWay>(mpWays.cardinality());
 			System.out.println("Finished adding parents and members of problem relations to problem lists.");
 			problemRels = null;
@@ -220,6 +248,9 @@ class MultiTileProcessor extends AbstractMapProcessor {
 			dataStorer.setWriterMap(DataStorer.WAY_TYPE, wayWriterMap);
 			nodeLons = new int[neededNodes.cardinality()];
 			nodeLats = new int[neededNodes.cardinality()];
+			neededNodes.optimize();
+			neededNodesIter = neededNodes.iterator();
+			nextNeededNode = Long.MIN_VALUE;
 
 			System.out.println("Found " + Utils.format(foundWays) + " of " + Utils.format(neededWays.cardinality()) + " needed ways.");
 			System.out.println("Found " + Utils.format(mpWayEndNodesMap.size()) + " of " + Utils.format(mpWays.cardinality()) + " multipolygon ways.");
@@ -549,11 +580,11 @@ class MultiTileProcessor extends AbstractMapProcessor {
 	private void stats(String msg){
 		System.out.println("Stats for " + getClass().getSimpleName() + " pass " + pass);
 		if (problemRels != null)
-			System.out.println("  SparseBitSet problemRels contains now " + Utils.format(problemRels.cardinality()) + " Ids.");
+			System.out.println("  problemRels contains now " + Utils.format(problemRels.cardinality()) + " Ids.");
 		if (neededWays != null)
-			System.out.println("  SparseBitSet neededWays contains now " + Utils.format(neededWays.cardinality())+ " Ids.");
+			System.out.println("  neededWays contains now " + Utils.format(neededWays.cardinality())+ " Ids.");
 		if (neededNodes != null)
-			System.out.println("  SparseBitSet neededNodes contains now " + Utils.format(neededNodes.cardinality())+ " Ids.");
+			System.out.println("  neededNodes contains now " + Utils.format(neededNodes.cardinality())+ " Ids.");
 		if (relMap != null)
 			System.out.println("  Number of stored relations: " + Utils.format(relMap.size()));
 		System.out.println("  Number of stored tile combinations in multiTileDictionary: " + Utils.format(multiTileDictionary.size()));
@@ -596,7 +627,7 @@ class MultiTileProcessor extends AbstractMapProcessor {
 		int pos = map.getKeyPos(childId);
 		if (pos < 0)
 			return;
-		int childWriterIdx = map.getRandom(childId);
+		int childWriterIdx = map.getAtPos(pos);
 		if (childWriterIdx != WriterDictionaryInt.UNASSIGNED){
 			// we have already calculated writers for this child
 			if (parentWriterIdx == childWriterIdx)
@@ -610,7 +641,7 @@ class MultiTileProcessor extends AbstractMapProcessor {
 		}
 		else
 			childWriterIdx = parentWriterIdx;
-		map.replace(childId, childWriterIdx);
+		map.replaceAtPos(pos, childWriterIdx);
 	}
 
 	/**
@@ -661,17 +692,15 @@ class MultiTileProcessor extends AbstractMapProcessor {
 	 * @param writerSet an already allocate BitSet which may be modified
 	 * @param wayBbox 
 	 * @param wayId the id that identifies the way
-	 * @param wayRefs list with the node references
+	 * @param numRefs the number of node references, the positions are in wayNodePos
 	 */
-	private void addWritersOfWay (BitSet writerSet, Rectangle wayBbox, long wayId, LongArrayList wayRefs){
-		int numRefs = wayRefs.size();
+	private void addWritersOfWay (BitSet writerSet, Rectangle wayBbox, long wayId, int numRefs){
 		int foundNodes = 0; 
 		boolean needsCrossTileCheck = false;
 
 		Point p1 = null,p2 = null;
 		for (int i = 0; i<numRefs; i++) {
-			long id = wayRefs.getLong(i);
-			int pos = nodeWriterMap.getKeyPos(id);
+			int pos = wayNodePos[i];
 			if (pos >= 0){
 				foundNodes++;
 				boolean hasWriters = addWritersOfPoint(writerSet, nodeLats[pos], nodeLons[pos]);
@@ -697,8 +726,7 @@ class MultiTileProcessor extends AbstractMapProcessor {
 			checkBoundingBox(possibleWriters ,wayBbox);
 			// the way did cross a border tile
 			for (int i = 0; i<numRefs; i++) {
-				long id = wayRefs.getLong(i);
-				int pos = nodeWriterMap.getKeyPos(id);
+				int pos = wayNodePos[i];
 				if (pos >= 0){
 					if (i > 0){
 						p1 = p2;
@@ -713,20 +741,37 @@ class MultiTileProcessor extends AbstractMapProcessor {
 		}
 	}
 
+	/**
+	 * Search the nodes of a way in the nodeWriterMap and save the positions
+	 * in wayNodePos, so that each node is searched only once per way. 
+	 * @param wayRefs the list of node references
+	 */
+	private void findWayNodes(LongArrayList wayRefs){
+		int numRefs = wayRefs.size();
+		if (wayNodePos.length < numRefs)
+			wayNodePos = new int[numRefs];
+		for (int i = 0; i<numRefs; i++) {
+			long id = wayRefs.getLong(i);
+			// closed ways end with the first node
+			if (i > 0 && i == numRefs-1 && id == wayRefs.getLong(0))
+				wayNodePos[i] = wayNodePos[0];
+			else 
+				wayNodePos[i] = nodeWriterMap.getKeyPos(id);
+		}
+	}
+
 	/**
 	 * Calculate the bbox of the way.
 	 * @param wayId the id that identifies the way
-	 * @param wayRefs the list of node references
+	 * @param numRefs the number of node references, the positions are in wayNodePos
 	 * @return a new Area object or null if no node is known
 	 */
-	private Rectangle getWayBbox (long wayId, LongArrayList wayRefs){
+	private Rectangle getWayBbox (long wayId, int numRefs){
 		// calculate the bbox
 		int minLat = Integer.MAX_VALUE,minLon = Integer.MAX_VALUE;
 		int maxLat = Integer.MIN_VALUE,maxLon = Integer.MIN_VALUE;
-		int numRefs = wayRefs.size();
 		for (int i = 0; i<numRefs; i++) {
-			long id = wayRefs.getLong(i);
-			int pos = nodeWriterMap.getKeyPos(id);
+			int pos = wayNodePos[i];
 			if (pos >= 0){
 				int lat = nodeLats[pos];
 				int lon = nodeLons[pos];
@@ -781,7 +826,7 @@ class MultiTileProcessor extends AbstractMapProcessor {
 		LongArrayList polygonWays = new LongArrayList();
 		for (int i = 0; i < rel.numMembers; i++){
 			long memId = rel.memRefs[i];
-			if (rel.memTypes[i] == MEM_WAY_TYPE && "inner".equals(rel.memRoles[i]) == false){
+			if (rel.memTypes[i] == MEM_WAY_TYPE && rel.memRoles[i] != INNER_ROLE){
 				wayMembers.add(memId);
 			}
 		}
@@ -901,7 +946,7 @@ class MultiTileProcessor extends AbstractMapProcessor {
 
 		private final long id;
 		private final byte[] memTypes;
-		private final String[] memRoles;
+		private final int[] memRoles;
 		private final long[] memRefs;
 		private final int numMembers;
 		private final String name;
@@ -911,49 +956,40 @@ class MultiTileProcessor extends AbstractMapProcessor {
 		private short flags; 	// flags for the MultiTileProcessor
 		
 		public MTRelation(Relation rel){
-			numMembers  = rel.getMembers().size();
+			numMembers  = rel.getMemberCount();
 			memTypes = new byte[numMembers];
-			memRoles = new String[numMembers];
+			memRoles = new int[numMembers];
 			memRefs = new long[numMembers];
 			id = rel.getId();
 			for (int i = 0; i<numMembers; i++){
-				Member mem = rel.getMembers().get(i);
-				memRefs[i] = mem.getRef(); 
-				memRoles[i] = mem.getRole();
-				if ("node".equals(mem.getType())){
-					memTypes[i] = MEM_NODE_TYPE;
+				memRefs[i] = rel.getMemberRef(i); 
+				memRoles[i] = rel.getMemberRoleId(i);
+				memTypes[i] = rel.getMemberType(i);
+				if (memTypes[i] == MEM_NODE_TYPE)
 					flags |= HAS_NODES;
-				}
-				else if ("way".equals(mem.getType())){
-					memTypes[i] = MEM_WAY_TYPE;
+				else if (memTypes[i] == MEM_WAY_TYPE)
 					flags |= HAS_WAYS;
-				} 
-				else if ("relation".equals(mem.getType())){
-					memTypes[i] = MEM_REL_TYPE;
+				else if (memTypes[i] == MEM_REL_TYPE)
 					flags |= HAS_RELS;
-				}
-				else
-					memTypes[i] = MEM_INVALID_TYPE;
-				
 			}
 			String goodNameCandidate = null;
 			String nameCandidate = null;
 			String zipCode = null;
 			for (String nameTag: NAME_TAGS){
-				Iterator<Element.Tag> tags = rel.tagsIterator();
-				while(tags.hasNext()) {
-					Element.Tag t = tags.next();
-					if ("type".equals(t.key) && ("multipolygon".equals(t.value)/* || "boundary".equals(t.value)*/)){
+				for (int t = 0; t < rel.getTagCount(); t++) {
+					String key = rel.getTagKey(t);
+					String value = rel.getTagValue(t);
+					if ("type".equals(key) && ("multipolygon".equals(value)/* || "boundary".equals(value)*/)){
 						markAsMultiPolygon();
 					} 
-					else if (nameTag.equals(t.key)){
-						goodNameCandidate = t.value;
+					else if (nameTag.equals(key)){
+						goodNameCandidate = value;
 						break;
 					}
-					else if (t.key.contains("name"))
-						nameCandidate = t.value;
-					if (t.key.equals("postal_code"))
-						zipCode = t.value;
+					else if (key.contains("name"))
+						nameCandidate = value;
+					if (key.equals("postal_code"))
+						zipCode = value;
 				}
 				if (goodNameCandidate != null)
 					break;
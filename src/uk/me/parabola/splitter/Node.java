@@ -18,32 +18,47 @@ package uk.me.parabola.splitter;
  * @author Steve Ratcliffe
  */
 public class Node extends Element {
-	private double lat, lon;
+	// the coordinates in units of 0.0000001 degrees as used in the OSM data 
+	private int fixedLat, fixedLon;
 	private int mapLat, mapLon;
 
-	public void set(long id, double lat, double lon) {
+	/**
+	 * Set id and position of the node.
+	 * @param id the node id
+	 * @param fixedLat the latitude in units of 0.0000001 degrees
+	 * @param fixedLon the longitude in units of 0.0000001 degrees
+	 */
+	public void set(long id, int fixedLat, int fixedLon) {
 		setId(id);
-		this.lat = lat;
-		this.lon = lon;
-		this.mapLat = Utils.toMapUnit(lat);
-		this.mapLon = Utils.toMapUnit(lon);
+		this.fixedLat = fixedLat;
+		this.fixedLon = fixedLon;
+		this.mapLat = Utils.fixedToMapUnit(fixedLat);
+		this.mapLon = Utils.fixedToMapUnit(fixedLon);
 	}
 
 	@Override
 	public void reset() {
 		super.reset();
-		lat = 0.0d;
-		lon = 0.0d;
+		fixedLat = 0;
+		fixedLon = 0;
 		mapLat = 0;
 		mapLon = 0;
 	}
 
 	public double getLat() {
-		return lat;
+		return Utils.fixedToDegrees(fixedLat);
 	}
 
 	public double getLon() {
-		return lon;
+		return Utils.fixedToDegrees(fixedLon);
+	}
+
+	public int getFixedLat() {
+		return fixedLat;
+	}
+
+	public int getFixedLon() {
+		return fixedLon;
 	}
 
 	public int getMapLat() {
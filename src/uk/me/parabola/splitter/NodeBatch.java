@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.util.Arrays;
+
+/**
+ * A reusable block of nodes. The coordinates are stored as fixed
+ * point values (units of 0.0000001 degrees) and as map units.
+ */
+public class NodeBatch extends ElementBatch {
+	private int[] fixedLats = new int[INITIAL_SIZE];
+	private int[] fixedLons = new int[INITIAL_SIZE];
+	private int[] mapLats = new int[INITIAL_SIZE];
+	private int[] mapLons = new int[INITIAL_SIZE];
+
+	/**
+	 * Append a node.
+	 * @param id the node id
+	 * @param fixedLat the latitude in units of 0.0000001 degrees
+	 * @param fixedLon the longitude in units of 0.0000001 degrees
+	 */
+	public void add(long id, int fixedLat, int fixedLon) {
+		int i = size;
+		addElement(id);
+		fixedLats[i] = fixedLat;
+		fixedLons[i] = fixedLon;
+		mapLats[i] = Utils.fixedToMapUnit(fixedLat);
+		mapLons[i] = Utils.fixedToMapUnit(fixedLon);
+	}
+
+	/**
+	 * Append a copy of node i of another batch.
+	 */
+	public void add(NodeBatch other, int i) {
+		int pos = size;
+		addElement(other.ids[i]);
+		fixedLats[pos] = other.fixedLats[i];
+		fixedLons[pos] = other.fixedLons[i];
+		mapLats[pos] = other.mapLats[i];
+		mapLons[pos] = other.mapLons[i];
+		addTags(other, i);
+	}
+
+	@Override
+	protected void grow(int newSize) {
+		super.grow(newSize);
+		fixedLats = Arrays.copyOf(fixedLats, newSize);
+		fixedLons = Arrays.copyOf(fixedLons, newSize);
+		mapLats = Arrays.copyOf(mapLats, newSize);
+		mapLons = Arrays.copyOf(mapLons, newSize);
+	}
+
+	public int getFixedLat(int i) {
+		return fixedLats[i];
+	}
+
+	public int getFixedLon(int i) {
+		return fixedLons[i];
+	}
+
+	public int getMapLat(int i) {
+		return mapLats[i];
+	}
+
+	public int getMapLon(int i) {
+		return mapLons[i];
+	}
+
+	/**
+	 * @return a new Node with the data of node i
+	 */
+	public Node createNode(int i) {
+		Node node = new Node();
+		node.set(ids[i], fixedLats[i], fixedLons[i]);
+		copyTags(i, node);
+		return node;
+	}
+}
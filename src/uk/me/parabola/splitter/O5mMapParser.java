@@ -12,16 +12,26 @@
  */ 
 package uk.me.parabola.splitter;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Parser for the o5m format described here: http://wiki.openstreetmap.org/wiki/O5m
  * The routines to are based on the osmconvert.c source from Markus Weber who allows 
  * to copy them for any o5m IO, thanks a lot for that. 
+ * The file is memory mapped, data sets are decoded directly from the mapped buffer.
+ * When the positions of the reset flags are known, the segments between them are 
+ * decoded on a pool of threads and passed to the processor in the original order.
  * @author GerdP  
  *
  */
@@ -36,13 +46,26 @@ public class O5mMapParser implements MapReader{
 	private static final int EOD_FLAG = 0xfe;
 	private static final int RESET_FLAG = 0xff;
 	
-	private static final int EOF_FLAG = -1;
-	
+	// the file is mapped in windows of this size, a data set is never split between windows
+	private static final long WINDOW_SIZE = 1L << 30;
+	// the size of the windows that are read from a BackgroundInputStream
+	private static final int STREAM_WINDOW_SIZE = 1 << 22;
+	// max. size of data set type and length
+	private static final int MAX_DATASET_HEAD = 11;
+	// number of nodes or ways that are collected before they are passed on
+	private static final int BATCH_SIZE = 4096;
+	// marks in stringTableIds, valid key ids are >= 0
+	private static final int UNRESOLVED = -2;
+	private static final int ROLE = -3;
+	// number of batches that a segment decoder may queue
+	private static final int SEGMENT_QUEUE_SIZE = 4;
+	// signals the end of a segment
+	private static final Object END_OF_SEGMENT = new Object();
+
 	// o5m constants
 	private static final int STRING_TABLE_SIZE = 15000;
 	private static final int MAX_STRING_PAIR_SIZE = 250 + 2;
 	private static final String[] REL_REF_TYPES = {"node", "way", "relation", "?"};
-	private static final double FACTOR = 1d/1000000000; // used with 100*<Val>*FACTOR 
 	
 	// How many elements to process before displaying a status update
 	private static final int NODE_STATUS_UPDATE_THRESHOLD = 10000000;
@@ -60,29 +83,67 @@ public class O5mMapParser implements MapReader{
 	private boolean skipWays;
 	private boolean skipRels;
 
-	private final BufferedInputStream fis;
-	private InputStream is;
-	private ByteArrayInputStream bis;
-	private MapProcessor processor;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final MapProcessor processor;
+	private final int numThreads;
+	// the file position where this parser stops (exclusive) 
+	private long endPos;
+	// if not null, this parser decodes a segment and passes the batches, 
+	// relations and bounds to this queue instead of the processor
+	private final BlockingQueue<Object> segmentQueue;
+	
+	// the nodes and ways that were read but not yet passed on
+	private NodeBatch nodeBatch;
+	private WayBatch wayBatch;
+	// batches that were processed and can be reused
+	private final ConcurrentLinkedQueue<NodeBatch> freeNodeBatches;
+	private final ConcurrentLinkedQueue<WayBatch> freeWayBatches;
 	
 	// buffer for byte -> String conversions
 	private byte[] cnvBuffer; 
 	
-	private byte[] ioBuf;
+	// if not null, the file is read sequentially from this stream instead of being mapped
+	private BackgroundInputStream stream;
+	private byte[] window;
+	// the currently mapped part of the file
+	private ByteBuffer buf;
+	private long bufStart;
+	private long bufEnd;
+	// the read position in buf
 	private int ioPos;
+	// the file position of the next data set
+	private long filePos;
 	// the o5m string table
 	private String[][] stringTable;
 	private String[] stringPair;
 	private int currStringTablePos;
-	// a counter that must be maintained by all routines that read data from the stream
+	// the TagDictionary ids of the strings in the string table, so that 
+	// each tag is resolved only once
+	private int[][] stringTableIds;
+	// the position of stringPair in the string table or -1
+	private int stringPairPos;
+	private int pairKeyId, pairValueId;
+	// a counter that must be maintained by all routines that read data from the buffer
 	private int bytesToRead;
-	// total number of bytes read from stream
-	long countBytes;
 
 	// performance: save byte position of first occurrence of a data set type (node, way, relation)
 	// to allow skipping large parts of the stream
 	long[] firstPosInFile;
-	long[] skipArray;
+	// the index of the segments between the reset flags, the o5m state can be 
+	// restored at each of them. index is collected while the file is read,
+	// knownIndex was collected before 
+	private final FileIndex index;
+	private final FileIndex knownIndex;
+	// start, element types, id range and node bounding box of the current segment 
+	private long segStart;
+	private short segType;
+	private long segMinId = Long.MAX_VALUE;
+	private long segMaxId = Long.MIN_VALUE;
+	private int segMinLat = Integer.MAX_VALUE, segMinLon = Integer.MAX_VALUE;
+	private int segMaxLat = Integer.MIN_VALUE, segMaxLon = Integer.MIN_VALUE;
+	// true if nodes of the segment were skipped, so the bounding box is not known
+	private boolean segSkippedNodes;
 	
 	// for delta calculations
 	private long lastNodeId;
@@ -96,121 +157,454 @@ public class O5mMapParser implements MapReader{
 	/**
 	 * A parser for the o5m format
 	 * @param processor A mapProcessor instance
-	 * @param stream The InputStream that contains the OSM data in o5m format 
-	 * @param skipArray An Array of longs that is used to hold information of file position of the first occurrence of 
-	 * each known 05m data type (esp. nodes, ways, and relations). 
+	 * @param channel The FileChannel of the file that contains the OSM data in o5m format 
+	 * @param knownIndex the index returned by {@link #getIndex()} in a previous pass or null. 
+	 * It contains the file position of the first occurrence of each known 05m data type 
+	 * (esp. nodes, ways, and relations) and the segments between the reset flags.
+	 * @param numThreads the number of threads that may be used to decode the file  
+	 * @throws IOException 
 	 */
-	O5mMapParser(MapProcessor processor, InputStream stream, long[] skipArray) {
+	O5mMapParser(MapProcessor processor, FileChannel channel, FileIndex knownIndex, 
+			int numThreads) throws IOException {
 		this.processor = processor;
-		this.fis = new BufferedInputStream(stream, 4*1024*1024);
-		is = fis;
-		this.skipArray = skipArray;
+		this.channel = channel;
+		this.fileSize = channel.size();
+		this.endPos = fileSize;
+		this.numThreads = numThreads;
+		this.segmentQueue = null;
+		this.freeNodeBatches = new ConcurrentLinkedQueue<NodeBatch>();
+		this.freeWayBatches = new ConcurrentLinkedQueue<WayBatch>();
+		this.nodeBatch = new NodeBatch();
+		this.wayBatch = new WayBatch();
+		this.knownIndex = knownIndex;
 		this.skipTags = processor.skipTags();
 		this.skipNodes = processor.skipNodes();
 		this.skipWays = processor.skipWays();
 		this.skipRels = processor.skipRels();
 		this.cnvBuffer = new byte[4000]; // OSM data should not contain string pairs with length > 512
-		this.ioBuf = new byte[8192];
-		this.ioPos = 0;
 		this.stringPair = new String[2];
 		this.lastRef = new long[3];
-		if (skipArray == null){
+		if (knownIndex == null){
+			index = new FileIndex(FileIndex.FORMAT_O5M);
 			firstPosInFile = new long[256];
 			Arrays.fill(firstPosInFile, -1);
-		}
+		} else 
+			index = null;
+		reset();
+	}
+	
+	/**
+	 * A parser that decodes the part of the file between start and end
+	 * and passes the elements to the queue. 
+	 */
+	private O5mMapParser(O5mMapParser parent, long start, long end, BlockingQueue<Object> queue) {
+		this.processor = parent.processor;
+		this.channel = parent.channel;
+		this.fileSize = parent.fileSize;
+		this.filePos = start;
+		this.endPos = end;
+		this.numThreads = 1;
+		this.segmentQueue = queue;
+		this.freeNodeBatches = parent.freeNodeBatches;
+		this.freeWayBatches = parent.freeWayBatches;
+		this.nodeBatch = newNodeBatch();
+		this.wayBatch = newWayBatch();
+		this.index = null;
+		this.knownIndex = parent.knownIndex;
+		this.skipTags = parent.skipTags;
+		this.skipNodes = parent.skipNodes;
+		this.skipWays = parent.skipWays;
+		this.skipRels = parent.skipRels;
+		this.cnvBuffer = new byte[4000];
+		this.stringPair = new String[2];
+		this.lastRef = new long[3];
 		reset();
 	}
 
 	/**
-	 * parse the input stream
+	 * parse the input file
 	 */
 	public void parse(){
 		try {
-			int start = is.read();
-			++countBytes;
+			// the first pass reads the whole file in one thread, let a
+			// background thread do the I/O
+			if (knownIndex == null && numThreads > 1)
+				stream = new BackgroundInputStream(channel);
+			mapWindow(0, 1);
+			int start = buf.get(0) & 0xff;
 			if (start != RESET_FLAG) 
 				throw new IOException("wrong header byte " + start);
-			if (skipArray != null){
-				if (skipNodes ){
-					if (skipWays)
-						skip(skipArray[REL_DATASET]-countBytes); // jump to first relation
-					else
-						skip(skipArray[WAY_DATASET]-countBytes); // jump to first way
+			filePos = 1;
+			if (knownIndex != null){
+				long[] skipArray = knownIndex.getFirstPosInFile();
+				if (skipNodes && skipArray != null){
+					// jump to first way or first relation
+					long firstPos = (skipWays) ? skipArray[REL_DATASET] : skipArray[WAY_DATASET];
+					if (firstPos > filePos)
+						filePos = firstPos;
+				}
+				readSegments();
+			} else {
+				try {
+					readFile();
+				} finally {
+					// also for a truncated file, so that the following passes 
+					// read the same data
+					finishSegment(fileSize);
+					index.setFirstPosInFile(firstPosInFile);
 				}
 			}
-			readFile();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (stream != null){
+				try {
+					stream.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				stream = null;
+			}
 		}
 	}
 	
-	private void readFile() throws IOException{
-		boolean done = false;
-		while(!done){
-			is = fis;
-			long size = 0;
-			int fileType = is.read();
-			++countBytes;
-			if (fileType >= 0 && fileType < 0xf0){
-				if (skipArray == null){
-					// save first occurrence of a data set type
-					if (firstPosInFile[fileType] == -1){
-						firstPosInFile[fileType] = Math.max(0, countBytes-1);    
+	/**
+	 * Read the segments between the reset flags that contain wanted elements.
+	 * With more than one thread, the segments are decoded on a pool of threads
+	 * and the elements are passed to the processor in file order. 
+	 * @throws IOException
+	 */
+	private void readSegments() throws IOException{
+		short wantedTypeMask = 0;
+		if (!skipNodes)
+			wantedTypeMask |= FileIndex.TYPE_NODES;
+		if (!skipWays)
+			wantedTypeMask |= FileIndex.TYPE_WAYS;
+		if (!skipRels)
+			wantedTypeMask |= FileIndex.TYPE_RELS;
+		LongArrayList starts = new LongArrayList();
+		LongArrayList ends = new LongArrayList();
+		for (int i = 0; i < knownIndex.size(); i++){
+			long start = Math.max(filePos, knownIndex.getOffset(i));
+			long end = (i + 1 < knownIndex.size()) ? knownIndex.getOffset(i + 1) : fileSize;
+			short type = knownIndex.getType(i);
+			if (end <= start || (type != 0 && (type & wantedTypeMask) == 0))
+				continue;
+			if (type == FileIndex.TYPE_NODES){
+				Area bounds = knownIndex.getBounds(i);
+				if (bounds != null && processor.skipNodeBlock(bounds, knownIndex.getMinId(i), knownIndex.getMaxId(i)))
+					continue;
+			}
+			int last = ends.size() - 1;
+			if (numThreads <= 1 && last >= 0 && ends.getLong(last) == start)
+				ends.set(last, end); // read adjacent segments in one go
+			else {
+				starts.add(start);
+				ends.add(end);
+			}
+		}
+		if (numThreads <= 1 || starts.size() < 2){
+			for (int i = 0; i < starts.size(); i++){
+				filePos = starts.getLong(i);
+				endPos = ends.getLong(i);
+				readFile();
+			}
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			// the segments are started in file order, so the segment that is 
+			// read next is always decoded or waiting for a free thread 
+			ArrayList<SegmentDecoder> decoders = new ArrayList<SegmentDecoder>();
+			for (int i = 0; i < starts.size(); i++){
+				SegmentDecoder decoder = new SegmentDecoder(starts.getLong(i), ends.getLong(i));
+				decoders.add(decoder);
+				pool.execute(decoder);
+			}
+			for (SegmentDecoder decoder : decoders){
+				while (true){
+					Object part;
+					try {
+						part = decoder.queue.take();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
 					}
+					if (part == END_OF_SEGMENT)
+						break;
+					process(part);
+					if (part instanceof NodeBatch)
+						freeNodeBatches.add((NodeBatch) part);
+					else if (part instanceof WayBatch)
+						freeWayBatches.add((WayBatch) part);
 				}
-				bytesToRead = 0;
-				size = readUnsignedNum64FromStream();
-				countBytes += size - bytesToRead; // bytesToRead is negative 
-				bytesToRead = (int)size;
-				
-				boolean doSkip = false;
-				if (fileType == NODE_DATASET && skipNodes) doSkip = true;
-				else if (fileType == WAY_DATASET && skipWays) doSkip = true;
-				else if (fileType == REL_DATASET && skipRels) doSkip = true;
-				switch(fileType){
-				case NODE_DATASET: 
-				case WAY_DATASET: 
-				case REL_DATASET: 
-				case BBOX_DATASET:
-				case TIMESTAMP_DATASET:
-				case HEADER_DATASET:
-					if (doSkip){ 
-						skip(bytesToRead);
-						continue;
-					}
-					else{ 
-						if (bytesToRead > ioBuf.length){
-							ioBuf = new byte[(int)bytesToRead+100];
-						}
-						int bytesRead  = 0;
-						int neededBytes = bytesToRead;
-						while (neededBytes > 0){
-							bytesRead += is.read(ioBuf, bytesRead, neededBytes);
-							neededBytes -= bytesRead;
-						} 
-						ioPos = 0;
-						bis = new ByteArrayInputStream(ioBuf,0,bytesToRead);
-						is = bis;
-					}
-					break;					
-				default:	
+				if (decoder.error != null){
+					if (decoder.error instanceof IOException)
+						throw (IOException) decoder.error;
+					if (decoder.error instanceof RuntimeException)
+						throw (RuntimeException) decoder.error;
+					throw new RuntimeException(decoder.error);
 				}
 			}
-			if (fileType == EOF_FLAG) done = true; 
-			else if (fileType == NODE_DATASET) readNode();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private void readFile() throws IOException{
+		try {
+			readDataSets();
+		} catch (IOException e) {
+			// pass on the elements that were read before the error
+			flushNodes();
+			flushWays();
+			throw e;
+		}
+		flushNodes();
+		flushWays();
+	}
+	
+	private void readDataSets() throws IOException{
+		while(filePos < endPos){
+			long dataSetPos = filePos;
+			mapWindow(filePos, Math.min(MAX_DATASET_HEAD, fileSize - filePos));
+			ioPos = (int) (filePos - bufStart);
+			int fileType = buf.get(ioPos++) & 0xff;
+			if (fileType >= 0xf0){
+				// single byte data set
+				++filePos;
+				if (fileType == EOD_FLAG) 
+					break;
+				if (fileType == RESET_FLAG){
+					if (index != null && dataSetPos > 0)
+						finishSegment(dataSetPos);
+					reset();
+				}
+				continue;
+			}
+			if (index != null){
+				// save first occurrence of a data set type
+				if (firstPosInFile[fileType] == -1){
+					firstPosInFile[fileType] = dataSetPos;    
+				}
+			}
+			if (fileSize - filePos < MAX_DATASET_HEAD)
+				checkLength(dataSetPos);
+			long size = readUnsignedNum64();
+			long dataStart = bufStart + ioPos;
+			if (size > fileSize - dataStart)
+				throw new IOException("unexpected end of file in data set at position " + dataSetPos);
+			filePos = dataStart + size;
+			
+			boolean doSkip = false;
+			if (fileType == NODE_DATASET && skipNodes) doSkip = true;
+			else if (fileType == WAY_DATASET && skipWays) doSkip = true;
+			else if (fileType == REL_DATASET && skipRels) doSkip = true;
+			switch(fileType){
+			case NODE_DATASET: 
+			case WAY_DATASET: 
+			case REL_DATASET: 
+			case BBOX_DATASET:
+			case TIMESTAMP_DATASET:
+			case HEADER_DATASET:
+				break;
+			default:	
+				doSkip = true; // skip unknown data set
+			}
+			if (doSkip){
+				if (index != null && fileType >= NODE_DATASET && fileType <= REL_DATASET)
+					readSkippedId(fileType, dataStart, size);
+				continue;
+			}
+			mapWindow(dataStart, size);
+			ioPos = (int) (dataStart - bufStart);
+			bytesToRead = (int) size;
+			if (fileType == NODE_DATASET) readNode();
 			else if (fileType == WAY_DATASET) readWay();
 			else if (fileType == REL_DATASET) readRel();
 			else if (fileType == BBOX_DATASET) readBBox();
 			else if (fileType == TIMESTAMP_DATASET) readFileTimestamp();
 			else if (fileType == HEADER_DATASET) readHeader();
-			else if (fileType == EOD_FLAG) done = true;
-			else if (fileType == RESET_FLAG) reset();
-			else {
-				if (fileType < 0xf0 )skip(size); // skip unknown data set 
-			}
 		}
 	}
 	
+	/**
+	 * Make sure that the length of the data set that starts at ioPos - 1
+	 * is not cut off by the end of the file.
+	 * @param dataSetPos the file position of the data set 
+	 * @throws IOException
+	 */
+	private void checkLength(long dataSetPos) throws IOException{
+		int end = (int) (fileSize - bufStart);
+		for (int i = ioPos; i < end; i++){
+			if ((buf.get(i) & 0x80) == 0)
+				return;
+		}
+		throw new IOException("unexpected end of file in data set at position " + dataSetPos);
+	}
+	
+	/**
+	 * Read the id of a data set that is not decoded, so that the delta 
+	 * coding stays intact and the index contains the id. 
+	 */
+	private void readSkippedId(int fileType, long dataStart, long size) throws IOException{
+		if (size == 0)
+			return;
+		mapWindow(dataStart, Math.min(size, MAX_DATASET_HEAD));
+		ioPos = (int) (dataStart - bufStart);
+		bytesToRead = (int) size;
+		long delta = readSignedNum64();
+		if (fileType == NODE_DATASET){
+			lastNodeId += delta;
+			noteElement(FileIndex.TYPE_NODES, lastNodeId);
+			segSkippedNodes = true;
+		} else if (fileType == WAY_DATASET){
+			lastWayId += delta;
+			noteElement(FileIndex.TYPE_WAYS, lastWayId);
+		} else {
+			lastRelId += delta;
+			noteElement(FileIndex.TYPE_RELS, lastRelId);
+		}
+	}
+	
+	/**
+	 * Update the element types and the id range of the current segment. 
+	 */
+	private void noteElement(short type, long id){
+		if (index == null)
+			return;
+		segType |= type;
+		if (id < segMinId)
+			segMinId = id;
+		if (id > segMaxId)
+			segMaxId = id;
+	}
+	
+	/**
+	 * Update the bounding box of the nodes in the current segment. 
+	 */
+	private void noteCoord(int lat, int lon){
+		if (index == null)
+			return;
+		if (lat < segMinLat)
+			segMinLat = lat;
+		if (lat > segMaxLat)
+			segMaxLat = lat;
+		if (lon < segMinLon)
+			segMinLon = lon;
+		if (lon > segMaxLon)
+			segMaxLon = lon;
+	}
+	
+	/**
+	 * Add the current segment to the index and start a new one.
+	 * @param end the start of the next segment
+	 */
+	private void finishSegment(long end){
+		Area nodeBounds = null;
+		if (!segSkippedNodes && segMinLat <= segMaxLat)
+			nodeBounds = new Area(Utils.fixedToMapUnit(segMinLat), Utils.fixedToMapUnit(segMinLon),
+					Utils.fixedToMapUnit(segMaxLat), Utils.fixedToMapUnit(segMaxLon));
+		if (segMinId > segMaxId)
+			index.addBlock(segStart, segType, 0, 0, nodeBounds);
+		else 
+			index.addBlock(segStart, segType, segMinId, segMaxId, nodeBounds);
+		segStart = end;
+		segType = 0;
+		segMinId = Long.MAX_VALUE;
+		segMaxId = Long.MIN_VALUE;
+		segMinLat = segMinLon = Integer.MAX_VALUE;
+		segMaxLat = segMaxLon = Integer.MIN_VALUE;
+		segSkippedNodes = false;
+	}
+	
+	/**
+	 * Pass the collected nodes on.
+	 */
+	private void flushNodes(){
+		if (nodeBatch.size() == 0)
+			return;
+		if (segmentQueue == null){
+			process(nodeBatch);
+		} else {
+			deliver(nodeBatch);
+			nodeBatch = newNodeBatch();
+		}
+	}
+	
+	/**
+	 * Pass the collected ways on.
+	 */
+	private void flushWays(){
+		if (wayBatch.size() == 0)
+			return;
+		if (segmentQueue == null){
+			process(wayBatch);
+		} else {
+			deliver(wayBatch);
+			wayBatch = newWayBatch();
+		}
+	}
+	
+	/**
+	 * Pass a relation or bounding box on. Collected nodes and ways are 
+	 * passed on first to keep the order of the file.
+	 */
+	private void flushPart(Object part){
+		flushNodes();
+		flushWays();
+		if (segmentQueue == null)
+			process(part);
+		else 
+			deliver(part);
+	}
+	
+	/**
+	 * Queue a part of a segment for the parser that reads the whole file. 
+	 */
+	private void deliver(Object part){
+		try {
+			segmentQueue.put(part);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Pass a NodeBatch, WayBatch, Relation or Area to the processor.
+	 * Batches are cleared afterwards. 
+	 */
+	private void process(Object part){
+		if (part instanceof NodeBatch){
+			NodeBatch nodes = (NodeBatch) part;
+			for (int i = 0; i < nodes.size(); i++)
+				countNode(nodes.getId(i));
+			processor.processNodes(nodes);
+			nodes.clear();
+		} else if (part instanceof WayBatch){
+			WayBatch ways = (WayBatch) part;
+			for (int i = 0; i < ways.size(); i++)
+				countWay(ways.getId(i));
+			processor.processWays(ways);
+			ways.clear();
+		} else if (part instanceof Relation){
+			Relation rel = (Relation) part;
+			countRelation(rel.getId());
+			processor.processRelation(rel);
+		} else {
+			processor.boundTag((Area) part);
+		}
+	}
+	
+	private NodeBatch newNodeBatch(){
+		NodeBatch batch = freeNodeBatches.poll();
+		return (batch != null) ? batch : new NodeBatch();
+	}
+	
+	private WayBatch newWayBatch(){
+		WayBatch batch = freeWayBatches.poll();
+		return (batch != null) ? batch : new WayBatch();
+	}
+	
 	/**
 	 * read (and ignore) the file timestamp data set
 	 */
@@ -219,14 +613,65 @@ public class O5mMapParser implements MapReader{
 	}
 	
 	/**
-	 * Skip the given number of bytes
-	 * @param bytes 
+	 * Make sure that the given range of the file is mapped into buf.
+	 * @param pos the file position
+	 * @param len the number of bytes that must be available
+	 * @throws IOException
+	 */
+	private void mapWindow(long pos, long len) throws IOException{
+		long end = pos + len;
+		if (end > fileSize)
+			throw new IOException("unexpected end of file at position " + fileSize);
+		if (buf != null && pos >= bufStart && end <= bufEnd)
+			return;
+		if (stream != null){
+			readWindow(pos, len);
+			return;
+		}
+		long size = Math.min(fileSize - pos, Math.max(WINDOW_SIZE, len));
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("data set at position " + pos + " is too large");
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		bufStart = pos;
+		bufEnd = pos + size;
+	}
+
+	/**
+	 * Fill buf with the given range of the file from the stream. The
+	 * file is read sequentially, pos must not be before the start of 
+	 * the current window.
+	 * @param pos the file position
+	 * @param len the number of bytes that must be available
 	 * @throws IOException
 	 */
-	private void skip(long bytes)throws IOException{
-		long toSkip = bytes;
-		while (toSkip > 0)
-			toSkip -= is.skip(toSkip);
+	private void readWindow(long pos, long len) throws IOException{
+		long size = Math.min(fileSize - pos, Math.max(STREAM_WINDOW_SIZE, len));
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("data set at position " + pos + " is too large");
+		int keep = (buf != null && pos < bufEnd) ? (int) (bufEnd - pos) : 0;
+		byte[] data = window;
+		if (data == null || data.length < size)
+			data = new byte[(int) size];
+		if (keep > 0)
+			System.arraycopy(window, (int) (pos - bufStart), data, 0, keep);
+		long streamPos = (buf == null) ? 0 : bufEnd;
+		while (streamPos < pos){
+			long skipped = stream.skip(pos - streamPos);
+			if (skipped <= 0)
+				throw new IOException("Unexpected end of file at position " + streamPos);
+			streamPos += skipped;
+		}
+		int off = keep;
+		while (off < size){
+			int n = stream.read(data, off, (int) size - off);
+			if (n < 0)
+				throw new IOException("Unexpected end of file at position " + (pos + off));
+			off += n;
+		}
+		window = data;
+		buf = ByteBuffer.wrap(data);
+		bufStart = pos;
+		bufEnd = pos + size;
 	}
 	
 	/**
@@ -234,19 +679,20 @@ public class O5mMapParser implements MapReader{
 	 * @throws IOException
 	 */
 	private void readBBox() {
-		double leftf = (double) (100L*readSignedNum32()) * FACTOR;
-		double bottomf = (double) (100L*readSignedNum32()) * FACTOR;
-		double rightf = (double) (100L*readSignedNum32()) * FACTOR;
-		double topf = (double) (100L*readSignedNum32()) * FACTOR;
+		int left = readSignedNum32();
+		int bottom = readSignedNum32();
+		int right = readSignedNum32();
+		int top = readSignedNum32();
 		assert bytesToRead == 0;
-		System.out.println("Bounding box "+leftf+" "+bottomf+" "+rightf+" "+topf);
+		System.out.println("Bounding box " + Utils.fixedToDegrees(left) + " " + Utils.fixedToDegrees(bottom) + " "
+				+ Utils.fixedToDegrees(right) + " " + Utils.fixedToDegrees(top));
 
 		Area area = new Area(
-				Utils.toMapUnit(bottomf),
-				Utils.toMapUnit(leftf),
-				Utils.toMapUnit(topf),
-				Utils.toMapUnit(rightf));
-		processor.boundTag(area);
+				Utils.fixedToMapUnit(bottom),
+				Utils.fixedToMapUnit(left),
+				Utils.fixedToMapUnit(top),
+				Utils.fixedToMapUnit(right));
+		flushPart(area);
 	}
 
 	/**
@@ -254,8 +700,8 @@ public class O5mMapParser implements MapReader{
 	 * @throws IOException
 	 */
 	private void readNode() throws IOException{
-		Node node = new Node();
 		lastNodeId += readSignedNum64();
+		noteElement(FileIndex.TYPE_NODES, lastNodeId);
 		if (bytesToRead == 0)
 			return; // only nodeId: this is a delete action, we ignore it 
 		readVersionTsAuthor();
@@ -263,16 +709,16 @@ public class O5mMapParser implements MapReader{
 			return; // only nodeId+version: this is a delete action, we ignore it 
 		int lon = readSignedNum32() + lastLon; lastLon = lon;
 		int lat = readSignedNum32() + lastLat; lastLat = lat;
-			
-		double flon = (double)(100L*lon) * FACTOR;
-		double flat = (double)(100L*lat) * FACTOR;
-		assert flat >= -90.0 && flat <= 90.0;  
-		assert flon >= -180.0 && flon <= 180.0;  
+		assert lat >= -900000000 && lat <= 900000000;  
+		assert lon >= -1800000000 && lon <= 1800000000;  
+		noteCoord(lat, lon);
 
-		node.set(lastNodeId, flat, flon);
-		readTags(node);
-		countNode(lastNodeId);
-		processor.processNode(node);
+		if (wayBatch.size() > 0)
+			flushWays();
+		nodeBatch.add(lastNodeId, lat, lon);
+		readTags(nodeBatch);
+		if (nodeBatch.size() >= BATCH_SIZE)
+			flushNodes();
 	}
 	
 	/**
@@ -281,26 +727,27 @@ public class O5mMapParser implements MapReader{
 	 */
 	private void readWay() throws IOException{
 		lastWayId += readSignedNum64();
+		noteElement(FileIndex.TYPE_WAYS, lastWayId);
 		if (bytesToRead == 0)
 			return; // only wayId: this is a delete action, we ignore it 
 
 		readVersionTsAuthor();
 		if (bytesToRead == 0)
 			return; // only wayId + version: this is a delete action, we ignore it 
-		Way way = new Way();
-		way.set(lastWayId);
+		if (nodeBatch.size() > 0)
+			flushNodes();
+		wayBatch.add(lastWayId);
 		long refSize = readUnsignedNum32();
 		long stop = bytesToRead - refSize;
 		
 		while(bytesToRead > stop){
 			lastRef[0] += readSignedNum64();
-			way.addRef(lastRef[0]);
+			wayBatch.addRef(lastRef[0]);
 		}
 		
-		readTags(way);
-		countWay(lastWayId);
-		processor.processWay(way);
-		
+		readTags(wayBatch);
+		if (wayBatch.size() >= BATCH_SIZE)
+			flushWays();
 	}
 	
 	/**
@@ -309,6 +756,7 @@ public class O5mMapParser implements MapReader{
 	 */
 	private void readRel() throws IOException{
 		lastRelId += readSignedNum64(); 
+		noteElement(FileIndex.TYPE_RELS, lastRelId);
 		if (bytesToRead == 0)
 			return; // only relId: this is a delete action, we ignore it 
 		readVersionTsAuthor();
@@ -323,31 +771,81 @@ public class O5mMapParser implements MapReader{
 			long deltaRef = readSignedNum64();
 			int refType = readRelRef();
 			lastRef[refType] += deltaRef;
-			rel.addMember(stringPair[0], lastRef[refType], stringPair[1]);
+			if (refType < 3)
+				rel.addMember((byte) refType, lastRef[refType], resolveRole());
 		}
 		
 		// tags
 		readTags(rel);
-		countRelation(lastRelId);
-		processor.processRelation(rel);
+		if (!rel.isIgnored())
+			flushPart(rel);
 	}
 	
 	private void readTags(Element elem) throws IOException{
 		while (bytesToRead > 0){
 			readStringPair();
 			if (skipTags == false){
-				elem.addTag(stringPair[0],stringPair[1]);
+				resolveStringPair();
+				elem.addTag(pairKeyId, pairValueId, stringPair[1]);
 			}
 		}
 		assert bytesToRead == 0;
 		
 	}
+	
+	/**
+	 * Read the tags of the last element in the batch.
+	 */
+	private void readTags(ElementBatch batch) throws IOException{
+		while (bytesToRead > 0){
+			readStringPair();
+			if (skipTags == false){
+				resolveStringPair();
+				batch.addTag(pairKeyId, pairValueId, stringPair[1]);
+			}
+		}
+		assert bytesToRead == 0;
+	}
+	/**
+	 * Set pairKeyId and pairValueId to the TagDictionary ids of the 
+	 * tag in stringPair.
+	 */
+	private void resolveStringPair(){
+		if (stringPairPos >= 0 && stringTableIds[0][stringPairPos] >= 0){
+			pairKeyId = stringTableIds[0][stringPairPos];
+			pairValueId = stringTableIds[1][stringPairPos];
+			return;
+		}
+		pairKeyId = TagDictionary.getKeyId(stringPair[0]);
+		pairValueId = TagDictionary.getValueId(stringPair[1]);
+		if (stringPairPos >= 0){
+			stringTableIds[0][stringPairPos] = pairKeyId;
+			stringTableIds[1][stringPairPos] = pairValueId;
+		}
+	}
+
+	/**
+	 * @return the TagDictionary id of the member role in stringPair
+	 */
+	private int resolveRole(){
+		if (stringPairPos >= 0 && stringTableIds[0][stringPairPos] == ROLE)
+			return stringTableIds[1][stringPairPos];
+		int roleId = Relation.getRoleId(stringPair[1]);
+		if (stringPairPos >= 0){
+			stringTableIds[0][stringPairPos] = ROLE;
+			stringTableIds[1][stringPairPos] = roleId;
+		}
+		return roleId;
+	}
+
 	/**
 	 * Store a new string pair (length check must be performed by caller)
 	 */
 	private void storeStringPair(){
 		stringTable[0][currStringTablePos] = stringPair[0];
 		stringTable[1][currStringTablePos] = stringPair[1];
+		stringTableIds[0][currStringTablePos] = UNRESOLVED;
+		stringPairPos = currStringTablePos;
 		++currStringTablePos;
 		if (currStringTablePos >= STRING_TABLE_SIZE)
 			currStringTablePos = 0;
@@ -364,6 +862,7 @@ public class O5mMapParser implements MapReader{
 			pos += STRING_TABLE_SIZE;
 		stringPair[0] = stringTable[0][pos];
 		stringPair[1] = stringTable[1][pos];
+		stringPairPos = pos;
 	}
 
 	/**
@@ -390,6 +889,7 @@ public class O5mMapParser implements MapReader{
 	private void readAuthor() throws IOException{
 		int stringRef = readUnsignedNum32();
 		if (stringRef == 0){
+			stringPairPos = -1;
 			long toReadStart = bytesToRead;
 			long uidNum = readUnsignedNum64();
 			if (uidNum == 0)
@@ -403,7 +903,7 @@ public class O5mMapParser implements MapReader{
 			int buffPos = 0; 
 			stringPair[1] = null;
 			while(stringPair[1] == null){
-				final int b = ioBuf[ioPos++];
+				final int b = buf.get(ioPos++);
 				--bytesToRead;
 				cnvBuffer[buffPos++] = (byte) b;
 
@@ -429,7 +929,8 @@ public class O5mMapParser implements MapReader{
 		long toReadStart = bytesToRead;
 		int stringRef = readUnsignedNum32();
 		if (stringRef == 0){
-			refType = ioBuf[ioPos++] - 0x30;
+			stringPairPos = -1;
+			refType = buf.get(ioPos++) - 0x30;
 			--bytesToRead;
 
 			if (refType < 0 || refType > 2)
@@ -440,7 +941,7 @@ public class O5mMapParser implements MapReader{
 			int buffPos = 0; 
 			stringPair[1] = null;
 			while(stringPair[1] == null){
-				final int b = ioBuf[ioPos++];
+				final int b = buf.get(ioPos++);
 				--bytesToRead;
 				cnvBuffer[buffPos++] =  (byte)b;
 
@@ -471,12 +972,13 @@ public class O5mMapParser implements MapReader{
 	private void readStringPair() throws IOException{
 		int stringRef = readUnsignedNum32();
 		if (stringRef == 0){
+			stringPairPos = -1;
 			long toReadStart = bytesToRead;
 			int cnt = 0;
 			int buffPos = 0; 
 			int start = 0;
 			while (cnt < 2){
-				final int b = ioBuf[ioPos++];
+				final int b = buf.get(ioPos++);
 				--bytesToRead;
 				cnvBuffer[buffPos++] =  (byte)b;
 
@@ -501,6 +1003,7 @@ public class O5mMapParser implements MapReader{
 		lastTs = 0; lastChangeSet = 0;
 		lastLon = 0; lastLat = 0;
 		stringTable = new String[2][STRING_TABLE_SIZE];
+		stringTableIds = new int[2][STRING_TABLE_SIZE];
 		currStringTablePos = 0;
 	}
 
@@ -509,7 +1012,7 @@ public class O5mMapParser implements MapReader{
 	 * @throws IOException
 	 */
 	private void readHeader() throws IOException {
-		if (ioBuf[0] != 'o' || ioBuf[1] != '5' || (ioBuf[2]!='c'&&ioBuf[2]!='m') ||ioBuf[3] != '2' ){
+		if (buf.get(ioPos) != 'o' || buf.get(ioPos+1) != '5' || (buf.get(ioPos+2)!='c'&&buf.get(ioPos+2)!='m') ||buf.get(ioPos+3) != '2' ){
 			throw new IOException("unsupported header");
 		}
 	}
@@ -543,7 +1046,7 @@ public class O5mMapParser implements MapReader{
 	 */
 	private int readSignedNum32() {
 		int result;
-		int b = ioBuf[ioPos++];
+		int b = buf.get(ioPos++);
 		--bytesToRead;
 		result = b;
 		if ((b & 0x80) == 0){  // just one byte
@@ -555,7 +1058,7 @@ public class O5mMapParser implements MapReader{
 		int sign = b & 0x01;
 		result = (result & 0x7e)>>1;
 		int fac = 0x40;
-		while (((b = ioBuf[ioPos++]) & 0x80) != 0){ // more bytes will follow
+		while (((b = buf.get(ioPos++)) & 0x80) != 0){ // more bytes will follow
 			--bytesToRead;
 			result += fac * (b & 0x7f) ;
 			fac  <<= 7;
@@ -576,7 +1079,7 @@ public class O5mMapParser implements MapReader{
 	 */
 	private long readSignedNum64() {
 		long result;
-		int b = ioBuf[ioPos++];
+		int b = buf.get(ioPos++);
 		--bytesToRead;
 		result = b;
 		if ((b & 0x80) == 0){  // just one byte
@@ -588,7 +1091,7 @@ public class O5mMapParser implements MapReader{
 		int sign = b & 0x01;
 		result = (result & 0x7e)>>1;
 		long fac = 0x40;
-		while (((b = ioBuf[ioPos++]) & 0x80) != 0){ // more bytes will follow
+		while (((b = buf.get(ioPos++)) & 0x80) != 0){ // more bytes will follow
 			--bytesToRead;
 			result += fac * (b & 0x7f) ;
 			fac  <<= 7;
@@ -602,38 +1105,13 @@ public class O5mMapParser implements MapReader{
 
 	}
 
-	/**
-	 * read a varying length unsigned number (see o5m definition)
-	 * @return a long
-	 * @throws IOException
-	 */
-	private long readUnsignedNum64FromStream()throws IOException {
-		int b = is.read();
-		--bytesToRead;
-		long result = b;
-		if ((b & 0x80) == 0){  // just one byte
-			return result;
-		}
-		result &= 0x7f;
-		long fac = 0x80;
-		while (((b = is.read()) & 0x80) != 0){ // more bytes will follow
-			--bytesToRead;
-			result += fac * (b & 0x7f) ;
-			fac  <<= 7;
-		}
-		--bytesToRead;
-		result += fac * b;
-		return result;
-	}
-	
-	
 	/**
 	 * read a varying length unsigned number (see o5m definition)
 	 * @return a long
 	 * @throws IOException
 	 */
 	private long readUnsignedNum64(){
-		int b = ioBuf[ioPos++];
+		int b = buf.get(ioPos++);
 		--bytesToRead;
 		long result = b;
 		if ((b & 0x80) == 0){  // just one byte
@@ -641,7 +1119,7 @@ public class O5mMapParser implements MapReader{
 		}
 		result &= 0x7f;
 		long fac = 0x80;
-		while (((b = ioBuf[ioPos++]) & 0x80) != 0){ // more bytes will follow
+		while (((b = buf.get(ioPos++)) & 0x80) != 0){ // more bytes will follow
 			--bytesToRead;
 			result += fac * (b & 0x7f) ;
 			fac  <<= 7;
@@ -658,7 +1136,7 @@ public class O5mMapParser implements MapReader{
 	 * @throws IOException
 	 */
 	private int readUnsignedNum32(){
-		int b = ioBuf[ioPos++];
+		int b = buf.get(ioPos++);
 		--bytesToRead;
 		int result = b;
 		if ((b & 0x80) == 0){  // just one byte
@@ -666,7 +1144,7 @@ public class O5mMapParser implements MapReader{
 		}
 		result &= 0x7f;
 		long fac = 0x80;
-		while (((b = ioBuf[ioPos++]) & 0x80) != 0){ // more bytes will follow
+		while (((b = buf.get(ioPos++)) & 0x80) != 0){ // more bytes will follow
 			--bytesToRead;
 			result += fac * (b & 0x7f) ;
 			fac  <<= 7;
@@ -676,8 +1154,39 @@ public class O5mMapParser implements MapReader{
 		return result;
 	}
 
-	public long[] getSkipArray() {
-		return firstPosInFile;
+	/**
+	 * @return the index that was collected while reading the file or null
+	 * if the parser was created with a known index
+	 */
+	public FileIndex getIndex() {
+		return index;
 	}
 	
+	/**
+	 * Decodes one segment of the file on a pool thread. 
+	 */
+	private class SegmentDecoder implements Runnable {
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(SEGMENT_QUEUE_SIZE);
+		final long start, end;
+		volatile Throwable error;
+		
+		SegmentDecoder(long start, long end){
+			this.start = start;
+			this.end = end;
+		}
+		
+		public void run() {
+			try {
+				O5mMapParser parser = new O5mMapParser(O5mMapParser.this, start, end, queue);
+				try {
+					parser.readFile();
+				} catch (Throwable t) {
+					error = t;
+				}
+				queue.put(END_OF_SEGMENT);
+			} catch (InterruptedException e) {
+				// the reader has given up  
+			}
+		}
+	}
 }
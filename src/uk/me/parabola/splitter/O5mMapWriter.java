@@ -22,9 +22,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.Locale;
-import uk.me.parabola.splitter.Relation.Member;
 
 /**
  * Implements the needed methods to write the result in the o5m format. 
@@ -57,7 +55,8 @@ public class O5mMapWriter extends AbstractOSMWriter{
 
 
 	private StringPair[] stw__tab; // string table
-	private StringPair stringPair;
+	// the string pair that is written
+	private final StringPair stringPair = new StringPair();
 	
 	// for delta calculations
 	private long lastNodeId;
@@ -187,8 +186,8 @@ public class O5mMapWriter extends AbstractOSMWriter{
 		long delta = node.getId() - lastNodeId; lastNodeId = node.getId(); 
 		writeSignedNum(delta, stream);
 		stream.write(0x00); // no version info
-		int o5Lon = (int)(node.getLon() * FACTOR);
-		int o5Lat = (int)(node.getLat() * FACTOR);
+		int o5Lon = node.getFixedLon();
+		int o5Lat = node.getFixedLat();
 		int deltaLon = o5Lon - lastLon; lastLon = o5Lon;
 		int deltaLat = o5Lat - lastLat; lastLat = o5Lat;
 		writeSignedNum(deltaLon, stream);
@@ -230,8 +229,8 @@ public class O5mMapWriter extends AbstractOSMWriter{
 		writeSignedNum(delta, stream);
 		stream.write(0x00); // no version info
 		ByteArrayOutputStream memStream = new ByteArrayOutputStream(256);
-		for (Member mem: rel.getMembers()){
-			writeRelRef(mem, memStream);
+		for (int i = 0; i < rel.getMemberCount(); i++){
+			writeRelRef(rel, i, memStream);
 		}
 		writeUnsignedNum(memStream.size(),stream);
 		memStream.writeTo(stream);
@@ -239,38 +238,32 @@ public class O5mMapWriter extends AbstractOSMWriter{
 		writeDataset(REL_DATASET,stream);
 	}
 
-	private void writeRelRef(Member mem, ByteArrayOutputStream memStream) throws IOException {
-		int refType = 0;
-		String type = mem.getType(); 
-		if ("node".equals(type)) 
-			refType = 0;
-		else if ("way".equals(type)) 
-			refType = 1;
-		else if ("relation".equals(type)) 
-			refType = 2;
-		else {
-			assert (false); // Software bug: Unknown entity.
-		}
-		long delta = mem.getRef() - lastRef[refType]; lastRef[refType] = mem.getRef(); 
+	private void writeRelRef(Relation rel, int i, ByteArrayOutputStream memStream) throws IOException {
+		// the member types of Relation are those of the o5m format
+		int refType = rel.getMemberType(i);
+		long ref = rel.getMemberRef(i);
+		long delta = ref - lastRef[refType]; lastRef[refType] = ref; 
 		writeSignedNum(delta, memStream);
-		stw_write(REL_REF_TYPES[refType] + mem.getRole(), null, memStream); 
+		stringPair.set(REL_REF_TYPES[refType] + rel.getMemberRole(i), null, TagDictionary.NO_ID, TagDictionary.NO_ID);
+		stw_write(memStream); 
 	}
 
 	private void writeTags(Element element, OutputStream stream) throws IOException {
 		if (!element.hasTags())
 			return;
-		Iterator<Element.Tag> it = element.tagsIterator();
-		while (it.hasNext()) {
-			Element.Tag entry = it.next();
-			stw_write(entry.key, entry.value, stream);
+		for (int i = 0; i < element.getTagCount(); i++) {
+			stringPair.set(element.getTagKey(i), element.getTagValue(i), element.getTagKeyId(i), element.getTagValueId(i));
+			stw_write(stream);
 		}
 	}
 
 	
-	private void stw_write(String s1, String s2, OutputStream stream) throws IOException {
+	/**
+	 * Write the string pair in stringPair. 
+	 */
+	private void stw_write(OutputStream stream) throws IOException {
 		int hash;
 		int ref;
-		stringPair = new StringPair(s1,s2);
 		//  try to find a matching string (pair) in string table
 		{
 			int i;  // index in stw__tab[] 
@@ -329,7 +322,12 @@ public class O5mMapWriter extends AbstractOSMWriter{
 		{
 			int i;
 
-			stw__tab[stw__tabi] = stringPair;
+			StringPair entry = stw__tab[stw__tabi];
+			if (entry == null){
+				entry = new StringPair();
+				stw__tab[stw__tabi] = entry;
+			}
+			entry.set(stringPair.s1, stringPair.s2, stringPair.id1, stringPair.id2);
 			i = stw__hashtab[hash];
 			if(i < 0)  // no reference in hash table until now
 				stw__tabprev[stw__tabi] = stw__tabnext[stw__tabi] = stw__tabi;
@@ -362,7 +360,16 @@ public class O5mMapWriter extends AbstractOSMWriter{
 		do{
 			// compare the string (pair) with the tab entry 
 			StringPair p2 = stw__tab[stri];
-			if (p2.s1.equals(s1)){
+			if (stringPair.id2 >= 0 && p2.id2 >= 0){
+				// both are tags with known ids
+				if (p2.id1 == stringPair.id1 && p2.id2 == stringPair.id2){
+					ref = stw__tabi - stri;
+					if (ref <= 0)
+						ref += STW__TAB_MAX;
+					return ref;
+				}
+			}
+			else if (p2.s1.equals(s1)){
 				// first string equal to first string in table 
 				if (p2.s2 == null && s2 == null || p2.s2 != null
 						&& p2.s2.equals(s2)) {
@@ -396,9 +403,14 @@ public class O5mMapWriter extends AbstractOSMWriter{
 	 * @throws IOException 
 	 */
 	private int stw_hash() throws IOException{
-		int len = stringPair.s1.getBytes("UTF-8").length;
-		if (stringPair.s2 != null)
-			len += stringPair.s2.getBytes("UTF-8").length;
+		int len;
+		if (stringPair.id2 >= 0)
+			len = TagDictionary.getUtf8Length(stringPair.id1) + TagDictionary.getUtf8Length(stringPair.id2);
+		else {
+			len = Utils.utf8Length(stringPair.s1);
+			if (stringPair.s2 != null)
+				len += Utils.utf8Length(stringPair.s2);
+		}
 		if (len > STW_TAB_STR_MAX)
 			return -1;
 		int hash = stringPair.hashCode();
@@ -454,15 +466,25 @@ public class O5mMapWriter extends AbstractOSMWriter{
 	}
 	
 
+	/**
+	 * A tag or a relation member role. Tags with known values use
+	 * the ids of the {@link TagDictionary}, so they are hashed and
+	 * compared without looking at the strings.
+	 */
 	class StringPair{
 		String s1,s2;
+		int id1,id2;
 		
-		StringPair(String s1,String s2){
+		void set(String s1, String s2, int id1, int id2){
 			this.s1 = s1;
 			this.s2 = s2;
+			this.id1 = id1;
+			this.id2 = id2;
 		}
 		
 		public int hashCode(){
+			if (id2 >= 0)
+				return id1 * 0x9e3779b1 ^ id2;
 			int hash = s1.hashCode();
 			if (s2 != null){
 				hash ^= s2.hashCode();
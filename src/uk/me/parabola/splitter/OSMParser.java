@@ -12,192 +12,364 @@
  */
 package uk.me.parabola.splitter;
 
-import org.xmlpull.v1.XmlPullParserException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 
 /**
  * Parses an OSM file, calling the appropriate methods on a
  * {@code MapProcessor} as it progresses.
+ * The UTF-8 bytes are scanned directly. Only the elements that appear in
+ * OSM files are recognised, ids and coordinates are parsed from the bytes
+ * and elements that are not needed by the processor are skipped without
+ * looking at their attributes.
  */
-class OSMParser extends AbstractXppParser implements MapReader {
+class OSMParser implements MapReader {
 
 	// How many elements to process before displaying a status update
 	private static final int NODE_STATUS_UPDATE_THRESHOLD = 2500000;
 	private static final int WAY_STATUS_UPDATE_THRESHOLD = 500000;
 	private static final int RELATION_STATUS_UPDATE_THRESHOLD = 50000;
+	// number of nodes or ways that are collected before they are passed on
+	private static final int BATCH_SIZE = 4096;
+	private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] NODE = bytes("node");
+	private static final byte[] WAY = bytes("way");
+	private static final byte[] RELATION = bytes("relation");
+	private static final byte[] TAG = bytes("tag");
+	private static final byte[] ND = bytes("nd");
+	private static final byte[] MEMBER = bytes("member");
+	private static final byte[] BOUNDS = bytes("bounds");
+	private static final byte[] BOUND = bytes("bound");
+	private static final byte[] ID = bytes("id");
+	private static final byte[] LAT = bytes("lat");
+	private static final byte[] LON = bytes("lon");
+	private static final byte[] K = bytes("k");
+	private static final byte[] V = bytes("v");
+	private static final byte[] REF = bytes("ref");
+	private static final byte[] TYPE = bytes("type");
+	private static final byte[] ROLE = bytes("role");
+	private static final byte[] ACTION = bytes("action");
+	private static final byte[] DELETE = bytes("delete");
+	private static final byte[] BOX = bytes("box");
+	private static final byte[] END_NODE = bytes("</node");
+	private static final byte[] END_WAY = bytes("</way");
+	private static final byte[] END_RELATION = bytes("</relation");
+	private static final byte[] COMMENT_START = bytes("<!--");
+	private static final byte[] COMMENT_END = bytes("-->");
 
 	private enum State {
 		Node, Way, Relation, None
 	}
 
-	private Node currentNode = new Node();	
-	private Way currentWay = new Way();	
-	private Relation currentRelation = new Relation();	
+	private final NodeBatch nodeBatch = new NodeBatch();
+	private final WayBatch wayBatch = new WayBatch();
+	private Relation currentRelation = new Relation();
 
 	private final MapProcessor processor;
 
 	// There are mixed nodes and ways in the file
 	private final boolean mixed;
 	private final boolean startNodeOnly;
+	private final boolean skipTags;
+	private final boolean skipNodes;
+	private final boolean skipWays;
+	private final boolean skipRels;
 
 	private State state = State.None;
 	private long nodeCount;
 	private long wayCount;
 	private long relationCount;
-	private long minNodeId = Long.MAX_VALUE;
-	private long maxNodeId = Long.MIN_VALUE;
 
-	OSMParser(MapProcessor processor, boolean mixed) throws XmlPullParserException {
+	private InputStream in;
+	private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+	// the read position and the end of the valid data in buf
+	private int pos;
+	private int limit;
+	private boolean eof;
+
+	// the positions of the attribute found by nextAttr()
+	private int attrNameStart, attrNameEnd, valueStart, valueEnd;
+	// used to pass parts of the buffer to Convert.parseFixed()
+	private final ByteSequence byteSeq = new ByteSequence();
+
+	OSMParser(MapProcessor processor, boolean mixed) {
 		this.processor = processor;
 		this.startNodeOnly = processor.isStartNodeOnly();
+		this.skipTags = processor.skipTags();
+		this.skipNodes = processor.skipNodes();
+		this.skipWays = processor.skipWays();
+		this.skipRels = processor.skipRels();
 		this.mixed = mixed;
 	}
-	/*
-	@Override
-	public long getNodeCount() {
-		return nodeCount;
-	}
 
-	@Override
-	public long getWayCount() {
-		return wayCount;
-	}
-
-	@Override
-	public long getRelationCount() {
-		return relationCount;
+	public void endMap() {
+		processor.endMap();
 	}
 
-	@Override
-	public int getMinNodeId() {
-		return minNodeId;
+	/**
+	 * Read the OSM data from the stream. The stream is not closed.
+	 * @param stream the UTF-8 encoded OSM data
+	 * @throws IOException
+	 */
+	public void parse(InputStream stream) throws IOException {
+		in = stream;
+		pos = 0;
+		limit = 0;
+		eof = false;
+		state = State.None;
+		try {
+			while (true) {
+				while (pos < limit && buf[pos] != '<')
+					pos++;
+				if (pos >= limit) {
+					pos = limit;
+					if (!fill())
+						break;
+					continue;
+				}
+				if (ensure(COMMENT_START.length) && matches(pos, COMMENT_START)) {
+					pos += COMMENT_START.length;
+					if (!skipPast(COMMENT_END))
+						break;
+					continue;
+				}
+				int end = findTagEnd();
+				if (end < 0)
+					break;
+				int start = pos + 1;
+				pos = end + 1;
+				if (markup(start, end))
+					break;
+			}
+		} finally {
+			flushNodes();
+			flushWays();
+			in = null;
+		}
 	}
 
-	@Override
-	public int getMaxNodeId() {
-		return maxNodeId;
-	}
-	*/
-	public void endMap() {
-		processor.endMap();
-	}
-	
 	/**
-	 * Receive notification of the start of an element.
+	 * Handle the markup between the start (exclusive) and end position ('<' and '>').
+	 * pos already points behind the markup.
+	 * @return {@code true} to abort the parsing because there's
+	 * no further processing required, {@code false} otherwise.
 	 */
-	@Override
-	public boolean startElement(String name) {
+	private boolean markup(int start, int end) throws IOException {
+		byte first = buf[start];
+		if (first == '?' || first == '!')
+			return false;
+		if (first == '/') {
+			int nameEnd = nameEnd(start + 1, end);
+			endElement(start + 1, nameEnd);
+			return false;
+		}
+		boolean empty = buf[end - 1] == '/';
+		if (empty)
+			--end;
+		int nameEnd = nameEnd(start, end);
 		switch (state) {
 		case None:
-			CharSequence action = getAttr("action");
-			if (action != null && action.equals("delete"))
-				return false;
-			if (name.equals("node")) {
-				startNode();
-			} else if (name.equals("way")) {
-				if (!startNodeOnly)
-					startWay();
-				else if (!mixed)
-					return true;
-			} else if (name.equals("relation")) {
-				if (!startNodeOnly)
-					startRelation();
-			} else if (name.equals("bounds") || name.equals("bound")) {
-				processBounds();
-			}
-			break;
+			return startElement(start, nameEnd, end, empty);
 		case Node:
-			if (!startNodeOnly)
-				processNode(name);
+			if (equals(start, nameEnd, TAG))
+				readTag(nameEnd, end, nodeBatch);
 			break;
 		case Way:
-			if (!startNodeOnly)
-				processWay(name);
+			if (equals(start, nameEnd, ND)) {
+				long ref = 0;
+				for (int p = nameEnd; (p = nextAttr(p, end)) >= 0;) {
+					if (equals(attrNameStart, attrNameEnd, REF))
+						ref = parseLong();
+				}
+				wayBatch.addRef(ref);
+			} else if (equals(start, nameEnd, TAG))
+				readTag(nameEnd, end, wayBatch);
 			break;
 		case Relation:
-			if (!startNodeOnly)
-				processRelation(name);
+			if (equals(start, nameEnd, MEMBER))
+				readMember(nameEnd, end);
+			else if (equals(start, nameEnd, TAG))
+				readTag(nameEnd, end, currentRelation);
 			break;
 		}
 		return false;
 	}
 
-	private void startNode() {
-		String idStr = getAttr("id");
-		String latStr = getAttr("lat");
-		String lonStr = getAttr("lon");
-
-		if (idStr == null || latStr == null || lonStr == null) {
-			// This should never happen - bad/corrupt .osm file?
-			System.err.println("Node encountered with missing data. Bad/corrupt osm file? id=" + idStr + ", lat=" + latStr + ", lon=" + lonStr + ". Ignoring this node");
-			return;
+	/**
+	 * Handle the start tag of an element that is not inside of a node, way, or relation.
+	 * @return {@code true} to abort the parsing
+	 */
+	private boolean startElement(int start, int nameEnd, int end, boolean empty) throws IOException {
+		if (equals(start, nameEnd, NODE)) {
+			if (skipNodes || isDeleted(nameEnd, end)) {
+				skipElement(empty, END_NODE);
+				return false;
+			}
+			startNode(nameEnd, end);
+			if (state == State.Node) {
+				if (empty)
+					endNode();
+				else if (startNodeOnly || skipTags) {
+					skipElement(false, END_NODE);
+					endNode();
+				}
+			}
+		} else if (equals(start, nameEnd, WAY)) {
+			if (startNodeOnly && !mixed)
+				return true;
+			if (startNodeOnly || skipWays || isDeleted(nameEnd, end)) {
+				skipElement(empty, END_WAY);
+				return false;
+			}
+			startWay(nameEnd, end);
+			if (empty)
+				endWay();
+		} else if (equals(start, nameEnd, RELATION)) {
+			if (startNodeOnly || skipRels || isDeleted(nameEnd, end)) {
+				skipElement(empty, END_RELATION);
+				return false;
+			}
+			startRelation(nameEnd, end);
+			if (empty)
+				endRelation();
+		} else if (equals(start, nameEnd, BOUNDS) || equals(start, nameEnd, BOUND)) {
+			processBounds(nameEnd, end);
 		}
+		return false;
+	}
 
-		long id = Long.parseLong(idStr);
-		double lat = Convert.parseDouble(latStr);
-		double lon = Convert.parseDouble(lonStr);
+	private boolean isDeleted(int p, int end) {
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, ACTION))
+				return equals(valueStart, valueEnd, DELETE);
+		}
+		return false;
+	}
 
-		if (id < minNodeId) {
-			minNodeId = id;
+	private void startNode(int p, int end) {
+		long id = 0;
+		int lat = 0, lon = 0;
+		boolean haveId = false, haveLat = false, haveLon = false;
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, ID)) {
+				id = parseLong();
+				haveId = true;
+			} else if (equals(attrNameStart, attrNameEnd, LAT)) {
+				lat = Convert.parseFixed(byteSeq.set(valueStart, valueEnd));
+				haveLat = true;
+			} else if (equals(attrNameStart, attrNameEnd, LON)) {
+				lon = Convert.parseFixed(byteSeq.set(valueStart, valueEnd));
+				haveLon = true;
+			}
 		}
-		if (id > maxNodeId) {
-			maxNodeId = id;
+		if (!haveId || !haveLat || !haveLon) {
+			// This should never happen - bad/corrupt .osm file?
+			System.err.println("Node encountered with missing data. Bad/corrupt osm file? id=" + (haveId ? id : null)
+					+ ", lat=" + (haveLat ? Utils.fixedToDegrees(lat) : null) + ", lon=" + (haveLon ? Utils.fixedToDegrees(lon) : null)
+					+ ". Ignoring this node");
+			return;
 		}
-
-		currentNode = new Node();
-		currentNode.set(id, lat, lon);
+		if (wayBatch.size() > 0)
+			flushWays();
+		nodeBatch.add(id, lat, lon);
 		state = State.Node;
 	}
 
-	private void startWay() {
-		currentWay = new Way();
-		currentWay.set(getLongAttr("id"));
+	private void startWay(int p, int end) {
+		long id = 0;
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, ID))
+				id = parseLong();
+		}
+		if (nodeBatch.size() > 0)
+			flushNodes();
+		wayBatch.add(id);
 		state = State.Way;
 	}
 
-	private void startRelation() {
+	private void startRelation(int p, int end) {
+		long id = 0;
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, ID))
+				id = parseLong();
+		}
+		flushNodes();
+		flushWays();
 		currentRelation = new Relation();
-		currentRelation.set(getLongAttr("id"));
+		currentRelation.set(id);
 		state = State.Relation;
 	}
 
-	private void processNode(CharSequence name) {
-		if (name.equals("tag")) {
-			currentNode.addTag(getAttr("k"), getAttr("v"));
+	private void readTag(int p, int end, ElementBatch batch) {
+		if (skipTags)
+			return;
+		String key = null, value = null;
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, K))
+				key = getString(valueStart, valueEnd);
+			else if (equals(attrNameStart, attrNameEnd, V))
+				value = getString(valueStart, valueEnd);
 		}
+		if (key != null && value != null)
+			batch.addTag(key, value);
 	}
 
-	private void processWay(CharSequence name) {
-		if (name.equals("nd")) {
-			currentWay.addRef(getLongAttr("ref"));
-		} else if (name.equals("tag")) {
-			currentWay.addTag(getAttr("k"), getAttr("v"));
+	private void readTag(int p, int end, Element el) {
+		if (skipTags)
+			return;
+		String key = null, value = null;
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, K))
+				key = getString(valueStart, valueEnd);
+			else if (equals(attrNameStart, attrNameEnd, V))
+				value = getString(valueStart, valueEnd);
 		}
+		if (key != null && value != null)
+			el.addTag(key, value);
 	}
 
-	private void processRelation(CharSequence name) {
-		if (name.equals("tag")) {
-			currentRelation.addTag(getAttr("k"), getAttr("v"));
-		} else if (name.equals("member")) {
-			String type = getAttr("type");
-			long id = getLongAttr("ref");
-			String role = getAttr("role");
-			if ("node".equals(type) || "way".equals(type)) {
-				currentRelation.addMember(type, id, role);
-			}
+	private void readMember(int p, int end) {
+		String role = null;
+		byte type = -1;
+		long ref = 0;
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, TYPE)) {
+				if (equals(valueStart, valueEnd, NODE))
+					type = Relation.MEMBER_NODE;
+				else if (equals(valueStart, valueEnd, WAY))
+					type = Relation.MEMBER_WAY;
+				else if (equals(valueStart, valueEnd, RELATION))
+					type = Relation.MEMBER_RELATION;
+			} else if (equals(attrNameStart, attrNameEnd, REF))
+				ref = parseLong();
+			else if (equals(attrNameStart, attrNameEnd, ROLE))
+				role = getString(valueStart, valueEnd);
 		}
+		if (type >= 0)
+			currentRelation.addMember(type, ref, role);
 	}
 
-	private static final String[] BOUND_ATTRS = {"minlat", "minlon", "maxlat", "maxlon"};
+	private static final byte[][] BOUND_ATTRS = {bytes("minlat"), bytes("minlon"), bytes("maxlat"), bytes("maxlon")};
 
-	private void processBounds() {
-		String[] split;
-		String boxStr = getAttr("box");
+	private void processBounds(int p, int end) {
+		String[] split = new String[4];
+		String boxStr = null;
+		while ((p = nextAttr(p, end)) >= 0) {
+			if (equals(attrNameStart, attrNameEnd, BOX))
+				boxStr = getString(valueStart, valueEnd);
+			for (int i = 0; i < BOUND_ATTRS.length; i++) {
+				if (equals(attrNameStart, attrNameEnd, BOUND_ATTRS[i]))
+					split[i] = getString(valueStart, valueEnd);
+			}
+		}
 		if (boxStr == null) {
-			split = new String[4];
 			for (int i = 0; i < BOUND_ATTRS.length; i++) {
-				split[i] = getAttr(BOUND_ATTRS[i]);
 				if (split[i] == null) {
-					System.err.println("A <bounds/> tag was found but it has no 'box' attribute and no '" + BOUND_ATTRS[i] + "' attribute. Ignoring bounds");
+					System.err.println("A <bounds/> tag was found but it has no 'box' attribute and no '" + new String(BOUND_ATTRS[i], UTF8) + "' attribute. Ignoring bounds");
 					return;
 				}
 			}
@@ -229,44 +401,348 @@ class OSMParser extends AbstractXppParser implements MapReader {
 			return;
 		}
 
+		flushNodes();
+		flushWays();
 		processor.boundTag(bounds);
 		System.out.println("A <bounds/> tag was found. Area covered is " + bounds.toString());
 	}
 
 	/**
-	 * Receive notification of the end of an element.
+	 * Handle the end tag of an element.
 	 */
-	@Override
-	public void endElement(String name) {
+	private void endElement(int start, int nameEnd) {
 		if (state == State.Node) {
-			if (name.equals("node")) {
-				processor.processNode(currentNode);
-				state = State.None;
-				nodeCount++;
-				if (nodeCount % NODE_STATUS_UPDATE_THRESHOLD == 0) {
-					System.out.println(Utils.format(nodeCount) + " nodes processed...");
-				}
-			}
+			if (equals(start, nameEnd, NODE))
+				endNode();
 		} else if (state == State.Way) {
-			if (name.equals("way")) {
-				if (!startNodeOnly)
-					processor.processWay(currentWay);
-				state = State.None;
-				wayCount++;
-				if (wayCount % WAY_STATUS_UPDATE_THRESHOLD == 0) {
-					System.out.println(Utils.format(wayCount) + " ways processed...");
-				}
-			}
+			if (equals(start, nameEnd, WAY))
+				endWay();
 		} else if (state == State.Relation) {
-			if (name.equals("relation")) {
-				if (!startNodeOnly)
-					processor.processRelation(currentRelation);
-				state = State.None;
-				relationCount++;
-				if (relationCount % RELATION_STATUS_UPDATE_THRESHOLD == 0) {
-					System.out.println(Utils.format(relationCount) + " relations processed...");
-				}
+			if (equals(start, nameEnd, RELATION))
+				endRelation();
+		}
+	}
+
+	private void endNode() {
+		state = State.None;
+		if (nodeBatch.size() >= BATCH_SIZE)
+			flushNodes();
+		nodeCount++;
+		if (nodeCount % NODE_STATUS_UPDATE_THRESHOLD == 0) {
+			System.out.println(Utils.format(nodeCount) + " nodes processed...");
+		}
+	}
+
+	private void endWay() {
+		state = State.None;
+		if (wayBatch.size() >= BATCH_SIZE)
+			flushWays();
+		wayCount++;
+		if (wayCount % WAY_STATUS_UPDATE_THRESHOLD == 0) {
+			System.out.println(Utils.format(wayCount) + " ways processed...");
+		}
+	}
+
+	private void endRelation() {
+		state = State.None;
+		if (!currentRelation.isIgnored())
+			processor.processRelation(currentRelation);
+		relationCount++;
+		if (relationCount % RELATION_STATUS_UPDATE_THRESHOLD == 0) {
+			System.out.println(Utils.format(relationCount) + " relations processed...");
+		}
+	}
+
+	private void flushNodes() {
+		if (nodeBatch.size() == 0)
+			return;
+		processor.processNodes(nodeBatch);
+		nodeBatch.clear();
+	}
+
+	private void flushWays() {
+		if (wayBatch.size() == 0)
+			return;
+		processor.processWays(wayBatch);
+		wayBatch.clear();
+	}
+
+	/**
+	 * Skip the content of an element. The start tag was already read.
+	 * @param empty true if the start tag was an empty-element tag
+	 * @param endTag the beginning of the end tag
+	 */
+	private void skipElement(boolean empty, byte[] endTag) throws IOException {
+		if (empty)
+			return;
+		// '<' is not allowed in attribute values, so the end tag can't
+		// appear anywhere else
+		if (!skipPast(endTag))
+			return;
+		while (true) {
+			while (pos < limit && buf[pos] != '>')
+				pos++;
+			if (pos < limit) {
+				pos++;
+				return;
+			}
+			if (!fill())
+				return;
+		}
+	}
+
+	/**
+	 * Find the end of the markup that starts at pos.
+	 * The buffer is refilled as needed, so that the complete markup is in it.
+	 * @return the position of the '>' or -1 if the end of the input was reached
+	 */
+	private int findTagEnd() throws IOException {
+		int i = pos + 1;
+		byte quote = 0;
+		while (true) {
+			if (i >= limit) {
+				int offset = pos;
+				if (!fill())
+					return -1;
+				i -= offset - pos;
 			}
+			byte c = buf[i];
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'')
+				quote = c;
+			else if (c == '>')
+				return i;
+			++i;
+		}
+	}
+
+	/**
+	 * Move pos behind the next occurrence of the pattern.
+	 * @return false if the end of the input was reached
+	 */
+	private boolean skipPast(byte[] pattern) throws IOException {
+		byte first = pattern[0];
+		while (true) {
+			while (pos < limit && buf[pos] != first)
+				pos++;
+			if (!ensure(pattern.length))
+				return false;
+			if (matches(pos, pattern)) {
+				pos += pattern.length;
+				return true;
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * Make sure that at least len bytes starting at pos are in the buffer.
+	 * @return false if the input has less bytes
+	 */
+	private boolean ensure(int len) throws IOException {
+		while (limit - pos < len) {
+			if (!fill())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read more data. The bytes starting at pos are kept and moved to the
+	 * beginning of the buffer, the buffer is enlarged if it is full.
+	 * @return false if no more data is available
+	 */
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length) {
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, limit);
+			buf = newBuf;
+		}
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	/**
+	 * @return the position after the element name that starts at start
+	 */
+	private int nameEnd(int start, int end) {
+		int p = start;
+		while (p < end && !isWhitespace(buf[p]) && buf[p] != '/')
+			p++;
+		return p;
+	}
+
+	/**
+	 * Find the next attribute in a start tag and store the positions of
+	 * its name and value in attrNameStart, attrNameEnd, valueStart and valueEnd.
+	 * @param p the position where the search starts
+	 * @param end the end of the start tag
+	 * @return the position after the attribute or -1 if there is none
+	 */
+	private int nextAttr(int p, int end) {
+		while (p < end && isWhitespace(buf[p]))
+			p++;
+		if (p >= end)
+			return -1;
+		attrNameStart = p;
+		while (p < end && buf[p] != '=' && !isWhitespace(buf[p]))
+			p++;
+		attrNameEnd = p;
+		while (p < end && buf[p] != '"' && buf[p] != '\'')
+			p++;
+		if (p >= end)
+			return -1;
+		byte quote = buf[p++];
+		valueStart = p;
+		while (p < end && buf[p] != quote)
+			p++;
+		valueEnd = p;
+		return p + 1;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+	}
+
+	private boolean equals(int start, int end, byte[] name) {
+		if (end - start != name.length)
+			return false;
+		return matches(start, name);
+	}
+
+	private boolean matches(int start, byte[] pattern) {
+		for (int i = 0; i < pattern.length; i++) {
+			if (buf[start + i] != pattern[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the value of the current attribute as long
+	 */
+	private long parseLong() {
+		int p = valueStart;
+		boolean isNegative = false;
+		if (p < valueEnd && (buf[p] == '-' || buf[p] == '+')) {
+			isNegative = buf[p] == '-';
+			p++;
+		}
+		if (p >= valueEnd)
+			throw new NumberFormatException("no digits in " + getString(valueStart, valueEnd));
+		long val = 0;
+		for (; p < valueEnd; p++) {
+			int digit = buf[p] - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("unexpected character in " + getString(valueStart, valueEnd));
+			val = val * 10 + digit;
+		}
+		return isNegative ? -val : val;
+	}
+
+	/**
+	 * Decode an attribute value.
+	 */
+	private String getString(int start, int end) {
+		int amp = start;
+		while (amp < end && buf[amp] != '&')
+			amp++;
+		if (amp == end)
+			return new String(buf, start, end - start, UTF8);
+		StringBuilder sb = new StringBuilder(end - start);
+		int p = start;
+		while (p < end) {
+			if (amp > p)
+				sb.append(new String(buf, p, amp - p, UTF8));
+			if (amp >= end)
+				break;
+			int semi = amp + 1;
+			while (semi < end && buf[semi] != ';')
+				semi++;
+			appendEntity(sb, amp, semi);
+			p = semi + 1;
+			amp = p;
+			while (amp < end && buf[amp] != '&')
+				amp++;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Append the character for the entity reference between the '&' and the ';'.
+	 */
+	private void appendEntity(StringBuilder sb, int amp, int semi) {
+		String name = new String(buf, amp + 1, semi - amp - 1, UTF8);
+		if (name.equals("amp"))
+			sb.append('&');
+		else if (name.equals("lt"))
+			sb.append('<');
+		else if (name.equals("gt"))
+			sb.append('>');
+		else if (name.equals("quot"))
+			sb.append('"');
+		else if (name.equals("apos"))
+			sb.append('\'');
+		else if (name.startsWith("#")) {
+			try {
+				int cp;
+				if (name.startsWith("#x") || name.startsWith("#X"))
+					cp = Integer.parseInt(name.substring(2), 16);
+				else
+					cp = Integer.parseInt(name.substring(1));
+				sb.appendCodePoint(cp);
+			} catch (IllegalArgumentException e) {
+				sb.append('&').append(name).append(';');
+			}
+		} else
+			sb.append('&').append(name).append(';');
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(UTF8);
+	}
+
+	/**
+	 * A CharSequence view of a part of the buffer that contains only ASCII characters.
+	 */
+	private class ByteSequence implements CharSequence {
+		private int start, end;
+
+		ByteSequence set(int start, int end) {
+			this.start = start;
+			this.end = end;
+			return this;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			return (char) buf[start + index];
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			return toString().subSequence(from, to);
+		}
+
+		@Override
+		public String toString() {
+			return new String(buf, start, end - start, UTF8);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -21,18 +21,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Locale;
 import java.util.zip.GZIPOutputStream;
 
 public class OSMXMLWriter extends AbstractOSMWriter{
-	private final DecimalFormat numberFormat = new DecimalFormat(
-			"0.#######;-0.#######",
-			new DecimalFormatSymbols(Locale.US)
-		);
 	
 	private Writer writer;
 	
@@ -85,9 +77,9 @@ public class OSMXMLWriter extends AbstractOSMWriter{
 		writeString("<node id='");
 		writeLong(node.getId());
 		writeString("' lat='");
-		writeDouble(node.getLat());
+		writeFixed(node.getFixedLat());
 		writeString("' lon='");
-		writeDouble(node.getLon());
+		writeFixed(node.getFixedLon());
 		if (node.hasTags()) {
 			writeString("'>\n");
 			writeTags(node);
@@ -116,20 +108,19 @@ public class OSMXMLWriter extends AbstractOSMWriter{
 		writeString("<relation id='");
 		writeLong(rel.getId());
 		writeString("'>\n");
-		List<Relation.Member> memlist = rel.getMembers();
-		for (Relation.Member m : memlist) {
-			if (m.getType() == null || m.getRef() == 0) {
-				System.err.println("Invalid relation member found in relation " + rel.getId() + ": member type=" + m.getType() + ", ref=" + m.getRef() + ", role=" + m.getRole() + ". Ignoring this member");
+		for (int i = 0; i < rel.getMemberCount(); i++) {
+			String type = Relation.getTypeName(rel.getMemberType(i));
+			long ref = rel.getMemberRef(i);
+			if (ref == 0) {
+				System.err.println("Invalid relation member found in relation " + rel.getId() + ": member type=" + type + ", ref=" + ref + ", role=" + rel.getMemberRole(i) + ". Ignoring this member");
 				continue;
 			}
 			writeString("<member type='");
-			writeAttribute(m.getType());
+			writeAttribute(type);
 			writeString("' ref='");
-			writeLong(m.getRef());
+			writeLong(ref);
 			writeString("' role='");
-			if (m.getRole() != null) {
-				writeAttribute(m.getRole());
-			}
+			writeAttribute(rel.getMemberRole(i));
 			writeString("'/>\n");
 		}
 		if (rel.hasTags())
@@ -138,13 +129,11 @@ public class OSMXMLWriter extends AbstractOSMWriter{
 	}
 
 	private void writeTags(Element element) throws IOException {
-		Iterator<Element.Tag> it = element.tagsIterator();
-		while (it.hasNext()) {
-			Element.Tag entry = it.next();
+		for (int i = 0; i < element.getTagCount(); i++) {
 			writeString("<tag k='");
-			writeAttribute(entry.getKey());
+			writeAttribute(element.getTagKey(i));
 			writeString("' v='");
-			writeAttribute(entry.getValue());
+			writeAttribute(element.getTagValue(i));
 			writeString("'/>\n");
 		}
 	}
@@ -210,27 +199,30 @@ public class OSMXMLWriter extends AbstractOSMWriter{
 		checkFlush(22);
         writeString(Double.toString(value));
 	}
-	/** Write a double truncated to OSM's 7 digits of precision
-	 *
-	 *  TODO: Optimize. Responsible for >30% of the runtime after other using binary 
-	 *  format and improved hash table.
+	/** Write a value in units of 0.0000001 degrees with OSM's 7 digits of precision.
+	 * Trailing zeros are removed for values between -1 and 1.   
 	 */
-	private void writeDouble(double value) throws IOException {
+	private void writeFixed(int value) throws IOException {
 		checkFlush(22);
-		// Punt on some annoying specialcases
-		if (value < -200 || value > 200 || (value > -1 && value < 1))
-			writeString(numberFormat.format(value));
-		else {
-		     if (value < 0) {
-		    	 charBuf[index++] = '-'; // Write directly.
-		    	 value = -value;
-		     }
-
-		int val = (int)Math.round(value*10000000);
-		StringBuilder s = new StringBuilder(Integer.toString(val));
-		s.insert(s.length()-7, '.');
-		writeString(s.toString());
+		if (value < 0) {
+			charBuf[index++] = '-'; // Write directly.
+			value = -value;
+		}
+		int intPart = value / 10000000;
+		int fraction = value % 10000000;
+		writeInt(intPart);
+		if (intPart == 0){
+			if (fraction == 0)
+				return;
+			while (fraction % 10 == 0)
+				fraction /= 10;
 		}
+		int digits = Convert.stringSize(fraction);
+		charBuf[index++] = '.';
+		int numDigits = (intPart == 0) ? 7 - Convert.stringSize(value) + digits : 7;
+		for (int i = digits; i < numDigits; i++)
+			charBuf[index++] = '0';
+		writeInt(fraction);
 	}
 	
 	private void writeInt(int value) throws IOException {
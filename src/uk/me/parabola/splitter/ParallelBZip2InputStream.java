@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+
+/**
+ * Decompresses bzip2 data with a pool of threads.
+ * The compressed blocks of a bzip2 stream are independent of each other
+ * and start with a 48 bit magic number that is not byte aligned.
+ * A loader thread searches the magic numbers and passes each block
+ * to the pool, the decompressed blocks are returned in the original order.
+ * Files with multiple streams (as written by pbzip2 or lbzip2) are supported.
+ * <p>
+ * The magic number may also appear inside of the compressed data.
+ * A block that can't be decompressed or that has a wrong CRC is
+ * decompressed again together with the following part(s).
+ */
+public class ParallelBZip2InputStream extends InputStream {
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long EOS_MAGIC = 0x177245385090L;
+	private static final long MAGIC_MASK = (1L << 48) - 1;
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	// how many parts are joined when a block can't be decompressed
+	private static final int MAX_JOINED_PARTS = 4;
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i << 24;
+			for (int j = 0; j < 8; j++)
+				c = (c < 0) ? (c << 1) ^ 0x04c11db7 : c << 1;
+			CRC_TABLE[i] = c;
+		}
+	}
+
+	private final InputStream sourceStream;
+	private final ExecutorService pool;
+	// the parts of the file in the original order
+	private final BlockingQueue<Part> parts;
+	private volatile boolean closed;
+	private Thread loaderThread;
+
+	// the decompressed data that is returned by read()
+	private byte[] currentBuffer;
+	private int currentIndex;
+	private boolean eof;
+
+	/**
+	 * @param source the bzip2 data, starting with the "BZh" header
+	 * @param numThreads the number of threads that decompress blocks
+	 */
+	public ParallelBZip2InputStream(InputStream source, int numThreads) {
+		this.sourceStream = source;
+		this.pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ParallelBZip2InputStream");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.parts = new ArrayBlockingQueue<Part>(2 * numThreads + 2);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureBuffer())
+			return -1;
+		return currentBuffer[currentIndex++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!ensureBuffer())
+			return -1;
+		int n = Math.min(len, currentBuffer.length - currentIndex);
+		System.arraycopy(currentBuffer, currentIndex, b, off, n);
+		currentIndex += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		pool.shutdownNow();
+		if (loaderThread != null)
+			loaderThread.interrupt();
+		parts.clear();
+		currentBuffer = null;
+		sourceStream.close();
+	}
+
+	/**
+	 * Make sure that currentBuffer contains unread data.
+	 * @return false if the end of the data was reached
+	 */
+	private boolean ensureBuffer() throws IOException {
+		if (closed)
+			throw new IOException("stream closed");
+		if (loaderThread == null) {
+			loaderThread = new Thread(new Loader(), "BZip2BlockLoader");
+			loaderThread.setDaemon(true);
+			loaderThread.start();
+		}
+		while (currentBuffer == null || currentIndex >= currentBuffer.length) {
+			if (eof)
+				return false;
+			Part part = takePart();
+			if (part == Part.END) {
+				eof = true;
+				return false;
+			}
+			if (part.result == null)
+				continue; // end of stream marker
+			currentBuffer = getResult(part);
+			currentIndex = 0;
+		}
+		return true;
+	}
+
+	private Part takePart() throws IOException {
+		Part part;
+		try {
+			part = parts.take();
+		} catch (InterruptedException e) {
+			throw new IOException("Failed to take a block from the queue", e);
+		}
+		if (part.error != null)
+			throw new IOException("Unable to read bzip2 data", part.error);
+		return part;
+	}
+
+	/**
+	 * Return the decompressed block. If the block can't be decompressed,
+	 * it is joined with the following parts.
+	 */
+	private byte[] getResult(Part part) throws IOException {
+		try {
+			return part.result.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for a bzip2 block", e);
+		} catch (ExecutionException e) {
+			// the block was probably split at a magic number inside the compressed data
+			Throwable cause = e.getCause();
+			ArrayList<Part> joined = new ArrayList<Part>();
+			joined.add(part);
+			while (joined.size() < MAX_JOINED_PARTS) {
+				Part next = takePart();
+				if (next == Part.END) {
+					eof = true;
+					break;
+				}
+				if (next.result != null)
+					next.result.cancel(false);
+				joined.add(next);
+				try {
+					return decompress(joined);
+				} catch (IOException e1) {
+					cause = e1;
+				}
+			}
+			throw new IOException("Unable to decompress bzip2 block", cause);
+		}
+	}
+
+	/**
+	 * Decompress a block that consists of the given parts. A bzip2 stream
+	 * that contains only this block is created and passed to CBZip2InputStream.
+	 * @return the decompressed data
+	 * @throws IOException if the data is not valid
+	 */
+	static byte[] decompress(ArrayList<Part> blockParts) throws IOException {
+		long numBits = 0;
+		for (Part part : blockParts)
+			numBits += part.numBits;
+		Part first = blockParts.get(0);
+		if (first.numBits < 48 + 32)
+			throw new IOException("bzip2 block is too short");
+		int storedCRC = (int) first.getBits(48, 32);
+
+		// 'h', the block size, the block(s), end of stream magic and CRC of the stream
+		BitWriter writer = new BitWriter((int) ((numBits + 7) / 8) + 2 + 10 + 1);
+		writer.write('h', 8);
+		writer.write('0' + first.blockSize100k, 8);
+		for (Part part : blockParts)
+			writer.copy(part);
+		writer.write(EOS_MAGIC, 48);
+		// the stream CRC of a stream with one block is the block CRC
+		writer.write(storedCRC & 0xffffffffL, 32);
+
+		byte[] out = new byte[first.blockSize100k * 100000 + 1000];
+		int len = 0;
+		try {
+			CBZip2InputStream bzip = new CBZip2InputStream(new ByteArrayInputStream(writer.buf, 0, writer.length()));
+			int n;
+			while ((n = bzip.read(out, len, out.length - len)) > 0) {
+				len += n;
+				if (len == out.length)
+					out = Arrays.copyOf(out, out.length * 2);
+			}
+		} catch (RuntimeException e) {
+			// CBZip2InputStream doesn't check all data
+			throw new IOException("invalid bzip2 block", e);
+		}
+		out = Arrays.copyOf(out, len);
+		if (crc(out) != storedCRC)
+			throw new IOException("bzip2 block has wrong CRC");
+		return out;
+	}
+
+	/**
+	 * Calculate the bzip2 CRC of the data.
+	 */
+	private static int crc(byte[] data) {
+		int crc = -1;
+		for (byte b : data)
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+		return ~crc;
+	}
+
+	/**
+	 * A part of a bzip2 stream that starts with a magic number and ends before
+	 * the next magic number.
+	 */
+	static class Part {
+		/** signals the end of the data */
+		static final Part END = new Part(null, 0, 0, 0);
+		final byte[] data;
+		final int bitOffset;
+		final long numBits;
+		final int blockSize100k;
+		// null for a part that starts with the end of stream magic number
+		Future<byte[]> result;
+		Throwable error;
+
+		Part(byte[] data, int bitOffset, long numBits, int blockSize100k) {
+			this.data = data;
+			this.bitOffset = bitOffset;
+			this.numBits = numBits;
+			this.blockSize100k = blockSize100k;
+		}
+
+		/**
+		 * @return the value of len bits (max. 57) starting at the given bit position
+		 */
+		long getBits(long pos, int len) {
+			long bitPos = bitOffset + pos;
+			int bytePos = (int) (bitPos >>> 3);
+			int shift = (int) (bitPos & 7);
+			long val = 0;
+			int needed = shift + len;
+			for (int i = 0; i < (needed + 7) / 8; i++)
+				val = (val << 8) | (data[bytePos + i] & 0xff);
+			int extra = ((needed + 7) / 8) * 8 - needed;
+			return (val >>> extra) & ((1L << len) - 1);
+		}
+	}
+
+	/**
+	 * Appends bits to a byte array.
+	 */
+	private static class BitWriter {
+		final byte[] buf;
+		private long bitPos;
+
+		BitWriter(int size) {
+			buf = new byte[size];
+		}
+
+		void write(long val, int len) {
+			for (int i = len - 1; i >= 0; i--)
+				writeBit((int) (val >>> i) & 1);
+		}
+
+		private void writeBit(int bit) {
+			if (bit != 0)
+				buf[(int) (bitPos >>> 3)] |= 0x80 >>> (bitPos & 7);
+			bitPos++;
+		}
+
+		/**
+		 * Append all bits of the part.
+		 */
+		void copy(Part part) {
+			long pos = 0;
+			// write single bits until the output is byte aligned
+			while ((bitPos & 7) != 0 && pos < part.numBits) {
+				write(part.getBits(pos, 1), 1);
+				pos++;
+			}
+			// copy whole bytes
+			long srcBit = part.bitOffset + pos;
+			int srcByte = (int) (srcBit >>> 3);
+			int shift = (int) (srcBit & 7);
+			int dest = (int) (bitPos >>> 3);
+			long bytes = (part.numBits - pos) / 8;
+			if (shift == 0) {
+				System.arraycopy(part.data, srcByte, buf, dest, (int) bytes);
+			} else {
+				for (int i = 0; i < bytes; i++) {
+					buf[dest + i] = (byte) ((part.data[srcByte + i] << shift)
+							| ((part.data[srcByte + i + 1] & 0xff) >>> (8 - shift)));
+				}
+			}
+			pos += bytes * 8;
+			bitPos += bytes * 8;
+			// remaining bits
+			while (pos < part.numBits) {
+				write(part.getBits(pos, 1), 1);
+				pos++;
+			}
+		}
+
+		int length() {
+			return (int) ((bitPos + 7) >>> 3);
+		}
+	}
+
+	/**
+	 * Decompresses one block.
+	 */
+	private static class BlockDecoder implements Callable<byte[]> {
+		private final Part part;
+
+		BlockDecoder(Part part) {
+			this.part = part;
+		}
+
+		public byte[] call() throws IOException {
+			ArrayList<Part> list = new ArrayList<Part>(1);
+			list.add(part);
+			return decompress(list);
+		}
+	}
+
+	/**
+	 * Reads the compressed data and splits it at the magic numbers.
+	 */
+	private class Loader implements Runnable {
+		// the bytes of the current part
+		private byte[] data = new byte[READ_BUFFER_SIZE * 4];
+		private int dataLen;
+		// the position of the first bit of the current part in data,
+		// -1 before the first magic number was found
+		private int partStart = -1;
+		private boolean partIsBlock;
+		private int blockSize100k = 9;
+		// true until the first block of a stream was found
+		private boolean streamStart = true;
+
+		@Override
+		public void run() {
+			try {
+				load();
+				put(Part.END);
+			} catch (InterruptedException e) {
+				// the stream was closed
+			} catch (Throwable t) {
+				Part part = new Part(null, 0, 0, 0);
+				part.error = t;
+				try {
+					put(part);
+				} catch (InterruptedException e) {
+					// the stream was closed
+				}
+			}
+		}
+
+		private void put(Part part) throws InterruptedException {
+			if (!closed)
+				parts.put(part);
+		}
+
+		private void load() throws IOException, InterruptedException {
+			byte[] readBuf = new byte[READ_BUFFER_SIZE];
+			if (sourceStream.read() != 'B' || sourceStream.read() != 'Z')
+				throw new IOException("Stream is not BZip2 formatted");
+			// the last 64 bits of the data
+			long window = 'B' << 8 | 'Z';
+			data[0] = 'B';
+			data[1] = 'Z';
+			dataLen = 2;
+			int n;
+			while (!closed && (n = sourceStream.read(readBuf)) > 0) {
+				for (int i = 0; i < n; i++) {
+					byte b = readBuf[i];
+					if (dataLen == data.length)
+						compact();
+					data[dataLen++] = b;
+					window = (window << 8) | (b & 0xff);
+					// the magic numbers may start at any bit position
+					for (int shift = 7; shift >= 0; shift--) {
+						long val = (window >>> shift) & MAGIC_MASK;
+						if (val == BLOCK_MAGIC || val == EOS_MAGIC) {
+							int magicStart = dataLen * 8 - shift - 48;
+							if (val == EOS_MAGIC)
+								streamStart = true;
+							else if (streamStart) {
+								// the first block of a stream is byte aligned and follows the header
+								int h = (int) (window >>> 56) & 0xff;
+								int level = (int) (window >>> 48) & 0xff;
+								if (shift == 0 && h == 'h' && level >= '1' && level <= '9')
+									blockSize100k = level - '0';
+								streamStart = false;
+							}
+							newPart(magicStart, val == BLOCK_MAGIC);
+						}
+					}
+				}
+			}
+			if (partStart >= 0)
+				finishPart(dataLen * 8);
+		}
+
+		/**
+		 * Start a new part at the given bit position, the current part ends there.
+		 */
+		private void newPart(int bitPos, boolean isBlock) throws InterruptedException {
+			if (partStart >= 0)
+				finishPart(bitPos);
+			// keep only the bytes of the new part
+			int startByte = bitPos >>> 3;
+			System.arraycopy(data, startByte, data, 0, dataLen - startByte);
+			dataLen -= startByte;
+			partStart = bitPos & 7;
+			partIsBlock = isBlock;
+		}
+
+		private void finishPart(int endBit) throws InterruptedException {
+			int len = (endBit + 7) >>> 3;
+			Part part = new Part(Arrays.copyOf(data, len), partStart, endBit - partStart, blockSize100k);
+			if (partIsBlock)
+				part.result = pool.submit(new BlockDecoder(part));
+			put(part);
+		}
+
+		/**
+		 * Make room in data.
+		 */
+		private void compact() {
+			if (partStart < 0) {
+				// still in the header, only the last bytes are needed
+				System.arraycopy(data, dataLen - 8, data, 0, 8);
+				dataLen = 8;
+			} else {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+		}
+	}
+}
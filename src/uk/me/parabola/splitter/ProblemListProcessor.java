@@ -12,8 +12,6 @@
  */
 package uk.me.parabola.splitter;
 
-import uk.me.parabola.splitter.Relation.Member;
-
 import it.unimi.dsi.Util;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 
@@ -58,7 +56,7 @@ class ProblemListProcessor extends AbstractMapProcessor {
 		this.dataStorer = dataStorer;
 		this.writerDictionary = dataStorer.getWriterDictionary();
 		if (dataStorer.getUsedWays() == null){
-			ways = new SparseLong2ShortMapInline();
+			ways = dataStorer.createSparseMap();
 			ways.defaultReturnValue(UNASSIGNED);
 			dataStorer.setUsedWays(ways);
 		}
@@ -69,7 +67,7 @@ class ProblemListProcessor extends AbstractMapProcessor {
 		
 		writerSet = new BitSet(writerDictionary.getNumOfWriters());
 		this.writerIndex = dataStorer.getGrid();
-		this.coords = new SparseLong2ShortMapInline();
+		this.coords = dataStorer.createNodeMap();
 		this.coords.defaultReturnValue(UNASSIGNED);
 		this.isFirstPass = (writerOffset == 0);
 		this.writerOffset = writerOffset;
@@ -88,10 +86,23 @@ class ProblemListProcessor extends AbstractMapProcessor {
 
 	@Override
 	public void processNode(Node node) {
+		processCoords(node.getId(), node.getMapLat(), node.getMapLon());
+	}
+
+	@Override
+	public void processNodes(NodeBatch nodes) {
+		for (int i = 0; i < nodes.size(); i++)
+			processCoords(nodes.getId(i), nodes.getMapLat(i), nodes.getMapLon(i));
+	}
+
+	/**
+	 * Find the writers for the node with the given id and coordinates.
+	 */
+	private void processCoords(long id, int mapLat, int mapLon) {
 		int countWriters = 0;
 		short lastUsedWriter = UNASSIGNED;
 		short writerIdx = UNASSIGNED;
-		WriterGridResult writerCandidates = writerIndex.get(node);
+		WriterGridResult writerCandidates = writerIndex.get(mapLat, mapLon);
 		if (writerCandidates == null) 
 			return;
 		
@@ -105,7 +116,7 @@ class ProblemListProcessor extends AbstractMapProcessor {
 			boolean found;
 			if (writerCandidates.testNeeded){
 				OSMWriter w = writers[n];
-				found = w.nodeBelongsToThisArea(node);
+				found = w.coordsBelongToThisArea(mapLat, mapLon);
 				//++countFullTest;
 			}
 			else{ 
@@ -123,7 +134,7 @@ class ProblemListProcessor extends AbstractMapProcessor {
 				writerIdx = writerDictionary.translate(writerSet);
 			else  
 				writerIdx = (short) (lastUsedWriter  - WriterDictionaryShort.DICT_START); // no need to do lookup in the dictionary 
-			coords.put(node.getId(), writerIdx);
+			coords.put(id, writerIdx);
 			++countCoords;
 			if (countCoords % 10000000 == 0){
 				System.out.println("MAP occupancy: " + Utils.format(countCoords) + ", number of area dictionary entries: " + writerDictionary.size() + " of " + ((1<<16) - 1));
@@ -186,10 +197,11 @@ class ProblemListProcessor extends AbstractMapProcessor {
 		}
 		short oldclIndex = UNASSIGNED;
 		short oldwlIndex = UNASSIGNED;
-		//System.out.println("r" + rel.getId() + " " + rel.getMembers().size());
-		for (Member mem : rel.getMembers()) {
-			long id = mem.getRef();
-			if (mem.getType().equals("node")) {
+		//System.out.println("r" + rel.getId() + " " + rel.getMemberCount());
+		for (int i = 0; i < rel.getMemberCount(); i++) {
+			long id = rel.getMemberRef(i);
+			byte type = rel.getMemberType(i);
+			if (type == Relation.MEMBER_NODE) {
 				short clIdx = coords.get(id);
 
 				if (clIdx != UNASSIGNED){
@@ -201,7 +213,7 @@ class ProblemListProcessor extends AbstractMapProcessor {
 
 				}
 
-			} else if (mem.getType().equals("way")) {
+			} else if (type == Relation.MEMBER_WAY) {
 				short wlIdx = ways.get(id);
 
 				if (wlIdx != UNASSIGNED){
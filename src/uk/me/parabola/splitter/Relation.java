@@ -12,14 +12,25 @@
  */
 package uk.me.parabola.splitter;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * @author Steve Ratcliffe
  */
 public class Relation extends Element {
-	private final List<Member> members = new ArrayList<Member>();
+	public static final byte MEMBER_NODE = 0;
+	public static final byte MEMBER_WAY = 1;
+	public static final byte MEMBER_RELATION = 2;
+	private static final String[] TYPE_NAMES = {"node", "way", "relation"};
+	private static final int TYPE_KEY = TagDictionary.getKeyId("type");
+
+	// the members, the roles are ids in the TagDictionary
+	private byte[] memTypes = new byte[4];
+	private long[] memRefs = new long[4];
+	private int[] memRoles = new int[4];
+	private int numMembers;
+	// true if the type tag was dropped by the TagFilter
+	private boolean ignored;
 
 	public void set(long id) {
 		setId(id);
@@ -28,39 +39,81 @@ public class Relation extends Element {
 	@Override
 	public void reset() {
 		super.reset();
-		members.clear();
+		numMembers = 0;
+		ignored = false;
 	}
 
-	public void addMember(String type, long ref, String role) {
-		Member mem = new Member(type, ref, role);
-		members.add(mem);
+	@Override
+	void addTag(int keyId, int valueId, String value) {
+		if (keyId == TYPE_KEY && TagDictionary.isDropped(keyId, value)) {
+			ignored = true;
+			return;
+		}
+		super.addTag(keyId, valueId, value);
 	}
 
-	public List<Member> getMembers() {
-		return members;
+	/**
+	 * @return true if the relation should not be passed to the processors
+	 * because its type tag was dropped by the tag filter 
+	 */
+	public boolean isIgnored() {
+		return ignored;
 	}
 
-	static class Member {
-		private String type;
-		private long ref;
-		private String role;
-
-		Member(String type, long ref, String role) {
-			this.type = type;
-			this.ref = ref;
-			this.role = role;
+	/**
+	 * Add a member.
+	 * @param type one of {@link #MEMBER_NODE}, {@link #MEMBER_WAY} and {@link #MEMBER_RELATION}
+	 * @param ref the id of the member
+	 * @param roleId the id of the role in the TagDictionary
+	 */
+	public void addMember(byte type, long ref, int roleId) {
+		if (numMembers >= memTypes.length) {
+			memTypes = Arrays.copyOf(memTypes, numMembers * 2);
+			memRefs = Arrays.copyOf(memRefs, numMembers * 2);
+			memRoles = Arrays.copyOf(memRoles, numMembers * 2);
 		}
+		memTypes[numMembers] = type;
+		memRefs[numMembers] = ref;
+		memRoles[numMembers] = roleId;
+		++numMembers;
+	}
 
-		public String getType() {
-			return type;
-		}
+	public void addMember(byte type, long ref, String role) {
+		addMember(type, ref, getRoleId(role));
+	}
 
-		public long getRef() {
-			return ref;
-		}
+	/**
+	 * @return the id of the role in the TagDictionary, a missing role is
+	 * the same as an empty one
+	 */
+	public static int getRoleId(String role) {
+		return TagDictionary.getKeyId(role == null ? "" : role);
+	}
 
-		public String getRole() {
-			return role;
-		}
+	public int getMemberCount() {
+		return numMembers;
+	}
+
+	public byte getMemberType(int i) {
+		return memTypes[i];
+	}
+
+	public long getMemberRef(int i) {
+		return memRefs[i];
+	}
+
+	public int getMemberRoleId(int i) {
+		return memRoles[i];
+	}
+
+	public String getMemberRole(int i) {
+		return TagDictionary.get(memRoles[i]);
+	}
+
+	/**
+	 * @return the name of a member type as used in the OSM XML format
+	 */
+	public static String getTypeName(byte type) {
+		return TYPE_NAMES[type];
 	}
 }
@@ -9,78 +9,212 @@
  * WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
  * General Public License for more details.
- */ 
+ */
 package uk.me.parabola.splitter;
 
-import java.util.HashMap;
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 
-/** A simple partly BitSet implementation optimized for memory 
- * when used to store very large values with a high likelihood 
- * that the stored values build groups like e.g. the OSM node IDs. 
- * 
- * author GerdP */ 
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/** A simple partly BitSet implementation optimized for memory
+ * when used to store very large values with a high likelihood
+ * that the stored values build groups like e.g. the OSM node IDs.
+ * <p>
+ * The bits are stored in 64 bit words. The words are kept in an
+ * open addressing hash table with linear probing, the index of the
+ * word and the word itself are stored in two parallel long arrays,
+ * so no objects are created for the words.
+ *
+ * author GerdP */
 public class SparseBitSet{
-	static final int MASK = 63; 						
-	static final long TOP_ID_MASK = ~MASK;  
-
-  private HashMap<Long,Long> topMap = new HashMap<Long,Long>();
-  private int setBits;
-  
-  public void set(long key){
-      long topId = key & TOP_ID_MASK;
-      int bitPos =(int)(key & MASK);
-      long val = 1L << (bitPos-1);  
-      Long chunk = topMap.get(topId);
-      if (chunk != null){
-    	  if ((chunk & val) != 0)
-    		  return;
-          val |= chunk;
-      }
-      topMap.put(topId, val); 
-      ++setBits;
-  }
-
-  public void clear(long key){
-      long topId = key & TOP_ID_MASK;
-      Long chunk = topMap.get(topId);
-      if (chunk == null)
-          return;
-      int bitPos =(int)(key & MASK);
-      long val = 1L << (bitPos-1);  
-      if ((chunk & val) == 0)
-    	  return;
-      chunk &= ~val;
-      topMap.put(topId, chunk); 
-      --setBits;
-  }
-  
-  public boolean get(long key){
-      long topId = key & TOP_ID_MASK;
-      Long chunk = topMap.get(topId);
-      if (chunk == null)
-          return false;
-      int bitPos =(int)(key & MASK);
-      long val = 1L << (bitPos-1);  
-      return (val & chunk) != 0; 
-  }
-
-  public void clear(){
-	  topMap.clear();
-	  setBits = 0;
-  }
-  
-  /**
-   * calculate estimated required heap
-   * @return
-   */
-  public int bytes(){
-	  return topMap.size() * 40;
-  }
-  
-  
-  public int cardinality(){
-	  return setBits;
-  }
-}
+	static final int MASK = 63;
+	static final int SHIFT = 6;
+	// marks a free slot, no word index can have this value
+	private static final long FREE = Long.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private long[] keys;
+	private long[] words;
+	// number of used slots
+	private int used;
+	private int maxUsed;
+	private int mask;
+	private int setBits;
+
+	public SparseBitSet() {
+		clear();
+	}
+
+	private static int hash(long wordIndex) {
+		long h = wordIndex * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return the slot of the word with the given index or the free slot
+	 * where it would be stored
+	 */
+	private int findSlot(long wordIndex) {
+		int pos = hash(wordIndex) & mask;
+		while (true) {
+			long k = keys[pos];
+			if (k == wordIndex || k == FREE)
+				return pos;
+			pos = (pos + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return the slot of the word with the given index, it is added if needed
+	 */
+	private int getOrAddSlot(long wordIndex) {
+		int pos = findSlot(wordIndex);
+		if (keys[pos] == FREE) {
+			if (used >= maxUsed) {
+				rehash(keys.length * 2);
+				pos = findSlot(wordIndex);
+			}
+			keys[pos] = wordIndex;
+			used++;
+		}
+		return pos;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldWords = words;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE && oldWords[i] != 0) {
+				int pos = findSlot(oldKeys[i]);
+				keys[pos] = oldKeys[i];
+				words[pos] = oldWords[i];
+				used++;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, FREE);
+		words = new long[capacity];
+		mask = capacity - 1;
+		maxUsed = (int) (capacity * LOAD_FACTOR);
+		used = 0;
+	}
 
-                                                                           
\ No newline at end of file
+	public void set(long key){
+		int pos = getOrAddSlot(key >> SHIFT);
+		long val = 1L << (key & MASK);
+		if ((words[pos] & val) == 0) {
+			words[pos] |= val;
+			++setBits;
+		}
+	}
+
+	/**
+	 * Set the bits for all keys in the list. Consecutive keys that are in
+	 * the same word need only one lookup.
+	 */
+	public void setAll(LongArrayList keyList){
+		long lastWordIndex = FREE;
+		int pos = -1;
+		for (int i = 0; i < keyList.size(); i++) {
+			long key = keyList.getLong(i);
+			long wordIndex = key >> SHIFT;
+			if (wordIndex != lastWordIndex) {
+				pos = getOrAddSlot(wordIndex);
+				lastWordIndex = wordIndex;
+			}
+			long val = 1L << (key & MASK);
+			if ((words[pos] & val) == 0) {
+				words[pos] |= val;
+				++setBits;
+			}
+		}
+	}
+
+	/**
+	 * Clear the bit for the key. The slot of an empty word is kept until
+	 * the table is rehashed.
+	 */
+	public void clear(long key){
+		int pos = findSlot(key >> SHIFT);
+		if (keys[pos] == FREE)
+			return;
+		long val = 1L << (key & MASK);
+		if ((words[pos] & val) == 0)
+			return;
+		words[pos] &= ~val;
+		--setBits;
+	}
+
+	public boolean get(long key){
+		long wordIndex = key >> SHIFT;
+		int pos = hash(wordIndex) & mask;
+		while (true) {
+			long k = keys[pos];
+			if (k == wordIndex)
+				return (words[pos] & (1L << (key & MASK))) != 0;
+			if (k == FREE)
+				return false;
+			pos = (pos + 1) & mask;
+		}
+	}
+
+	public void clear(){
+		allocate(INITIAL_CAPACITY);
+		setBits = 0;
+	}
+
+	/**
+	 * calculate estimated required heap
+	 * @return
+	 */
+	public long bytes(){
+		return keys.length * 16L;
+	}
+
+	public int cardinality(){
+		return setBits;
+	}
+
+	/**
+	 * @return an iterator over the keys of the set bits. The keys are
+	 * returned in no particular order, the set must not be modified while
+	 * the iterator is used.
+	 */
+	public LongIterator iterator(){
+		return new AbstractLongIterator() {
+			private int pos = -1;
+			private long word;
+			private long wordBase;
+
+			@Override
+			public boolean hasNext() {
+				while (word == 0) {
+					if (++pos >= keys.length)
+						return false;
+					if (keys[pos] != FREE) {
+						word = words[pos];
+						wordBase = keys[pos] << SHIFT;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				long bit = Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+				return wordBase + bit;
+			}
+		};
+	}
+}
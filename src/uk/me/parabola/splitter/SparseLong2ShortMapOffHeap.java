@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import it.unimi.dsi.bits.Fast;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * SparseLong2ShortMapOffHeap implements SparseLong2ShortMapFunction with
+ * the same chunk encoding as {@link SparseLong2ShortMapInline} (a bit mask
+ * for the used entries and RLE compression of the values), but the
+ * chunks and the vectors that address them are stored in direct buffers
+ * outside of the Java heap. The heap only contains a few objects for each
+ * range of 2^27 ids, so the maps can grow without making garbage
+ * collection expensive. The size of the direct memory is limited by the
+ * JVM option -XX:MaxDirectMemorySize.
+ * <p>
+ * A chunk is stored as a record of one long (the mask) followed by the
+ * shorts of the encoded chunk, padded to a multiple of 8 bytes. The
+ * records of one range are allocated in pages, the vector of the range
+ * contains the position of the record and its length.
+ */
+public class SparseLong2ShortMapOffHeap implements SparseLong2ShortMapFunction {
+	private static final long TOP_ID_MASK = 0xfffffffff8000000L;  			// the part of the key that is saved in the HashMap
+	private static final int TOP_ID_SHIFT = Long.numberOfTrailingZeros(TOP_ID_MASK);
+
+	private static final int CHUNK_SIZE = 64; 							// 64  = 1<< 6 (last 6 bits of the key)
+	private static final long CHUNK_OFFSET_MASK = CHUNK_SIZE-1;  		// the part of the key that contains the offset in the chunk
+	private static final long OLD_CHUNK_ID_MASK = ~CHUNK_OFFSET_MASK;	// first 58 bits of a long. If this part of the key changes, a different chunk is needed
+	private static final long CHUNK_ID_MASK     = ~TOP_ID_MASK; 		// the bits that are not stored in the HashMap
+	private static final long INVALID_CHUNK_ID = 1L; // must NOT be divisible by CHUNK_SIZE
+	private static final int LARGE_VECTOR_SIZE = (int)(CHUNK_ID_MASK/ CHUNK_SIZE + 1); // number of entries addressed by one topMap entry
+	private static final int ONE_VALUE_CHUNK_SIZE = 1;
+
+	// a vector entry contains the length of the chunk - 1 in the lowest bits
+	// and the position of the record in units of 8 bytes in the other bits
+	private static final int LEN_BITS = 6;
+	private static final int LEN_MASK = (1 << LEN_BITS) - 1;
+	private static final int PAGE_WORDS_BITS = 17; // 1 MB pages
+	private static final int PAGE_WORDS = 1 << PAGE_WORDS_BITS;
+	private static final int PAGE_WORDS_MASK = PAGE_WORDS - 1;
+
+	/** The chunks of one range of ids */
+	private static class Range {
+		final IntBuffer vector;
+		final ArrayList<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+		// the next free word, word 0 is never used so that 0 means "no chunk"
+		int nextWord = 1;
+		// records that can be reused, by chunk length
+		final IntArrayList[] reusable = new IntArrayList[CHUNK_SIZE + 1];
+
+		Range() {
+			vector = allocate(LARGE_VECTOR_SIZE * 4).asIntBuffer();
+		}
+	}
+
+	/** What to return on unassigned indices */
+	private short unassigned = UNASSIGNED;
+	private long size;
+
+	private long currentChunkId = INVALID_CHUNK_ID;
+	private short [] currentChunk = new short[CHUNK_SIZE];  // stores the values in the real position
+	private short [] tmpWork = new short[CHUNK_SIZE];  // a chunk after applying the "mask encoding"
+	private short [] RLEWork = new short[CHUNK_SIZE];  // for the RLE-compressed chunk
+	// the vector entry of the current chunk or 0
+	private int currentChunkEntry;
+
+	private HashMap<Long, Range> topMap;
+	// the range that was used last
+	private long lastTopId;
+	private Range lastRange;
+
+	// for statistics
+	private long[] countChunkLen;
+	private long allocatedBytes;
+
+	SparseLong2ShortMapOffHeap() {
+		clear();
+	}
+
+	private static ByteBuffer allocate(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	private static int words(int chunkLen) {
+		return 1 + (chunkLen + 3) / 4;
+	}
+
+	private Range getRange(long key, boolean create) {
+		long topId = key >> TOP_ID_SHIFT;
+		if (lastRange != null && topId == lastTopId)
+			return lastRange;
+		Range range = topMap.get(topId);
+		if (range == null) {
+			if (!create)
+				return null;
+			range = new Range();
+			allocatedBytes += LARGE_VECTOR_SIZE * 4L;
+			topMap.put(topId, range);
+		}
+		lastTopId = topId;
+		lastRange = range;
+		return range;
+	}
+
+	private static int chunkIndex(long key) {
+		return (int) (key & CHUNK_ID_MASK) / CHUNK_SIZE;
+	}
+
+	@Override
+	public boolean containsKey(long key) {
+		return get(key) != unassigned;
+	}
+
+	@Override
+	public short put(long key, short val) {
+		long chunkId = key & OLD_CHUNK_ID_MASK;
+		if (val == unassigned) {
+			throw new IllegalArgumentException("Cannot store the value that is reserved as being unassigned. val=" + val);
+		}
+		int chunkoffset = (int) (key & CHUNK_OFFSET_MASK);
+		if (currentChunkId != chunkId){
+			if (currentChunkId != INVALID_CHUNK_ID)
+				saveCurrentChunk();
+			fillCurrentChunk(key);
+			currentChunkId = chunkId;
+		}
+		short out = currentChunk[chunkoffset];
+		currentChunk[chunkoffset] = val;
+		if (out == unassigned)
+			size++;
+		return out;
+	}
+
+	@Override
+	public short get(long key) {
+		if (currentChunkId == (key & OLD_CHUNK_ID_MASK))
+			return currentChunk[(int) (key & CHUNK_OFFSET_MASK)];
+		Range range = getRange(key, false);
+		if (range == null)
+			return unassigned;
+		int entry = range.vector.get(chunkIndex(key));
+		if (entry == 0)
+			return unassigned;
+		int chunkLen = (entry & LEN_MASK) + 1;
+		int word = entry >>> LEN_BITS;
+		ByteBuffer page = range.pages.get(word >> PAGE_WORDS_BITS);
+		int pos = (word & PAGE_WORDS_MASK) * 8;
+		long chunkMask = page.getLong(pos);
+		int chunkoffset = (int) (key & CHUNK_OFFSET_MASK);
+		if ((chunkMask & (1L << chunkoffset)) == 0)
+			return unassigned;
+		pos += 8;
+		short firstAfterMask = page.getShort(pos);
+		if (chunkLen == ONE_VALUE_CHUNK_SIZE)
+			return firstAfterMask;
+		int index = Fast.count(chunkMask & ((1L << chunkoffset) - 1));
+		if (firstAfterMask != unassigned)
+			return page.getShort(pos + 2 * index);
+		// extract from compressed chunk
+		for (int j = 1; j < chunkLen; j += 2){
+			index -= page.getShort(pos + 2 * j);
+			if (index < 0)
+				return page.getShort(pos + 2 * j + 2);
+		}
+		return unassigned; // should not happen
+	}
+
+	/**
+	 * Fill currentChunk with the saved chunk for the key or with the
+	 * unassigned value.
+	 */
+	private void fillCurrentChunk(long key) {
+		Arrays.fill(currentChunk, unassigned);
+		currentChunkEntry = 0;
+		Range range = getRange(key, false);
+		if (range == null)
+			return;
+		int entry = range.vector.get(chunkIndex(key));
+		if (entry == 0)
+			return;
+		currentChunkEntry = entry;
+		int chunkLen = (entry & LEN_MASK) + 1;
+		int word = entry >>> LEN_BITS;
+		ByteBuffer page = range.pages.get(word >> PAGE_WORDS_BITS);
+		int pos = (word & PAGE_WORDS_MASK) * 8;
+		long chunkMask = page.getLong(pos);
+		pos += 8;
+		for (int i = 0; i < chunkLen; i++)
+			tmpWork[i] = page.getShort(pos + 2 * i);
+		if (chunkLen == ONE_VALUE_CHUNK_SIZE){
+			for (int opos = 0; opos < CHUNK_SIZE; opos++){
+				if ((chunkMask & (1L << opos)) != 0)
+					currentChunk[opos] = tmpWork[0];
+			}
+		} else if (tmpWork[0] == unassigned){
+			// decode RLE-compressed chunk
+			int opos = 0;
+			for (int ipos = 1; ipos + 1 < chunkLen; ipos += 2){
+				int len = tmpWork[ipos];
+				short val = tmpWork[ipos + 1];
+				while (len > 0 && opos < CHUNK_SIZE){
+					if ((chunkMask & (1L << opos)) != 0){
+						currentChunk[opos] = val;
+						--len;
+					}
+					++opos;
+				}
+			}
+		} else {
+			int ipos = 0;
+			for (int opos = 0; opos < CHUNK_SIZE; opos++){
+				if ((chunkMask & (1L << opos)) != 0)
+					currentChunk[opos] = tmpWork[ipos++];
+			}
+		}
+	}
+
+	/**
+	 * Try to use Run Length Encoding to compress the chunk stored in tmpWork.
+	 * @param maxlen: number of elements in the chunk.
+	 * @return -1 if compression doesn't save space, else the number of elements in the
+	 * compressed chunk stored in buffer RLEWork.
+	 */
+	private int chunkCompressRLE (int maxlen){
+		int opos =  1;
+		for (int i = 0; i < maxlen; i++) {
+			short runLength = 1;
+			while (i+1 < maxlen && tmpWork[i] == tmpWork[i+1]) {
+				runLength++;
+				i++;
+			}
+			if (opos+2 >= tmpWork.length)
+				return -1; // compressed record is not shorter
+			RLEWork[opos++] = runLength;
+			RLEWork[opos++] = tmpWork[i];
+		}
+		if (opos == 3){
+			// the chunk contains only one distinct value
+			RLEWork[0] = RLEWork[2];
+			return ONE_VALUE_CHUNK_SIZE;
+		}
+		if (opos < maxlen){
+			RLEWork[0] = unassigned; // signal a normal compressed record
+			return opos;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compress the data in currentChunk and store it.
+	 */
+	private void saveCurrentChunk() {
+		long mask = 0;
+		int opos = 0;
+		for (int j = 0; j < CHUNK_SIZE; j++){
+			if (currentChunk[j] != unassigned) {
+				mask |= 1L << j;
+				tmpWork[opos++] = currentChunk[j];
+			}
+		}
+		if (opos == 0 && currentChunkEntry == 0)
+			return;
+		short[] chunkToSave = tmpWork;
+		if (opos > ONE_VALUE_CHUNK_SIZE){
+			int RLELen = chunkCompressRLE(opos);
+			if (RLELen > 0){
+				chunkToSave = RLEWork;
+				opos = RLELen;
+			}
+		}
+		Range range = getRange(currentChunkId, true);
+		int len = Math.max(opos, 1);
+		if (currentChunkEntry != 0){
+			// the chunk is rewritten, the old record can be reused
+			int oldLen = (currentChunkEntry & LEN_MASK) + 1;
+			if (range.reusable[oldLen] == null)
+				range.reusable[oldLen] = new IntArrayList();
+			range.reusable[oldLen].add(currentChunkEntry >>> LEN_BITS);
+		}
+		int word;
+		IntArrayList reusable = range.reusable[len];
+		if (reusable != null && !reusable.isEmpty())
+			word = reusable.removeInt(reusable.size() - 1);
+		else {
+			int words = words(len);
+			word = range.nextWord;
+			if ((word & PAGE_WORDS_MASK) + words > PAGE_WORDS){
+				// records don't cross pages
+				word = (word + PAGE_WORDS_MASK) & ~PAGE_WORDS_MASK;
+			}
+			if (word >> PAGE_WORDS_BITS >= range.pages.size()){
+				range.pages.add(allocate(PAGE_WORDS * 8));
+				allocatedBytes += PAGE_WORDS * 8L;
+			}
+			range.nextWord = word + words;
+			++countChunkLen[len];
+		}
+		ByteBuffer page = range.pages.get(word >> PAGE_WORDS_BITS);
+		int pos = (word & PAGE_WORDS_MASK) * 8;
+		page.putLong(pos, mask);
+		pos += 8;
+		for (int i = 0; i < len; i++)
+			page.putShort(pos + 2 * i, chunkToSave[i]);
+		range.vector.put(chunkIndex(currentChunkId), (word << LEN_BITS) | (len - 1));
+	}
+
+	@Override
+	public void clear() {
+		System.out.println(this.getClass().getSimpleName() + ": Allocating three-tier structure to save area info (HashMap->vector->chunkvector) in direct memory");
+		topMap = new HashMap<Long, Range>();
+		lastRange = null;
+		currentChunkId = INVALID_CHUNK_ID;
+		currentChunkEntry = 0;
+		countChunkLen = new long[CHUNK_SIZE + 1];
+		allocatedBytes = 0;
+		size = 0;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public short defaultReturnValue() {
+		return unassigned;
+	}
+
+	@Override
+	public void defaultReturnValue(short arg0) {
+		unassigned = arg0;
+	}
+
+	@Override
+	public void stats(int msgLevel) {
+		if (size() == 0){
+			System.out.println("Map is empty");
+			return;
+		}
+		long totalChunks = 0;
+		for (int i = 1; i <= CHUNK_SIZE; i++){
+			totalChunks += countChunkLen[i];
+			if (msgLevel > 0 && countChunkLen[i] > 0)
+				System.out.println("Length-" + i + " chunks: " + Utils.format(countChunkLen[i]) + ", used Bytes: " + Utils.format(countChunkLen[i] * words(i) * 8));
+		}
+		System.out.println("Number of stored ids: " + Utils.format(size()) + " in " + Utils.format(totalChunks) + " chunks, "
+				+ Utils.format(allocatedBytes) + " bytes of direct memory in " + topMap.size() + " ranges");
+	}
+}
@@ -12,8 +12,6 @@
  */
 package uk.me.parabola.splitter;
 
-import uk.me.parabola.splitter.Relation.Member;
-
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
@@ -46,6 +44,12 @@ class SplitProcessor extends AbstractMapProcessor {
 	private final int maxThreads;
 	private final short unassigned = Short.MIN_VALUE;
 
+	// the extended bounds of the writers in this pass
+	private final Area[] activeBounds;
+	// lowest id of the last node block that was checked with skipNodeBlock()
+	private long lastBlockMinId = Long.MIN_VALUE;
+	private long countSkippedBlocks = 0;
+
 	private final InputQueueInfo[] writerInputQueues;
 	private final BlockingQueue<InputQueueInfo> toProcess;
 	private final ArrayList<Thread> workerThreads;
@@ -56,6 +60,9 @@ class SplitProcessor extends AbstractMapProcessor {
 	private BitSet currentWayAreaSet;
 	private BitSet currentRelAreaSet;
 	private BitSet usedWriters;
+	// the number of writers in usedWriters and the last one, set by selectWriters()
+	private int countWriters;
+	private short lastUsedWriter;
 	
 	
 	SplitProcessor(DataStorer dataStorer,
@@ -63,8 +70,8 @@ class SplitProcessor extends AbstractMapProcessor {
 		this.dataStorer = dataStorer;
 		this.writerDictionary = dataStorer.getWriterDictionary();
 		this.writers = writerDictionary.getWriters();
-		this.coords = new SparseLong2ShortMapInline();
-		this.ways   = new SparseLong2ShortMapInline();
+		this.coords = dataStorer.createNodeMap();
+		this.ways   = dataStorer.createSparseMap();
 		this.coords.defaultReturnValue(unassigned);
 		this.ways.defaultReturnValue(unassigned); 		
 		this.writerIndex = dataStorer.getGrid();
@@ -74,9 +81,11 @@ class SplitProcessor extends AbstractMapProcessor {
 		this.maxThreads = maxThreads;
 		this.toProcess = new ArrayBlockingQueue<InputQueueInfo>(numWritersThisPass);
 		this.writerInputQueues = new InputQueueInfo[numWritersThisPass];
+		this.activeBounds = new Area[numWritersThisPass];
 		for (int i = 0; i < writerInputQueues.length; i++) {
 			writerInputQueues[i] = new InputQueueInfo(this.writers[i + writerOffset]);
 			writers[i + writerOffset].initForWrite(); 
+			activeBounds[i] = writers[i + writerOffset].getExtendedBounds();
 		}
 		nodeWriterMap = dataStorer.getWriterMap(DataStorer.NODE_TYPE);
 		wayWriterMap = dataStorer.getWriterMap(DataStorer.WAY_TYPE);
@@ -97,12 +106,40 @@ class SplitProcessor extends AbstractMapProcessor {
 	} 
 	
 
+	@Override
+	public boolean skipNodeBlock(Area bounds, long minId, long maxId) {
+		for (Area writerBounds : activeBounds){
+			if (writerBounds.intersects(bounds))
+				return false;
+		}
+		if (nodeWriterMap != null){
+			// nodes of multi-tile elements may lie outside of the writer bounds
+			if (dataStorer.isIdsAreNotSorted() || minId < lastBlockMinId)
+				return false;
+			lastBlockMinId = minId;
+			if (nodeWriterMap.containsKeyInRange(minId, maxId))
+				return false;
+		}
+		++countSkippedBlocks;
+		return true;
+	}
+
 	@Override
 	public void processNode(Node n) {
-		try {
-			writeNode(n);
-		} catch (IOException e) {
-			throw new RuntimeException("failed to write node " + n.getId(), e);
+		int multiTileWriterIdx = getMultiTileWriterIdx(n.getId());
+		if (selectWriters(n.getMapLat(), n.getMapLon(), writerIndex.get(n), multiTileWriterIdx))
+			writeNode(n, multiTileWriterIdx);
+	}
+
+	@Override
+	public void processNodes(NodeBatch nodes) {
+		for (int i = 0; i < nodes.size(); i++){
+			int mapLat = nodes.getMapLat(i);
+			int mapLon = nodes.getMapLon(i);
+			int multiTileWriterIdx = getMultiTileWriterIdx(nodes.getId(i));
+			// only create Node instances for nodes that are written in this pass
+			if (selectWriters(mapLat, mapLon, writerIndex.get(mapLat, mapLon), multiTileWriterIdx))
+				writeNode(nodes.createNode(i), multiTileWriterIdx);
 		}
 	}
 
@@ -175,10 +212,10 @@ class SplitProcessor extends AbstractMapProcessor {
 			short oldclIndex = unassigned;
 			short oldwlIndex = unassigned;
 			try {
-				for (Member mem : rel.getMembers()) {
-					// String role = mem.getRole();
-					long id = mem.getRef();
-					if (mem.getType().equals("node")) {
+				for (int i = 0; i < rel.getMemberCount(); i++) {
+					long id = rel.getMemberRef(i);
+					byte type = rel.getMemberType(i);
+					if (type == Relation.MEMBER_NODE) {
 						short clIdx = coords.get(id);
 
 						if (clIdx != unassigned){
@@ -190,7 +227,7 @@ class SplitProcessor extends AbstractMapProcessor {
 
 						}
 
-					} else if (mem.getType().equals("way")) {
+					} else if (type == Relation.MEMBER_WAY) {
 						short wlIdx = ways.get(id);
 
 						if (wlIdx != unassigned){
@@ -225,6 +262,8 @@ class SplitProcessor extends AbstractMapProcessor {
 		System.out.println("  JVM Memory Info: Current " + totalMem + "MB (" + usedMem + "MB used, " + freeMem + "MB free) Max " + maxMem + "MB");
 		System.out.println("Full Node tests:  " + Utils.format(countFullTest));
 		System.out.println("Quick Node tests: " + Utils.format(countQuickTest)); 		
+		if (countSkippedBlocks > 0)
+			System.out.println("Skipped node blocks outside of the areas: " + Utils.format(countSkippedBlocks));
 		coords = null;
 		ways = null;
 
@@ -259,15 +298,29 @@ class SplitProcessor extends AbstractMapProcessor {
 		return true; 		
 	}
 
-	private void writeNode(Node currentNode) throws IOException {
-		int countWriters = 0;
-		short lastUsedWriter = unassigned;
-		WriterGridResult writerCandidates = writerIndex.get(currentNode);
-		int multiTileWriterIdx = (nodeWriterMap != null) ? nodeWriterMap.getSeq(currentNode.getId()): WriterDictionaryInt.UNASSIGNED;
-
+	/**
+	 * @return the index of the multi-tile writer set of the node or 
+	 * WriterDictionaryInt.UNASSIGNED. Must be called for each node in file order.
+	 */
+	private int getMultiTileWriterIdx(long id){
+		if (nodeWriterMap == null)
+			return WriterDictionaryInt.UNASSIGNED;
+		return nodeWriterMap.getSeq(id);
+	}
+	
+	/**
+	 * Find the writers of this pass that contain the given position. The 
+	 * result is stored in usedWriters, countWriters and lastUsedWriter.
+	 * @param writerCandidates the result of the grid lookup for the position
+	 * @param multiTileWriterIdx the multi-tile writer set of the node
+	 * @return true if at least one writer of this pass receives the node  
+	 */
+	private boolean selectWriters(int mapLat, int mapLon, WriterGridResult writerCandidates, int multiTileWriterIdx) {
+		countWriters = 0;
+		lastUsedWriter = unassigned;
 		boolean isSpecialNode = (multiTileWriterIdx != WriterDictionaryInt.UNASSIGNED);
 		if (writerCandidates == null && !isSpecialNode)  {
-			return;
+			return false;
 		}
 		if (isSpecialNode || writerCandidates.l.size() > 1)
 			usedWriters.clear();
@@ -276,10 +329,9 @@ class SplitProcessor extends AbstractMapProcessor {
 				int n = writerCandidates.l.get(i);
 				if (n < writerOffset || n > lastWriter)
 					continue;
-				OSMWriter w = writers[n];
 				boolean found;
 				if (writerCandidates.testNeeded){
-					found = w.nodeBelongsToThisArea(currentNode);
+					found = writers[n].coordsBelongToThisArea(mapLat, mapLon);
 					++countFullTest;
 				}
 				else{ 
@@ -290,26 +342,41 @@ class SplitProcessor extends AbstractMapProcessor {
 					usedWriters.set(n);
 					++countWriters;
 					lastUsedWriter = (short) n;
-					if (maxThreads > 1) {
-						addToWorkingQueue(n, currentNode);
-					} else {
-						w.write(currentNode);
-					}
 				}
 			}
 		}
+		if (countWriters > 0)
+			return true;
 		if (isSpecialNode){
-			// this node is part of a multi-tile-polygon, add it to all tiles covered by the parent 
 			BitSet nodeWriters = dataStorer.getMultiTileWriterDictionary().getBitSet(multiTileWriterIdx);
-			for(int i=nodeWriters.nextSetBit(writerOffset); i>=0 && i <= lastWriter; i=nodeWriters.nextSetBit(i+1)){
-				if (usedWriters.get(i) )
-					continue;
-				if (maxThreads > 1) {
-					addToWorkingQueue(i, currentNode);
-				} else {
-					writers[i].write(currentNode);
+			int n = nodeWriters.nextSetBit(writerOffset);
+			return n >= 0 && n <= lastWriter;
+		}
+		return false;
+	}
+	
+	/**
+	 * Write the node to the writers that were found by {@link #selectWriters}.
+	 */
+	private void writeNode(Node currentNode, int multiTileWriterIdx) {
+		try {
+			if (countWriters == 1)
+				writeNodeTo(lastUsedWriter, currentNode);
+			else if (countWriters > 1){
+				for (int n = usedWriters.nextSetBit(writerOffset); n >= 0 && n <= lastWriter; n = usedWriters.nextSetBit(n + 1))
+					writeNodeTo(n, currentNode);
+			}
+			if (multiTileWriterIdx != WriterDictionaryInt.UNASSIGNED){
+				// this node is part of a multi-tile-polygon, add it to all tiles covered by the parent 
+				BitSet nodeWriters = dataStorer.getMultiTileWriterDictionary().getBitSet(multiTileWriterIdx);
+				for(int i=nodeWriters.nextSetBit(writerOffset); i>=0 && i <= lastWriter; i=nodeWriters.nextSetBit(i+1)){
+					if (usedWriters.get(i) )
+						continue;
+					writeNodeTo(i, currentNode);
 				}
 			}
+		} catch (IOException e) {
+			throw new RuntimeException("failed to write node " + currentNode.getId(), e);
 		}
 		
 		if (countWriters > 0){
@@ -327,6 +394,14 @@ class SplitProcessor extends AbstractMapProcessor {
 		}
 	}
 
+	private void writeNodeTo(int n, Node currentNode) throws IOException {
+		if (maxThreads > 1) {
+			addToWorkingQueue(n, currentNode);
+		} else {
+			writers[n].write(currentNode);
+		}
+	}
+
 	private boolean seenWay;
 
 	private void writeWay(Way currentWay) throws IOException {
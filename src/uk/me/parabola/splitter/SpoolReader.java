@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a spool file that was written by {@link SpoolWriter}.
+ * <p>
+ * The file starts with a magic number and a version, followed by blocks.
+ * Each block starts with a type byte and the length of the rest of the
+ * block. Node blocks start with the id range and the bounding box of
+ * the nodes, so that they can be skipped without decoding them. Then
+ * follow the strings of the block and the columns of the elements,
+ * all numbers are written as varints, ids and coordinates as deltas.
+ */
+class SpoolReader {
+	private final MapProcessor processor;
+	private final boolean background;
+	private final boolean skipTags;
+	private final boolean skipNodes;
+	private final boolean skipWays;
+	private final boolean skipRels;
+	private final NodeBatch nodes = new NodeBatch();
+	private final WayBatch ways = new WayBatch();
+	private static final int UNRESOLVED = -2;
+	private String[] strings = new String[1024];
+	// the TagDictionary ids of the strings, resolved when a tag needs them
+	private int[] keyIds = new int[1024];
+	private int[] valueIds = new int[1024];
+	private byte[] buf = new byte[64 * 1024];
+	private int pos;
+	// the columns of the current block
+	private long[] ids = new long[4096];
+	private int[] lats = new int[4096];
+	private int[] lons = new int[4096];
+	private int[] counts = new int[4096];
+	private long[] refs = new long[4096];
+
+	/**
+	 * @param background true if the file should be read by a background thread
+	 */
+	SpoolReader(MapProcessor processor, boolean background) {
+		this.processor = processor;
+		this.background = background;
+		this.skipTags = processor.skipTags() || processor.isStartNodeOnly();
+		this.skipNodes = processor.skipNodes();
+		this.skipWays = processor.skipWays() || processor.isStartNodeOnly();
+		this.skipRels = processor.skipRels() || processor.isStartNodeOnly();
+	}
+
+	/**
+	 * Pass the elements of the spool file to the processor.
+	 */
+	public void parse(File file) throws IOException {
+		FileInputStream fileStream = new FileInputStream(file);
+		InputStream stream = background ? new BackgroundInputStream(fileStream.getChannel()) : fileStream;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 256 * 1024));
+		try {
+			if (in.readInt() != SpoolWriter.MAGIC || in.readInt() != SpoolWriter.VERSION)
+				throw new IOException("Unexpected format of spool file " + file);
+			while (true) {
+				byte type = in.readByte();
+				if (type == SpoolWriter.BLOCK_END)
+					break;
+				int len = in.readInt();
+				if (type == SpoolWriter.BLOCK_BOUNDS) {
+					processor.boundTag(new Area(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+					continue;
+				}
+				boolean skip = (type == SpoolWriter.BLOCK_NODES && skipNodes)
+						|| (type == SpoolWriter.BLOCK_WAYS && skipWays)
+						|| (type == SpoolWriter.BLOCK_RELS && skipRels);
+				if (!skip && type == SpoolWriter.BLOCK_NODES) {
+					long minId = in.readLong();
+					long maxId = in.readLong();
+					Area bounds = new Area(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+					len -= 32;
+					skip = processor.skipNodeBlock(bounds, minId, maxId);
+				}
+				if (skip) {
+					skipFully(in, len);
+					continue;
+				}
+				if (len > buf.length)
+					buf = new byte[Math.max(len, buf.length * 2)];
+				in.readFully(buf, 0, len);
+				pos = 0;
+				// the strings are only needed for tags and roles 
+				readStrings(!skipTags || type == SpoolWriter.BLOCK_RELS);
+				if (type == SpoolWriter.BLOCK_NODES)
+					readNodes();
+				else if (type == SpoolWriter.BLOCK_WAYS)
+					readWays();
+				else if (type == SpoolWriter.BLOCK_RELS)
+					readRels();
+				else
+					throw new IOException("Unknown block type " + type + " in spool file " + file);
+			}
+		} finally {
+			in.close();
+			fileStream.close();
+		}
+	}
+
+	private static void skipFully(DataInputStream in, int len) throws IOException {
+		while (len > 0) {
+			int skipped = in.skipBytes(len);
+			if (skipped <= 0)
+				throw new IOException("Unexpected end of spool file");
+			len -= skipped;
+		}
+	}
+
+	private void readStrings(boolean decode) throws IOException {
+		int n = (int) readVarLong();
+		if (n > strings.length) {
+			strings = new String[Math.max(n, strings.length * 2)];
+			keyIds = new int[strings.length];
+			valueIds = new int[strings.length];
+		}
+		for (int i = 0; i < n; i++) {
+			int len = (int) readVarLong();
+			if (decode) {
+				strings[i] = new String(buf, pos, len, "UTF-8");
+				keyIds[i] = UNRESOLVED;
+				valueIds[i] = UNRESOLVED;
+			}
+			pos += len;
+		}
+	}
+
+	private void readNodes() {
+		int n = (int) readVarLong();
+		readIds(n);
+		if (lats.length < n) {
+			lats = new int[n];
+			lons = new int[n];
+		}
+		int last = 0;
+		for (int i = 0; i < n; i++)
+			lats[i] = last += readSignedVarInt();
+		last = 0;
+		for (int i = 0; i < n; i++)
+			lons[i] = last += readSignedVarInt();
+		for (int i = 0; i < n; i++) {
+			nodes.add(ids[i], lats[i], lons[i]);
+			readTags(nodes);
+		}
+		processor.processNodes(nodes);
+		nodes.clear();
+	}
+
+	private void readWays() {
+		int n = (int) readVarLong();
+		readIds(n);
+		if (counts.length < n)
+			counts = new int[n];
+		int totalRefs = 0;
+		for (int i = 0; i < n; i++) {
+			counts[i] = (int) readVarLong();
+			totalRefs += counts[i];
+		}
+		if (refs.length < totalRefs)
+			refs = new long[totalRefs];
+		long last = 0;
+		for (int r = 0; r < totalRefs; r++)
+			refs[r] = last += readSignedVarLong();
+		int r = 0;
+		for (int i = 0; i < n; i++) {
+			ways.add(ids[i]);
+			for (int end = r + counts[i]; r < end; r++)
+				ways.addRef(refs[r]);
+			readTags(ways);
+		}
+		processor.processWays(ways);
+		ways.clear();
+	}
+
+	private void readRels() {
+		int n = (int) readVarLong();
+		readIds(n);
+		Relation[] rels = new Relation[n];
+		if (counts.length < n)
+			counts = new int[n];
+		for (int i = 0; i < n; i++)
+			counts[i] = (int) readVarLong();
+		long last = 0;
+		for (int i = 0; i < n; i++) {
+			Relation rel = new Relation();
+			rel.set(ids[i]);
+			for (int m = 0; m < counts[i]; m++) {
+				byte type = buf[pos++];
+				last += readSignedVarLong();
+				rel.addMember(type, last, getKeyId((int) readVarLong()));
+			}
+			rels[i] = rel;
+		}
+		for (int i = 0; i < n; i++) {
+			int numTags = (int) readVarLong();
+			for (int t = 0; t < numTags; t++) {
+				String key = strings[(int) readVarLong()];
+				String val = strings[(int) readVarLong()];
+				if (!skipTags)
+					rels[i].addTag(key, val);
+			}
+		}
+		for (Relation rel : rels)
+			processor.processRelation(rel);
+	}
+
+	private void readIds(int n) {
+		if (ids.length < n)
+			ids = new long[n];
+		long last = 0;
+		for (int i = 0; i < n; i++)
+			ids[i] = last += readSignedVarLong();
+	}
+
+	/**
+	 * Read the tags of the last element in the batch. The tags are
+	 * the last column of a block, so nothing is read if they are not needed.
+	 */
+	private void readTags(ElementBatch batch) {
+		if (skipTags)
+			return;
+		int numTags = (int) readVarLong();
+		for (int t = 0; t < numTags; t++) {
+			int key = (int) readVarLong();
+			int val = (int) readVarLong();
+			if (valueIds[val] == UNRESOLVED)
+				valueIds[val] = TagDictionary.getValueId(strings[val]);
+			batch.addTag(getKeyId(key), valueIds[val], strings[val]);
+		}
+	}
+
+	/**
+	 * @return the TagDictionary id of a key or role
+	 */
+	private int getKeyId(int s) {
+		if (keyIds[s] == UNRESOLVED)
+			keyIds[s] = TagDictionary.getKeyId(strings[s]);
+		return keyIds[s];
+	}
+
+	private long readVarLong() {
+		long result = 0;
+		int shift = 0;
+		while (true) {
+			byte b = buf[pos++];
+			result |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				return result;
+			shift += 7;
+		}
+	}
+
+	private long readSignedVarLong() {
+		long v = readVarLong();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private int readSignedVarInt() {
+		int v = (int) readVarLong();
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Passes the elements on to another processor and writes all of them to a
+ * spool file, so that later passes can read the spool file instead of
+ * decoding the input files again. See {@link SpoolReader} for the format.
+ * The blocks can be encoded and written by a background thread, so that 
+ * the first pass doesn't have to wait for the spool file.
+ */
+class SpoolWriter implements MapProcessor {
+	static final int MAGIC = 0x53504c53; // "SPLS"
+	static final int VERSION = 1;
+	static final byte BLOCK_END = 0;
+	static final byte BLOCK_NODES = 1;
+	static final byte BLOCK_WAYS = 2;
+	static final byte BLOCK_RELS = 3;
+	static final byte BLOCK_BOUNDS = 4;
+
+	private static final int BATCH_SIZE = 4096;
+	private static final int REL_BATCH_SIZE = 512;
+	private static final Object END_OF_DATA = new Object();
+
+	private final MapProcessor processor;
+	private final File file;
+	private DataOutputStream out;
+	private volatile IOException error;
+	private boolean complete;
+
+	// the elements of the block that is written next
+	private NodeBatch nodes = new NodeBatch();
+	private WayBatch ways = new WayBatch();
+	private ArrayList<Relation> rels = new ArrayList<Relation>();
+
+	// the background thread and the blocks that are waiting for it
+	private final Thread writerThread;
+	private final BlockingQueue<Object> toWrite;
+	private final ConcurrentLinkedQueue<NodeBatch> freeNodeBatches = new ConcurrentLinkedQueue<NodeBatch>();
+	private final ConcurrentLinkedQueue<WayBatch> freeWayBatches = new ConcurrentLinkedQueue<WayBatch>();
+
+	// the strings of the current block
+	private final HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+	private final ArrayList<String> strings = new ArrayList<String>();
+	private final VarIntBuffer head = new VarIntBuffer();
+	private final VarIntBuffer body = new VarIntBuffer();
+
+	/**
+	 * @param processor the processor that receives the elements
+	 * @param file the spool file
+	 * @param background true if the blocks should be written by a background thread
+	 */
+	SpoolWriter(MapProcessor processor, File file, boolean background) throws IOException {
+		this.processor = processor;
+		this.file = file;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 256 * 1024));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		if (background) {
+			toWrite = new ArrayBlockingQueue<Object>(8);
+			writerThread = new Thread(new Runnable() {
+				public void run() {
+					while (true) {
+						Object part;
+						try {
+							part = toWrite.take();
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (part == END_OF_DATA)
+							return;
+						if (error == null)
+							encode(part);
+					}
+				}
+			});
+			writerThread.setName("SpoolWriter");
+			writerThread.setDaemon(true);
+			writerThread.start();
+		} else {
+			toWrite = null;
+			writerThread = null;
+		}
+	}
+
+	/**
+	 * @return true if all elements were written to the spool file
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	// the spool file needs all elements
+	public boolean isStartNodeOnly() {
+		return false;
+	}
+
+	public boolean skipTags() {
+		return false;
+	}
+
+	public boolean skipNodes() {
+		return false;
+	}
+
+	public boolean skipWays() {
+		return false;
+	}
+
+	public boolean skipRels() {
+		return false;
+	}
+
+	public boolean skipNodeBlock(Area bounds, long minId, long maxId) {
+		return false;
+	}
+
+	public void boundTag(Area bounds) {
+		if (error == null) {
+			flush();
+			write(bounds);
+		}
+		processor.boundTag(bounds);
+	}
+
+	public void processNode(Node n) {
+		if (error == null) {
+			flushWays();
+			flushRels();
+			nodes.add(n.getId(), n.getFixedLat(), n.getFixedLon());
+			nodes.addTags(n);
+			if (nodes.size() >= BATCH_SIZE)
+				flushNodes();
+		}
+		if (!processor.skipNodes())
+			processor.processNode(n);
+	}
+
+	public void processNodes(NodeBatch batch) {
+		if (error == null) {
+			flushWays();
+			flushRels();
+			for (int i = 0; i < batch.size(); i++) {
+				nodes.add(batch, i);
+				if (nodes.size() >= BATCH_SIZE)
+					flushNodes();
+			}
+		}
+		if (!processor.skipNodes())
+			processor.processNodes(batch);
+	}
+
+	public void processWay(Way w) {
+		if (error == null) {
+			flushNodes();
+			flushRels();
+			ways.add(w.getId());
+			for (int i = 0; i < w.getRefs().size(); i++)
+				ways.addRef(w.getRefs().getLong(i));
+			ways.addTags(w);
+			if (ways.size() >= BATCH_SIZE)
+				flushWays();
+		}
+		if (!processor.skipWays() && !processor.isStartNodeOnly())
+			processor.processWay(w);
+	}
+
+	public void processWays(WayBatch batch) {
+		if (error == null) {
+			flushNodes();
+			flushRels();
+			for (int i = 0; i < batch.size(); i++) {
+				ways.add(batch, i);
+				if (ways.size() >= BATCH_SIZE)
+					flushWays();
+			}
+		}
+		if (!processor.skipWays() && !processor.isStartNodeOnly())
+			processor.processWays(batch);
+	}
+
+	public void processRelation(Relation r) {
+		if (error == null) {
+			flushNodes();
+			flushWays();
+			rels.add(r);
+			if (rels.size() >= REL_BATCH_SIZE)
+				flushRels();
+		}
+		if (!processor.skipRels() && !processor.isStartNodeOnly())
+			processor.processRelation(r);
+	}
+
+	public boolean endMap() {
+		flush();
+		if (writerThread != null) {
+			try {
+				toWrite.put(END_OF_DATA);
+				writerThread.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Failed to join for thread " + writerThread.getName(), e);
+			}
+		}
+		try {
+			if (error == null)
+				out.writeByte(BLOCK_END);
+			out.close();
+		} catch (IOException e) {
+			if (error == null)
+				error = e;
+		}
+		if (error != null) {
+			System.out.println("Failed to write spool file " + file + ": " + error.getMessage());
+			file.delete();
+		} else
+			complete = true;
+		out = null;
+		return processor.endMap();
+	}
+
+	private void flush() {
+		flushNodes();
+		flushWays();
+		flushRels();
+	}
+
+	private void flushNodes() {
+		if (nodes.size() == 0 || error != null)
+			return;
+		NodeBatch batch = nodes;
+		nodes = freeNodeBatches.poll();
+		if (nodes == null)
+			nodes = new NodeBatch();
+		write(batch);
+	}
+
+	private void flushWays() {
+		if (ways.size() == 0 || error != null)
+			return;
+		WayBatch batch = ways;
+		ways = freeWayBatches.poll();
+		if (ways == null)
+			ways = new WayBatch();
+		write(batch);
+	}
+
+	private void flushRels() {
+		if (rels.isEmpty() || error != null)
+			return;
+		ArrayList<Relation> batch = rels;
+		rels = new ArrayList<Relation>();
+		write(batch);
+	}
+
+	/**
+	 * Encode and write the part now or pass it to the background thread.
+	 */
+	private void write(Object part) {
+		if (writerThread == null) {
+			encode(part);
+			return;
+		}
+		try {
+			toWrite.put(part);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void encode(Object part) {
+		if (part instanceof NodeBatch) {
+			NodeBatch batch = (NodeBatch) part;
+			writeNodes(batch);
+			batch.clear();
+			freeNodeBatches.add(batch);
+		} else if (part instanceof WayBatch) {
+			WayBatch batch = (WayBatch) part;
+			writeWays(batch);
+			batch.clear();
+			freeWayBatches.add(batch);
+		} else if (part instanceof Area) {
+			Area bounds = (Area) part;
+			try {
+				out.writeByte(BLOCK_BOUNDS);
+				out.writeInt(16);
+				out.writeInt(bounds.getMinLat());
+				out.writeInt(bounds.getMinLong());
+				out.writeInt(bounds.getMaxLat());
+				out.writeInt(bounds.getMaxLong());
+			} catch (IOException e) {
+				error = e;
+			}
+		} else 
+			writeRels((List<Relation>) part);
+	}
+
+	private void writeNodes(NodeBatch nodes) {
+		int n = nodes.size();
+		long minId = Long.MAX_VALUE, maxId = Long.MIN_VALUE;
+		int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			long id = nodes.getId(i);
+			minId = Math.min(minId, id);
+			maxId = Math.max(maxId, id);
+			minLat = Math.min(minLat, nodes.getMapLat(i));
+			maxLat = Math.max(maxLat, nodes.getMapLat(i));
+			minLon = Math.min(minLon, nodes.getMapLon(i));
+			maxLon = Math.max(maxLon, nodes.getMapLon(i));
+		}
+		body.writeVarLong(n);
+		writeIds(nodes);
+		int last = 0;
+		for (int i = 0; i < n; i++) {
+			body.writeSignedVarInt(nodes.getFixedLat(i) - last);
+			last = nodes.getFixedLat(i);
+		}
+		last = 0;
+		for (int i = 0; i < n; i++) {
+			body.writeSignedVarInt(nodes.getFixedLon(i) - last);
+			last = nodes.getFixedLon(i);
+		}
+		writeTags(nodes);
+		head.writeLong(minId);
+		head.writeLong(maxId);
+		head.writeInt(minLat);
+		head.writeInt(minLon);
+		head.writeInt(maxLat);
+		head.writeInt(maxLon);
+		writeBlock(BLOCK_NODES);
+	}
+
+	private void writeWays(WayBatch ways) {
+		int n = ways.size();
+		body.writeVarLong(n);
+		writeIds(ways);
+		for (int i = 0; i < n; i++)
+			body.writeVarLong(ways.getRefEnd(i) - ways.getRefStart(i));
+		long last = 0;
+		int end = ways.getRefEnd(n - 1);
+		for (int r = 0; r < end; r++) {
+			body.writeSignedVarLong(ways.getRef(r) - last);
+			last = ways.getRef(r);
+		}
+		writeTags(ways);
+		writeBlock(BLOCK_WAYS);
+	}
+
+	private void writeRels(List<Relation> rels) {
+		body.writeVarLong(rels.size());
+		long last = 0;
+		for (Relation rel : rels) {
+			body.writeSignedVarLong(rel.getId() - last);
+			last = rel.getId();
+		}
+		for (Relation rel : rels)
+			body.writeVarLong(rel.getMemberCount());
+		last = 0;
+		for (Relation rel : rels) {
+			for (int m = 0; m < rel.getMemberCount(); m++) {
+				body.writeByte(rel.getMemberType(m));
+				body.writeSignedVarLong(rel.getMemberRef(m) - last);
+				last = rel.getMemberRef(m);
+				body.writeVarLong(getStringIndex(rel.getMemberRole(m)));
+			}
+		}
+		for (Relation rel : rels) {
+			body.writeVarLong(rel.getTagCount());
+			for (int t = 0; t < rel.getTagCount(); t++) {
+				body.writeVarLong(getStringIndex(rel.getTagKey(t)));
+				body.writeVarLong(getStringIndex(rel.getTagValue(t)));
+			}
+		}
+		writeBlock(BLOCK_RELS);
+	}
+
+	private void writeIds(ElementBatch batch) {
+		long last = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			body.writeSignedVarLong(batch.getId(i) - last);
+			last = batch.getId(i);
+		}
+	}
+
+	private void writeTags(ElementBatch batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			int start = batch.getTagStart(i);
+			int end = batch.getTagEnd(i);
+			body.writeVarLong(end - start);
+			for (int t = start; t < end; t++) {
+				body.writeVarLong(getStringIndex(batch.getKey(t)));
+				body.writeVarLong(getStringIndex(batch.getValue(t)));
+			}
+		}
+	}
+
+	private int getStringIndex(String s) {
+		Integer pos = stringIndex.get(s);
+		if (pos == null) {
+			pos = strings.size();
+			strings.add(s);
+			stringIndex.put(s, pos);
+		}
+		return pos;
+	}
+
+	/**
+	 * Write the block: type, length, the fixed size head, the string
+	 * table and the body.
+	 */
+	private void writeBlock(byte type) {
+		try {
+			VarIntBuffer table = new VarIntBuffer();
+			table.writeVarLong(strings.size());
+			for (String s : strings)
+				table.writeString(s);
+			out.writeByte(type);
+			out.writeInt(head.size() + table.size() + body.size());
+			head.writeTo(out);
+			table.writeTo(out);
+			body.writeTo(out);
+		} catch (IOException e) {
+			error = e;
+		}
+		head.reset();
+		body.reset();
+		strings.clear();
+		stringIndex.clear();
+	}
+
+	/**
+	 * A growing byte buffer with methods to write variable length numbers.
+	 */
+	private static class VarIntBuffer {
+		private byte[] buf = new byte[64 * 1024];
+		private int len;
+
+		int size() {
+			return len;
+		}
+
+		void reset() {
+			len = 0;
+		}
+
+		void writeTo(DataOutputStream stream) throws IOException {
+			stream.write(buf, 0, len);
+		}
+
+		private void ensure(int more) {
+			if (len + more > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + more));
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			buf[len++] = (byte) b;
+		}
+
+		void writeInt(int v) {
+			ensure(4);
+			buf[len++] = (byte) (v >>> 24);
+			buf[len++] = (byte) (v >>> 16);
+			buf[len++] = (byte) (v >>> 8);
+			buf[len++] = (byte) v;
+		}
+
+		void writeLong(long v) {
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+
+		void writeVarLong(long v) {
+			ensure(10);
+			while ((v & ~0x7fL) != 0) {
+				buf[len++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			buf[len++] = (byte) v;
+		}
+
+		void writeSignedVarLong(long v) {
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+
+		void writeSignedVarInt(int v) {
+			writeVarLong(((v << 1) ^ (v >> 31)) & 0xffffffffL);
+		}
+
+		void writeString(String s) {
+			byte[] bytes;
+			try {
+				bytes = s.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			writeVarLong(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buf, len, bytes.length);
+			len += bytes.length;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of tag keys and values that is shared by all parsers and
+ * writers. Each string gets a small int id, and all tags with the same
+ * key or value refer to the same String instance.
+ * <p>
+ * Keys are always added. Values are only added while the dictionary
+ * is not full and if they are short, long values like names or notes
+ * are rarely repeated and would only fill the dictionary. Elements
+ * store such values as plain strings with the id {@link #NO_ID}.
+ * <p>
+ * The dictionary also applies the {@link TagFilter}, the decision for
+ * a key is calculated once and stored with the key.
+ * <p>
+ * The dictionary can be used by several threads at the same time.
+ */
+public final class TagDictionary {
+	public static final int NO_ID = -1;
+	private static final int MAX_VALUE_LENGTH = 32;
+	private static final int MAX_VALUES = 1 << 22;
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>(CHUNK_SIZE);
+	// the chunks are never moved, so a reader that got an id never sees a stale array
+	private static final String[][] strings = new String[MAX_CHUNKS][];
+	private static final int[][] utf8Lengths = new int[MAX_CHUNKS][];
+	// the TagFilter action for each key, 0 means not yet calculated
+	private static final byte[][] keyActions = new byte[MAX_CHUNKS][];
+	private static volatile int size;
+	private static volatile TagFilter filter;
+	/** the id of the key created_by, tags with this key are not stored */
+	public static final int CREATED_BY = getKeyId("created_by");
+
+	private TagDictionary() {
+	}
+
+	/**
+	 * Get the id of a key, the key is added if it is not yet known.
+	 */
+	public static int getKeyId(String key) {
+		Integer id = ids.get(key);
+		if (id != null)
+			return id;
+		return add(key);
+	}
+
+	/**
+	 * Get the id of a value. Values are only added if they are short and
+	 * the dictionary is not full.
+	 * @return the id or {@link #NO_ID}
+	 */
+	public static int getValueId(String value) {
+		Integer id = ids.get(value);
+		if (id != null)
+			return id;
+		if (value.length() > MAX_VALUE_LENGTH || size >= MAX_VALUES)
+			return NO_ID;
+		return add(value);
+	}
+
+	private static synchronized int add(String s) {
+		Integer known = ids.get(s);
+		if (known != null)
+			return known;
+		int id = size;
+		if (id >> CHUNK_BITS >= MAX_CHUNKS)
+			throw new RuntimeException("Too many different tag keys");
+		String[] chunk = strings[id >> CHUNK_BITS];
+		if (chunk == null) {
+			chunk = new String[CHUNK_SIZE];
+			strings[id >> CHUNK_BITS] = chunk;
+			utf8Lengths[id >> CHUNK_BITS] = new int[CHUNK_SIZE];
+			keyActions[id >> CHUNK_BITS] = new byte[CHUNK_SIZE];
+		}
+		chunk[id & CHUNK_MASK] = s;
+		utf8Lengths[id >> CHUNK_BITS][id & CHUNK_MASK] = Utils.utf8Length(s);
+		size = id + 1;
+		// publish the entry after it is complete
+		ids.put(s, id);
+		return id;
+	}
+
+	/**
+	 * @return the string with the given id
+	 */
+	public static String get(int id) {
+		return strings[id >> CHUNK_BITS][id & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the number of bytes of the UTF-8 encoding of the string with the given id
+	 */
+	public static int getUtf8Length(int id) {
+		return utf8Lengths[id >> CHUNK_BITS][id & CHUNK_MASK];
+	}
+
+	/**
+	 * Set the rules for the tags that are kept. Must be called before
+	 * any tags are added.
+	 */
+	public static synchronized void setFilter(TagFilter tagFilter) {
+		filter = tagFilter;
+		for (byte[] chunk : keyActions) {
+			if (chunk != null)
+				Arrays.fill(chunk, TagFilter.UNKNOWN);
+		}
+	}
+
+	private static byte getKeyAction(int keyId) {
+		byte[] chunk = keyActions[keyId >> CHUNK_BITS];
+		byte action = chunk[keyId & CHUNK_MASK];
+		if (action == TagFilter.UNKNOWN) {
+			// several threads may calculate the same action, that does no harm
+			TagFilter f = filter;
+			if (f != null)
+				action = f.getKeyAction(get(keyId));
+			else
+				action = (keyId == CREATED_BY) ? TagFilter.DROP : TagFilter.KEEP;
+			chunk[keyId & CHUNK_MASK] = action;
+		}
+		return action;
+	}
+
+	/**
+	 * @return true if all tags with this key are dropped, the value
+	 * doesn't have to be decoded
+	 */
+	public static boolean isKeyDropped(int keyId) {
+		return getKeyAction(keyId) == TagFilter.DROP;
+	}
+
+	/**
+	 * @return true if the tag is dropped by the {@link TagFilter}
+	 */
+	public static boolean isDropped(int keyId, String value) {
+		byte action = getKeyAction(keyId);
+		if (action == TagFilter.CHECK)
+			return filter.isDropped(get(keyId), value);
+		return action == TagFilter.DROP;
+	}
+
+	/**
+	 * @return the number of strings in the dictionary
+	 */
+	public static int size() {
+		return size;
+	}
+}
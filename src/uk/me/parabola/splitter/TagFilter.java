@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which tags are kept. The rules are read from files given with
+ * --keep-tags and --drop-tags. Each line contains a key or a key=value
+ * pair, the character * matches any text. A tag is kept if it matches
+ * one of the keep rules (or if there is no keep file) and none of the
+ * drop rules. Tags with the key created_by are always dropped.
+ * <p>
+ * A relation is dropped when its type tag is dropped, so e.g. the drop
+ * rule type=route removes all route relations.
+ */
+public class TagFilter {
+	public static final byte UNKNOWN = 0;
+	public static final byte KEEP = 1;
+	public static final byte DROP = 2;
+	// the value must be checked
+	public static final byte CHECK = 3;
+
+	private ArrayList<Rule> keepRules;
+	private final ArrayList<Rule> dropRules = new ArrayList<Rule>();
+
+	private static class Rule {
+		final Pattern key;
+		// null means any value
+		final Pattern value;
+
+		Rule(Pattern key, Pattern value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Read the rules of a keep or drop file.
+	 * @return false if the file could not be read or contains errors
+	 */
+	public boolean readRules(String fileName, boolean keep) {
+		File file = new File(fileName);
+		if (!file.exists()) {
+			System.out.println("Error: tag filter file doesn't exist: " + file);
+			return false;
+		}
+		ArrayList<Rule> rules = dropRules;
+		if (keep) {
+			if (keepRules == null)
+				keepRules = new ArrayList<Rule>();
+			rules = keepRules;
+		}
+		boolean ok = true;
+		try {
+			LineNumberReader reader = new LineNumberReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int comment = line.indexOf('#');
+					if (comment >= 0)
+						line = line.substring(0, comment);
+					line = line.trim();
+					if (line.isEmpty())
+						continue;
+					int eq = line.indexOf('=');
+					String key = (eq < 0) ? line : line.substring(0, eq).trim();
+					if (key.isEmpty()) {
+						System.out.println("Error: Missing key in tag filter file " + file + ", line number " + reader.getLineNumber() + ": " + line);
+						ok = false;
+						continue;
+					}
+					rules.add(new Rule(toPattern(key), (eq < 0) ? null : toPattern(line.substring(eq + 1).trim())));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException exp) {
+			System.out.println("Error: Cannot read tag filter file " + file + exp);
+			return false;
+		}
+		return ok;
+	}
+
+	/**
+	 * Convert a pattern with * wildcards to a regular expression.
+	 */
+	private static Pattern toPattern(String s) {
+		StringBuilder sb = new StringBuilder();
+		int start = 0;
+		int star;
+		while ((star = s.indexOf('*', start)) >= 0) {
+			if (star > start)
+				sb.append(Pattern.quote(s.substring(start, star)));
+			sb.append(".*");
+			start = star + 1;
+		}
+		if (start < s.length())
+			sb.append(Pattern.quote(s.substring(start)));
+		return Pattern.compile(sb.toString());
+	}
+
+	/**
+	 * @return {@link #KEEP} or {@link #DROP} if the rules decide about all
+	 * tags with this key, {@link #CHECK} if the value has to be checked
+	 * with {@link #isDropped(String, String)}
+	 */
+	public byte getKeyAction(String key) {
+		if (key.equals("created_by"))
+			return DROP;
+		boolean check = false;
+		if (keepRules != null) {
+			boolean keyKept = false;
+			for (Rule rule : keepRules) {
+				if (!rule.key.matcher(key).matches())
+					continue;
+				if (rule.value == null) {
+					keyKept = true;
+					break;
+				}
+				check = true;
+			}
+			if (!keyKept && !check)
+				return DROP;
+			if (keyKept)
+				check = false;
+		}
+		for (Rule rule : dropRules) {
+			if (!rule.key.matcher(key).matches())
+				continue;
+			if (rule.value == null)
+				return DROP;
+			check = true;
+		}
+		return check ? CHECK : KEEP;
+	}
+
+	/**
+	 * @return true if the tag is dropped by the rules
+	 */
+	public boolean isDropped(String key, String value) {
+		if (key.equals("created_by"))
+			return true;
+		if (keepRules != null) {
+			boolean kept = false;
+			for (Rule rule : keepRules) {
+				if (rule.key.matcher(key).matches() && (rule.value == null || rule.value.matcher(value).matches())) {
+					kept = true;
+					break;
+				}
+			}
+			if (!kept)
+				return true;
+		}
+		for (Rule rule : dropRules) {
+			if (rule.key.matcher(key).matches() && (rule.value == null || rule.value.matcher(value).matches()))
+				return true;
+		}
+		return false;
+	}
+}
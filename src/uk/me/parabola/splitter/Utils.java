@@ -32,7 +32,6 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-import org.apache.tools.bzip2.CBZip2InputStream;
 
 
 /**
@@ -71,6 +70,30 @@ public class Utils {
 			return (int) ((l - DELTA) * (1 << 24)/360);
 	}
 	
+	/**
+	 * Calculates the map unit for a fixed point value without floating 
+	 * point math. The result is the exact value that {@link #toMapUnit(double)} 
+	 * approximates, including the added delta of 0.000001 degrees.
+	 * @param fixed The lat or long in units of 0.0000001 degrees (the OSM precision).
+	 * @return The map unit
+	 */
+	public static int fixedToMapUnit(int fixed) {
+		if (fixed > 0)
+			return (int) ((((long) fixed + FIXED_DELTA) << 24) / FIXED_FULL_CIRCLE);
+		else
+			return (int) ((((long) fixed - FIXED_DELTA) << 24) / FIXED_FULL_CIRCLE);
+	}
+	private static final long FIXED_DELTA = 10; // 0.000001 degrees
+	private static final long FIXED_FULL_CIRCLE = 3600000000L; // 360 degrees
+
+	/**
+	 * @param fixed The lat or long in units of 0.0000001 degrees
+	 * @return the value in decimal degrees
+	 */
+	public static double fixedToDegrees(int fixed) {
+		return fixed / 10000000.0;
+	}
+	
 	public static double toRadians(int latitude) {
 		return toDegrees(latitude) * Math.PI / 180;
 	}
@@ -83,6 +106,28 @@ public class Utils {
 		return ((n & (n - 1)) == 0) && n > 0;
 	}
 
+	/**
+	 * @return the number of bytes of the UTF-8 encoding of the string
+	 */
+	public static int utf8Length(String s) {
+		int len = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				len++;
+			else if (c < 0x800)
+				len += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+				len++; // the encoder writes '?' for a lone surrogate
+			else
+				len += 3;
+		}
+		return len;
+	}
+
 	/**
 	 * Open a file and apply filters necessary to reading it such as decompression.
 	 *
@@ -90,8 +135,22 @@ public class Utils {
 	 * @return A stream that will read the file, positioned at the beginning.
 	 * @throws IOException If the file cannot be opened for any reason.
 	 */
-	@SuppressWarnings("resource")
 	public static Reader openFile(String name, boolean backgroundReader) throws IOException {
+		return new InputStreamReader(openFileStream(name, backgroundReader ? 2 : 1), Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Open a file and apply filters necessary to reading it such as decompression.
+	 *
+	 * @param name The file to open. gz, zip, bz2 are supported.
+	 * @param numThreads The number of threads that may be used. With more than one thread
+	 * the file is read by a background thread and bz2 files are decompressed in parallel.
+	 * bz2 files may consist of several streams.
+	 * @return A stream that will read the bytes of the (uncompressed) file, positioned at the beginning.
+	 * @throws IOException If the file cannot be opened for any reason.
+	 */
+	@SuppressWarnings("resource")
+	public static InputStream openFileStream(String name, int numThreads) throws IOException {
 		InputStream is = new BufferedInputStream(new FileInputStream(name), 8192);
 		if (name.endsWith(".gz")) {
 			try {
@@ -100,12 +159,10 @@ public class Utils {
 				throw new IOException( "Could not read " + name + " as a gz compressed file", e);
 			}
 		} else if (name.endsWith(".bz2")) {
-			try {
-				is.read(); is.read();
-				is = new CBZip2InputStream(is);
-			} catch (IOException e) {
-				throw new IOException( "Could not read " + name + " as a bz2 compressed file", e);
-			}
+			// also with one thread, because only this decoder reads all streams 
+			// of files that were written with pbzip2 or lbzip2. It reads ahead,
+			// so there is no need for a background reader
+			return new ParallelBZip2InputStream(is, Math.max(1, numThreads));
 		} else if (name.endsWith(".zip")) {
 			ZipInputStream zis = new ZipInputStream(is);
 			name = new File(name).getName();  // Strip off any path
@@ -121,10 +178,10 @@ public class Utils {
 				throw new IOException("Unable to find a file inside " + name + " that starts with " + name.substring(0, name.length() - 4));
 			}
 		}
-		if (backgroundReader) {
+		if (numThreads > 1) {
 			is = new BackgroundInputStream(is);
 		}
-		return new InputStreamReader(is, Charset.forName("UTF-8"));
+		return is;
 	}
 	
 	public static Rectangle area2Rectangle (Area area, int overlap){
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import java.util.Arrays;
+
+/**
+ * A reusable block of ways. The node references of way i are stored
+ * at the positions getRefStart(i) to getRefEnd(i)-1.
+ */
+public class WayBatch extends ElementBatch {
+	private int[] refStart = new int[INITIAL_SIZE + 1];
+	private long[] refs = new long[INITIAL_SIZE * 8];
+	private int numRefs;
+
+	/**
+	 * Append a way. The node references and tags have to be added
+	 * before the next way is added.
+	 * @param id the way id
+	 */
+	public void add(long id) {
+		int i = size;
+		addElement(id);
+		refStart[i] = numRefs;
+		refStart[i + 1] = numRefs;
+	}
+
+	/**
+	 * Add a node reference to the last added way.
+	 */
+	public void addRef(long ref) {
+		if (numRefs >= refs.length)
+			refs = Arrays.copyOf(refs, refs.length * 2);
+		refs[numRefs++] = ref;
+		refStart[size] = numRefs;
+	}
+
+	/**
+	 * Append a copy of way i of another batch.
+	 */
+	public void add(WayBatch other, int i) {
+		add(other.ids[i]);
+		int end = other.refStart[i + 1];
+		for (int r = other.refStart[i]; r < end; r++)
+			addRef(other.refs[r]);
+		addTags(other, i);
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		numRefs = 0;
+	}
+
+	@Override
+	protected void grow(int newSize) {
+		super.grow(newSize);
+		refStart = Arrays.copyOf(refStart, newSize + 1);
+	}
+
+	public int getRefStart(int i) {
+		return refStart[i];
+	}
+
+	public int getRefEnd(int i) {
+		return refStart[i + 1];
+	}
+
+	public long getRef(int refPos) {
+		return refs[refPos];
+	}
+
+	/**
+	 * @return a new Way with the data of way i
+	 */
+	public Way createWay(int i) {
+		Way way = new Way();
+		way.set(ids[i]);
+		int end = refStart[i + 1];
+		for (int r = refStart[i]; r < end; r++)
+			way.addRef(refs[r]);
+		copyTags(i, way);
+		return way;
+	}
+}
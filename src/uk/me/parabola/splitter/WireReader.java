@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.splitter;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Reads values in the protobuf wire format directly from a byte array,
+ * so that pbf blocks can be decoded without creating protobuf objects.
+ * Length delimited fields are not copied, the caller reads them
+ * in place up to the end position returned by {@link #readLength()}.
+ */
+class WireReader {
+	static final int WIRE_VARINT = 0;
+	static final int WIRE_FIXED64 = 1;
+	static final int WIRE_LENGTH = 2;
+	static final int WIRE_FIXED32 = 5;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] buf;
+	// the read position
+	int pos;
+
+	/**
+	 * Start reading the given buffer at the given position.
+	 */
+	void init(byte[] buf, int pos) {
+		this.buf = buf;
+		this.pos = pos;
+	}
+
+	/**
+	 * Read the key of the next field.
+	 * @return the key, use {@link #field(int)} and {@link #wireType(int)} to split it
+	 */
+	int readKey() {
+		return (int) readVarint();
+	}
+
+	static int field(int key) {
+		return key >>> 3;
+	}
+
+	static int wireType(int key) {
+		return key & 7;
+	}
+
+	long readVarint() {
+		long result = 0;
+		int shift = 0;
+		while (true) {
+			byte b = buf[pos++];
+			result |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				return result;
+			shift += 7;
+		}
+	}
+
+	int readVarint32() {
+		return (int) readVarint();
+	}
+
+	/**
+	 * Read a zigzag encoded sint32 or sint64 value.
+	 */
+	long readSInt64() {
+		long v = readVarint();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Read the length of a length delimited field.
+	 * @return the end position of the field
+	 */
+	int readLength() {
+		int len = readVarint32();
+		return pos + len;
+	}
+
+	/**
+	 * Skip the value of a field.
+	 * @param wireType the wire type of the field
+	 */
+	void skip(int wireType) throws IOException {
+		switch (wireType) {
+		case WIRE_VARINT:
+			readVarint();
+			break;
+		case WIRE_FIXED64:
+			pos += 8;
+			break;
+		case WIRE_LENGTH:
+			pos = readLength();
+			break;
+		case WIRE_FIXED32:
+			pos += 4;
+			break;
+		default:
+			throw new IOException("Unsupported protobuf wire type " + wireType);
+		}
+	}
+
+	/**
+	 * Read a repeated sint64 field, packed or not.
+	 * @param wireType the wire type of the field
+	 * @param list the values are added to this list
+	 */
+	void readSInt64s(int wireType, LongArrayList list) {
+		if (wireType != WIRE_LENGTH) {
+			list.add(readSInt64());
+			return;
+		}
+		int end = readLength();
+		while (pos < end)
+			list.add(readSInt64());
+	}
+
+	/**
+	 * Read a repeated int32, uint32 or enum field, packed or not.
+	 * @param wireType the wire type of the field
+	 * @param list the values are added to this list
+	 */
+	void readInts(int wireType, IntArrayList list) {
+		if (wireType != WIRE_LENGTH) {
+			list.add(readVarint32());
+			return;
+		}
+		int end = readLength();
+		while (pos < end)
+			list.add(readVarint32());
+	}
+
+	/**
+	 * Read a string field.
+	 */
+	String readString() {
+		int end = readLength();
+		String s = new String(buf, pos, end - pos, UTF8);
+		pos = end;
+		return s;
+	}
+}
@@ -16,24 +16,41 @@ import it.unimi.dsi.fastutil.shorts.ShortArrayList;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
 import java.util.HashSet;
 
 /**
  * Maps a BitSet containing the used writers to a short value.  
  * An OSM element is written to one or more writers. Every used
  * combination of writers is translated to a short.
+ * <p>
+ * The combinations are also stored as packed long words in one array and
+ * found with an open addressing hash table over these words, so a lookup
+ * creates no objects. Sets with one writer are translated without a
+ * lookup, sets with two writers are cached in a table that is indexed by
+ * the two writers.
  * @author GerdP
  *
  */
 public class WriterDictionaryShort{
 	public final static int DICT_START = -1 * (Short.MIN_VALUE + 1);
+	// the pair table needs up to numOfWriters^2 bytes
+	private final static int MAX_PAIR_WRITERS = 2048;
+	// marks unknown pairs, this is not a valid result of translate()
+	private final static short UNKNOWN_PAIR = Short.MIN_VALUE;
 	private OSMWriter[] writers;
 	private final ArrayList<BitSet> sets; 
 	private final ArrayList<ShortArrayList> arrays; 
 	private final int numOfWriters;
-	private final HashMap<BitSet, Short> index;
+	// the words of all sets, set i starts at i * wordsPerSet
+	private final int wordsPerSet;
+	private long[] setWords;
+	private int[] setHashes;
+	// the positions of the sets + 1 in an open addressing hash table, 0 marks a free slot
+	private int[] table;
+	// pairs[i][j-i-1] is the value for the set with the writers i and j > i 
+	private final short[][] pairs;
 	private final HashSet<Short> simpleNeighbours = new HashSet<Short>();
 	
 	/**
@@ -45,7 +62,11 @@ public class WriterDictionaryShort{
 		this.numOfWriters = writers.length;
 		sets = new ArrayList<BitSet>();
 		arrays = new ArrayList<ShortArrayList>();
-		index = new HashMap<BitSet, Short>();
+		wordsPerSet = Math.max(1, (numOfWriters + 63) >> 6);
+		setWords = new long[wordsPerSet * 1024];
+		setHashes = new int[1024];
+		table = new int[2048];
+		pairs = (numOfWriters <= MAX_PAIR_WRITERS) ? new short[numOfWriters][] : null;
 		init();
 	}
 	
@@ -74,26 +95,149 @@ public class WriterDictionaryShort{
 	 * @return a short value that identifies this BitSet 
 	 */
 	public short translate(final BitSet writerSet){
-		Short combiIndex = index.get(writerSet);
-		if (combiIndex == null){
-			BitSet bnew = new BitSet();
-
-			bnew.or(writerSet);
-			ShortArrayList a = new ShortArrayList();
-			for (int i = writerSet.nextSetBit(0); i >= 0; i = writerSet.nextSetBit(i + 1)) {
-				a.add((short) i);
-			}
-			combiIndex = (short) (sets.size() - DICT_START);
-			if (combiIndex == Short.MAX_VALUE){
-				throw new RuntimeException("writerDictionary is full. Decrease --max-areas value");
+		int first = writerSet.nextSetBit(0);
+		if (first >= 0){
+			int second = writerSet.nextSetBit(first + 1);
+			// the first sets in the dictionary contain one writer each 
+			if (second < 0 && first < numOfWriters && first < sets.size())
+				return (short) (first - DICT_START);
+			if (second >= 0 && pairs != null && second < numOfWriters && writerSet.nextSetBit(second + 1) < 0){
+				short[] row = pairs[first];
+				if (row == null){
+					row = new short[numOfWriters - first - 1];
+					Arrays.fill(row, UNKNOWN_PAIR);
+					pairs[first] = row;
+				}
+				short combiIndex = row[second - first - 1];
+				if (combiIndex == UNKNOWN_PAIR){
+					combiIndex = lookup(writerSet);
+					row[second - first - 1] = combiIndex;
+				}
+				return combiIndex;
 			}
-			sets.add(bnew);
-			arrays.add(a);
-			index.put(bnew, combiIndex);
 		}
+		return lookup(writerSet);
+	}
+
+	/**
+	 * Calculate the short value for a set of writers that is given as
+	 * words, writer i is in the set if bit (i % 64) of words[i / 64] is set.
+	 * The set must not contain values higher than numOfWriters.
+	 * @param words the words of the set, the array is not stored 
+	 * @return a short value that identifies this set 
+	 */
+	public short translate(final long[] words){
+		int h = 1;
+		for (int k = 0; k < words.length; k++){
+			for (long w = words[k]; w != 0; w &= w - 1)
+				h = hash(h, (k << 6) + Long.numberOfTrailingZeros(w));
+		}
+		int mask = table.length - 1;
+		int pos = h & mask;
+		while (table[pos] != 0){
+			int n = table[pos] - 1;
+			if (setHashes[n] == h && equalWords(n, words))
+				return (short) (n - DICT_START);
+			pos = (pos + 1) & mask;
+		}
+		BitSet writerSet = new BitSet();
+		for (int k = 0; k < words.length; k++){
+			for (long w = words[k]; w != 0; w &= w - 1)
+				writerSet.set((k << 6) + Long.numberOfTrailingZeros(w));
+		}
+		return add(writerSet, h);
+	}
+
+	private static int hash(int h, int writer){
+		h = (h ^ writer) * 0x9E3779B1;
+		return h ^ (h >>> 15);
+	}
+
+	private short lookup(final BitSet writerSet){
+		int h = 1;
+		for (int i = writerSet.nextSetBit(0); i >= 0; i = writerSet.nextSetBit(i + 1))
+			h = hash(h, i);
+		int mask = table.length - 1;
+		int pos = h & mask;
+		while (table[pos] != 0){
+			int n = table[pos] - 1;
+			if (setHashes[n] == h && equalBits(n, writerSet))
+				return (short) (n - DICT_START);
+			pos = (pos + 1) & mask;
+		}
+		return add(writerSet, h);
+	}
+
+	private boolean equalWords(int n, long[] words){
+		int start = n * wordsPerSet;
+		for (int k = 0; k < wordsPerSet; k++){
+			if (setWords[start + k] != (k < words.length ? words[k] : 0))
+				return false;
+		}
+		for (int k = wordsPerSet; k < words.length; k++){
+			if (words[k] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private boolean equalBits(int n, BitSet writerSet){
+		int start = n * wordsPerSet;
+		int count = 0;
+		for (int i = writerSet.nextSetBit(0); i >= 0; i = writerSet.nextSetBit(i + 1)){
+			if (i >= wordsPerSet << 6 || (setWords[start + (i >> 6)] & (1L << i)) == 0)
+				return false;
+			count++;
+		}
+		return count == arrays.get(n).size();
+	}
+
+	/**
+	 * Add a new set to the dictionary.
+	 * @param writerSet the set, it is copied 
+	 * @param h the hash value of the set
+	 * @return the short value for the new set
+	 */
+	private short add(final BitSet writerSet, int h){
+		int n = sets.size();
+		short combiIndex = (short) (n - DICT_START);
+		if (combiIndex == Short.MAX_VALUE){
+			throw new RuntimeException("writerDictionary is full. Decrease --max-areas value");
+		}
+		if (writerSet.length() > wordsPerSet << 6)
+			throw new IllegalArgumentException("writer set contains unknown writer " + (writerSet.length() - 1));
+		BitSet bnew = new BitSet();
+		bnew.or(writerSet);
+		ShortArrayList a = new ShortArrayList();
+		if (setHashes.length == n){
+			setHashes = Arrays.copyOf(setHashes, n * 2);
+			setWords = Arrays.copyOf(setWords, n * 2 * wordsPerSet);
+		}
+		int start = n * wordsPerSet;
+		for (int i = writerSet.nextSetBit(0); i >= 0; i = writerSet.nextSetBit(i + 1)) {
+			a.add((short) i);
+			setWords[start + (i >> 6)] |= 1L << i;
+		}
+		setHashes[n] = h;
+		sets.add(bnew);
+		arrays.add(a);
+		if ((n + 1) * 2 > table.length){
+			table = new int[table.length * 2];
+			for (int i = 0; i < n; i++)
+				insert(i);
+		}
+		insert(n);
 		return combiIndex;
 	}
 
+	private void insert(int n){
+		int mask = table.length - 1;
+		int pos = setHashes[n] & mask;
+		while (table[pos] != 0)
+			pos = (pos + 1) & mask;
+		table[pos] = n + 1;
+	}
+
 	/**
 	 * find those areas that build rectangles when they are 
 	 * added together. A way or relation that lies exactly within 
@@ -45,6 +45,26 @@ public interface SplitterParams {
 	@Option(description = "Specify this if the input osm file has nodes, ways and relations intermingled.")
 	boolean isMixed();
 
+	@Option(description = "Read all input files at the same time and merge them by type and id. Elements that are contained " 
+			+ "in more than one file are processed once. Requires input files with sorted ids.")
+	boolean isMergeInput();
+
+	@Option(description = "Write the input data to a compact temporary file in the output directory while it is read the first time. "
+			+ "Later passes read this file instead of the input files.")
+	boolean isSpoolInput();
+
+	@Option(description = "Store the node and way maps of the split passes in direct memory outside of the Java heap. "
+			+ "The available direct memory is set with the JVM option -XX:MaxDirectMemorySize.")
+	boolean isOffHeapMaps();
+
+	@Option(description = "The name of a file with the tags that should be kept. Each line contains a key or key=value, "
+			+ "* matches any text. All other tags are dropped.")
+	String getKeepTags();
+
+	@Option(description = "The name of a file with the tags that should be dropped, same format as for --keep-tags. "
+			+ "Relations are dropped if their type tag is dropped.")
+	String getDropTags();
+
 	@Option(description = "Deprecated, now does nothing")
 	String getCache();
 
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for reading and skipping with the background reader
+ */
+public class TestBackgroundInputStream {
+	private static final int FILE_SIZE = 3 * 1000 * 1000 + 17;
+
+	private static File createFile() throws IOException {
+		File file = File.createTempFile("background", ".bin");
+		file.deleteOnExit();
+		byte[] data = new byte[FILE_SIZE];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31 + (i >> 16));
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+		return file;
+	}
+
+	private static void check(InputStream in) throws IOException {
+		long pos = 0;
+		byte[] b = new byte[1000];
+		int step = 0;
+		while (true) {
+			int c = in.read();
+			if (c < 0)
+				break;
+			Assert.assertEquals(c, (int) (pos * 31 + (pos >> 16)) & 0xff);
+			pos++;
+			int n = in.read(b, 0, b.length);
+			for (int i = 0; i < n; i++, pos++)
+				Assert.assertEquals(b[i], (byte) (pos * 31 + (pos >> 16)));
+			// skip small and large distances
+			long skip = (step++ % 3 == 0) ? 200000 : 3000;
+			pos += in.skip(skip);
+		}
+		Assert.assertEquals(pos, FILE_SIZE);
+	}
+
+	@Test
+	public void testChannel() throws IOException {
+		FileInputStream fileStream = new FileInputStream(createFile());
+		InputStream in = new BackgroundInputStream(fileStream.getChannel());
+		try {
+			check(in);
+		} finally {
+			in.close();
+			fileStream.close();
+		}
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		InputStream in = new BackgroundInputStream(new FileInputStream(createFile()));
+		try {
+			check(in);
+		} finally {
+			in.close();
+		}
+	}
+}
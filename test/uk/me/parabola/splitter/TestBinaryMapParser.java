@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the pbf parser
+ */
+public class TestBinaryMapParser {
+	private static final int NUM_NODES = 50000;
+
+	/**
+	 * Counts the nodes of each block.
+	 */
+	private static class BlockCounter extends AbstractMapProcessor {
+		final IntArrayList blockSizes = new IntArrayList();
+		long lastId;
+		boolean sorted = true;
+
+		@Override
+		public void processNodes(NodeBatch nodes) {
+			blockSizes.add(nodes.size());
+			super.processNodes(nodes);
+		}
+
+		@Override
+		public void processNode(Node n) {
+			if (n.getId() != lastId + 1)
+				sorted = false;
+			lastId = n.getId();
+		}
+
+		int count() {
+			int n = 0;
+			for (int i = 0; i < blockSizes.size(); i++)
+				n += blockSizes.getInt(i);
+			return n;
+		}
+	}
+
+	private static byte[] createFile() throws IOException {
+		File dir = File.createTempFile("pbftest", "");
+		dir.delete();
+		dir.mkdir();
+		BinaryMapWriter writer = new BinaryMapWriter(new Area(0, 0, 1000, 1000), dir, 1, 0);
+		writer.initForWrite();
+		for (int i = 1; i <= NUM_NODES; i++) {
+			// the writer keeps the nodes until a block is complete
+			Node node = new Node();
+			node.set(i, 100000 + i, 200000 + i);
+			writer.write(node);
+		}
+		writer.finishWrite();
+		File file = new File(dir, "00000001.osm.pbf");
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		int len = 0;
+		while (len < data.length)
+			len += in.read(data, len, data.length - len);
+		in.close();
+		file.delete();
+		dir.delete();
+		return data;
+	}
+
+	/**
+	 * A file that ends in the middle of the last blob must deliver all
+	 * complete blocks in file order before the error is reported.
+	 */
+	@Test
+	public void testTruncatedFile() throws IOException {
+		byte[] data = createFile();
+		BlockCounter full = new BlockCounter();
+		new BinaryMapParser(full, null, 1).parse(new ByteArrayInputStream(data));
+		Assert.assertEquals(full.count(), NUM_NODES);
+		Assert.assertTrue(full.sorted);
+		Assert.assertTrue(full.blockSizes.size() > 2, "test needs several blocks");
+		int expected = NUM_NODES - full.blockSizes.getInt(full.blockSizes.size() - 1);
+
+		byte[] truncated = Arrays.copyOf(data, data.length - 10);
+		for (int numThreads : new int[] {1, 4}) {
+			BlockCounter counter = new BlockCounter();
+			try {
+				new BinaryMapParser(counter, null, numThreads).parse(new ByteArrayInputStream(truncated));
+				Assert.fail("truncated file was not reported");
+			} catch (EOFException e) {
+				// expected
+			}
+			Assert.assertEquals(counter.count(), expected, "nodes with " + numThreads + " threads");
+			Assert.assertTrue(counter.sorted, "blocks not delivered in order");
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the compressed BitSet implementation
+ */
+public class TestCompressedLongBitSet {
+	private final long[] POS = {-70000, -1, 0, 1, 63, 64, 65, 65535, 65536, 4711, 12345654321L};
+
+	/**
+	 * Fill a set with a dense run, a medium dense cluster and sparse ids.
+	 */
+	private static void fill(CompressedLongBitSet set, TreeSet<Long> expected, long seed) {
+		Random rnd = new Random(seed);
+		for (long i = 1000000; i < 1200000; i++) {
+			set.set(i);
+			expected.add(i);
+		}
+		for (int i = 0; i < 20000; i++) {
+			long id = 2000000000L + rnd.nextInt(100000);
+			set.set(id);
+			expected.add(id);
+		}
+		for (int i = 0; i < 1000; i++) {
+			long id = (rnd.nextLong() >>> 20);
+			set.set(id);
+			expected.add(id);
+		}
+	}
+
+	private static void check(CompressedLongBitSet set, TreeSet<Long> expected) {
+		Assert.assertEquals(set.cardinality(), expected.size(), "cardinality() returns wrong value");
+		LongIterator iter = set.iterator();
+		for (long id : expected) {
+			Assert.assertTrue(iter.hasNext(), "iterator misses " + id);
+			Assert.assertEquals(iter.nextLong(), id);
+			Assert.assertTrue(set.get(id), "get(" + id + ")");
+		}
+		Assert.assertFalse(iter.hasNext());
+	}
+
+	@Test
+	public void testRandom() {
+		CompressedLongBitSet set = new CompressedLongBitSet();
+		for (long i : POS) {
+			set.set(i);
+			Assert.assertEquals(set.get(i), true, "get(" + i + ")");
+			Assert.assertEquals(set.get(i + 1), false, "get(" + (i + 1) + ")");
+			Assert.assertEquals(set.cardinality(), 1, "cardinality() returns wrong value");
+			set.clear(i);
+			Assert.assertEquals(set.get(i), false, "get(" + i + ")");
+			Assert.assertEquals(set.cardinality(), 0, "cardinality() returns wrong value");
+		}
+		Assert.assertTrue(set.isEmpty());
+	}
+
+	@Test
+	public void testIterationAndOptimize() {
+		CompressedLongBitSet set = new CompressedLongBitSet();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		fill(set, expected, 1);
+		check(set, expected);
+		long bytes = set.bytes();
+		set.optimize();
+		Assert.assertTrue(set.bytes() < bytes, "optimize() should reduce the size");
+		check(set, expected);
+
+		// range iteration
+		long from = 1100000, to = 2000050000L;
+		Iterator<Long> expIter = expected.subSet(from, to).iterator();
+		LongIterator iter = set.iterator(from, to);
+		while (expIter.hasNext())
+			Assert.assertEquals(iter.nextLong(), expIter.next().longValue());
+		Assert.assertFalse(iter.hasNext());
+
+		// modify the optimized containers
+		for (long i = 1000000; i < 1200000; i += 3) {
+			set.clear(i);
+			expected.remove(i);
+		}
+		set.set(999999);
+		expected.add(999999L);
+		check(set, expected);
+	}
+
+	@Test
+	public void testOrAnd() {
+		CompressedLongBitSet set1 = new CompressedLongBitSet();
+		CompressedLongBitSet set2 = new CompressedLongBitSet();
+		TreeSet<Long> expected1 = new TreeSet<Long>();
+		TreeSet<Long> expected2 = new TreeSet<Long>();
+		fill(set1, expected1, 1);
+		fill(set2, expected2, 2);
+		set2.optimize();
+
+		CompressedLongBitSet union = new CompressedLongBitSet();
+		union.or(set1);
+		union.or(set2);
+		TreeSet<Long> expUnion = new TreeSet<Long>(expected1);
+		expUnion.addAll(expected2);
+		check(union, expUnion);
+
+		set1.and(set2);
+		expected1.retainAll(expected2);
+		check(set1, expected1);
+		// the original sets must not be changed
+		check(set2, expected2);
+	}
+
+	@Test
+	public void testSerialization() throws IOException {
+		CompressedLongBitSet set = new CompressedLongBitSet();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		fill(set, expected, 3);
+		set.optimize();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		set.writeTo(out);
+		out.close();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		CompressedLongBitSet copy = CompressedLongBitSet.readFrom(in);
+		check(copy, expected);
+	}
+}
@@ -52,6 +52,29 @@ public class TestConvert {
 		parse("120.1234567890123456789012345678");
 	}
 
+	@Test
+	public void testParseFixed() {
+		Assert.assertEquals(Convert.parseFixed("0"), 0);
+		Assert.assertEquals(Convert.parseFixed("12."), 120000000);
+		Assert.assertEquals(Convert.parseFixed(".12"), 1200000);
+		Assert.assertEquals(Convert.parseFixed("47.4913756"), 474913756);
+		Assert.assertEquals(Convert.parseFixed("-8.4559150"), -84559150);
+		Assert.assertEquals(Convert.parseFixed("+8.455915"), 84559150);
+		Assert.assertEquals(Convert.parseFixed("-179.99999995"), -1800000000);
+		Assert.assertEquals(Convert.parseFixed("1.12345674999"), 11234567);
+		Assert.assertEquals(Convert.parseFixed("1e-3"), 10000);
+	}
+
+	@Test
+	public void testFixedToMapUnit() {
+		for (int fixed = -1800000000; fixed <= 1800000000; fixed += 12345679) {
+			Assert.assertEquals(Utils.fixedToMapUnit(fixed), Utils.toMapUnit(fixed / 10000000.0), "fixed value " + fixed);
+		}
+		Assert.assertEquals(Utils.fixedToMapUnit(0), 0);
+		Assert.assertEquals(Utils.fixedToMapUnit(1800000000), 1 << 23);
+		Assert.assertEquals(Utils.fixedToMapUnit(-1800000000), -(1 << 23));
+	}
+
 	private void parse(String dbl) {
 		Assert.assertEquals(Convert.parseDouble(dbl), Double.parseDouble(dbl), "Double parsing failed when parsing " + dbl);
 	}
@@ -14,6 +14,8 @@
 package uk.me.parabola.splitter;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -36,7 +38,109 @@ public class TestCustomCollections {
 		testMap(new SparseLong2ShortMapInline(), -1L << 35);
 	}
 
-	private void testMap(SparseLong2ShortMapInline map, long idOffset) {
+	@Test
+	public void testLongShortMapOffHeap() {
+		testMap(new SparseLong2ShortMapOffHeap(), 0L);
+		testMap(new SparseLong2ShortMapOffHeap(), -10000L);
+		testMap(new SparseLong2ShortMapOffHeap(), 1L << 35);
+		testMap(new SparseLong2ShortMapOffHeap(), -1L << 35);
+	}
+
+	@Test
+	public void testDenseLongShortMap() {
+		for (long idOffset : new long[] {0L, -10000L, 1L << 35, -1L << 35}) {
+			testMap(new DenseLong2ShortMap(idOffset + 1, idOffset + 1000, false), idOffset);
+			testMap(new DenseLong2ShortMap(idOffset + 1, idOffset + 1000, true), idOffset);
+		}
+		// keys outside of the expected range
+		DenseLong2ShortMap map = new DenseLong2ShortMap(1L << 20, 1L << 21, false);
+		map.put(5, (short) 1);
+		map.put(1L << 30, (short) 2);
+		Assert.assertEquals(map.get(5), 1);
+		Assert.assertEquals(map.get(1L << 30), 2);
+		Assert.assertEquals(map.get(6), Short.MIN_VALUE);
+		Assert.assertEquals(map.size(), 2);
+		// the pages contain the unassigned value
+		try {
+			map.defaultReturnValue((short) -1);
+			Assert.fail("unassigned value was changed after keys were stored");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertEquals(map.get(6), Short.MIN_VALUE);
+		map.clear();
+		map.defaultReturnValue((short) -1);
+		map.put((1L << 20) + 1, (short) 3);
+		Assert.assertEquals(map.get(1L << 20), -1);
+		Assert.assertEquals(map.get((1L << 20) + 1), 3);
+	}
+
+	@Test
+	public void testConcurrentLongShortMap() {
+		for (long idOffset : new long[] {0L, -10000L, 1L << 35, -1L << 35})
+			testMap(new ConcurrentLong2ShortMap(), idOffset);
+	}
+
+	/**
+	 * Several threads write to ranges of ids that share chunks.
+	 */
+	@Test
+	public void testConcurrentWriters() throws InterruptedException {
+		final ConcurrentLong2ShortMap map = new ConcurrentLong2ShortMap();
+		final int numThreads = 4;
+		final int numIds = 200000;
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int part = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (long id = 0; id < numIds; id++) {
+						if ((id / 50) % numThreads == part && id % 3 != 0)
+							map.put(id, (short) (part * 10 + (id / 1000) % 3));
+					}
+					map.flush();
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		long count = 0;
+		for (long id = 0; id < numIds; id++) {
+			int part = (int) (id / 50) % numThreads;
+			if (id % 3 != 0) {
+				Assert.assertEquals(map.get(id), (short) (part * 10 + (id / 1000) % 3));
+				count++;
+			} else
+				Assert.assertEquals(map.get(id), Short.MIN_VALUE);
+		}
+		Assert.assertEquals(map.size(), count);
+	}
+
+	/**
+	 * Compare the off-heap map with the heap map, with chunks
+	 * that are rewritten and values that are not compressible.
+	 */
+	@Test
+	public void testOffHeapLikeInline() {
+		SparseLong2ShortMapFunction expected = new SparseLong2ShortMapInline();
+		SparseLong2ShortMapFunction map = new SparseLong2ShortMapOffHeap();
+		Random random = new Random(42);
+		for (int pass = 0; pass < 3; pass++) {
+			long id = random.nextInt(1000);
+			for (int i = 0; i < 100000; i++) {
+				id += 1 + random.nextInt(pass == 1 ? 3 : 200);
+				short val = (short) (pass == 2 ? random.nextInt(1000) : random.nextInt(4));
+				Assert.assertEquals(map.put(id, val), expected.put(id, val));
+			}
+		}
+		Assert.assertEquals(map.size(), expected.size());
+		for (long id = 0; id < 30000000; id += 1 + random.nextInt(100))
+			Assert.assertEquals(map.get(id), expected.get(id));
+	}
+
+	private void testMap(SparseLong2ShortMapFunction map, long idOffset) {
 		map.defaultReturnValue((short) Short.MIN_VALUE);
 
 		for (short i = 1; i < 1000; i++) {
@@ -153,6 +257,56 @@ public class TestCustomCollections {
 		testMap(new Long2IntClosedMap("test", 10000, -1));
 	}
 
+	@Test
+	public void testLong2IntMapKeyPos() {
+		int num = 10000;
+		long[] keys = new long[num];
+		Long2IntClosedMapFunction map = new Long2IntClosedMap("test", num, -1);
+		for (int i = 0; i < num; i++) {
+			keys[i] = (long) i * 3 + (i / 100) * 1000;
+			map.add(keys[i], i);
+			// lookups while adding rebuild the search index from time to time
+			if (i % 37 == 0) {
+				for (long key = keys[i / 2] - 1; key <= keys[i] + 1; key += 7)
+					Assert.assertEquals(map.getKeyPos(key), Arrays.binarySearch(keys, 0, i + 1, key), "getKeyPos(" + key + ")");
+			}
+		}
+		for (long key = -5; key <= keys[num - 1] + 5; key++)
+			Assert.assertEquals(map.getKeyPos(key), Arrays.binarySearch(keys, key), "getKeyPos(" + key + ")");
+		int pos = map.getKeyPos(keys[4711]);
+		Assert.assertEquals(map.getAtPos(pos), 4711);
+		Assert.assertEquals(map.replaceAtPos(pos, 42), 4711);
+		Assert.assertEquals(map.getRandom(keys[4711]), 42);
+	}
+
+	@Test
+	public void testLong2IntMapSeq() throws IOException {
+		int num = 10000;
+		Long2IntClosedMapFunction map = new Long2IntClosedMap("test", num, -1);
+		for (int i = 0; i < num; i++) {
+			// every 7th pair is unassigned and not written to the temp file
+			map.add(1000000000L + (long) i * i, (i % 7 == 0) ? -1 : i % 13);
+		}
+		map.switchToSeqAccess(null);
+		for (int pass = 0; pass < 2; pass++) {
+			// start in the middle of the file
+			for (int i = num / 2; i < num; i += 3) {
+				long key = 1000000000L + (long) i * i;
+				Assert.assertEquals(map.getSeq(key - 1), -1);
+				Assert.assertEquals(map.getSeq(key), (i % 7 == 0) ? -1 : i % 13);
+			}
+			Assert.assertEquals(map.getSeq(Long.MAX_VALUE - 1), -1);
+			map.close();
+		}
+		Assert.assertTrue(map.containsKeyInRange(1000000000L + 1, 1000000000L + 1));
+		Assert.assertFalse(map.containsKeyInRange(1000000000L + 2, 1000000000L + 3));
+		// 49 * 49 is unassigned
+		Assert.assertFalse(map.containsKeyInRange(1000000000L + 49 * 49, 1000000000L + 49 * 49));
+		Assert.assertTrue(map.containsKeyInRange(1000000000L + 9000L * 9000, Long.MAX_VALUE - 1));
+		Assert.assertFalse(map.containsKeyInRange(1000000000L + (long) num * num, Long.MAX_VALUE - 1));
+		map.finish();
+	}
+
 	private void testMap(Long2IntClosedMapFunction map) {
 		int val;
 		for (int i = 1; i < 1000; i++) {
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the merge of several input files
+ */
+public class TestInputMerger {
+
+	/**
+	 * Collects the ids of the nodes.
+	 */
+	private static class NodeCollector extends AbstractMapProcessor {
+		final LongArrayList ids = new LongArrayList();
+
+		@Override
+		public void processNode(Node n) {
+			ids.add(n.getId());
+		}
+	}
+
+	/**
+	 * Pass the nodes with the given ids to the source, the reader fails
+	 * after the last one if failure is not null.
+	 */
+	private static Thread startReader(final InputMerger merger, final long[] ids, final RuntimeException failure) {
+		final MapProcessor source = merger.addSource();
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (long id : ids) {
+						Node node = new Node();
+						node.set(id, 100000, 200000);
+						source.processNode(node);
+					}
+					if (failure != null)
+						throw failure;
+				} catch (Throwable t) {
+					merger.fail(source, t);
+					return;
+				}
+				merger.finish(source);
+			}
+		});
+		reader.setDaemon(true);
+		return reader;
+	}
+
+	@Test
+	public void testFailingSource() throws InterruptedException {
+		NodeCollector collector = new NodeCollector();
+		InputMerger merger = new InputMerger(collector);
+		RuntimeException failure = new RuntimeException("corrupt block");
+		ArrayList<Thread> readers = new ArrayList<Thread>();
+		readers.add(startReader(merger, new long[] {1, 3, 5, 7}, null));
+		readers.add(startReader(merger, new long[] {2, 3, 4}, failure));
+		for (Thread reader : readers)
+			reader.start();
+		merger.merge();
+		for (Thread reader : readers)
+			reader.join();
+		// the elements that were read before the error are merged
+		Assert.assertEquals(Arrays.toString(collector.ids.toLongArray()), "[1, 2, 3, 4, 5, 7]");
+		try {
+			merger.throwReaderError();
+			Assert.fail("error of the reader was not reported");
+		} catch (RuntimeException e) {
+			Assert.assertSame(e, failure);
+		}
+	}
+
+	@Test
+	public void testNoError() throws InterruptedException {
+		NodeCollector collector = new NodeCollector();
+		InputMerger merger = new InputMerger(collector);
+		Thread reader = startReader(merger, new long[] {1, 2}, null);
+		reader.start();
+		merger.merge();
+		reader.join();
+		Assert.assertEquals(collector.ids.size(), 2);
+		merger.throwReaderError();
+	}
+}
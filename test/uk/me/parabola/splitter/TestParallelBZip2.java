@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the parallel bzip2 decoder
+ */
+public class TestParallelBZip2 {
+	// "hello " and "world" compressed as two separate bzip2 streams
+	private static final int[] TWO_STREAMS = {
+			0x42, 0x5a, 0x68, 0x39, 0x31, 0x41, 0x59, 0x26, 0x53, 0x59, 0x76, 0x69, 0xe0,
+			0xd4, 0x00, 0x00, 0x01, 0x11, 0x00, 0x40, 0x00, 0x02, 0x44, 0xa0, 0x00, 0x30,
+			0xcd, 0x00, 0xc3, 0x46, 0x29, 0x97, 0x17, 0x72, 0x45, 0x38, 0x50, 0x90, 0x76,
+			0x69, 0xe0, 0xd4, 0x42, 0x5a, 0x68, 0x39, 0x31, 0x41, 0x59, 0x26, 0x53, 0x59,
+			0x59, 0xce, 0x7b, 0xcb, 0x00, 0x00, 0x02, 0x01, 0x80, 0x04, 0x04, 0x90, 0x80,
+			0x20, 0x00, 0x30, 0xcd, 0x00, 0xc1, 0xa4, 0xc0, 0x71, 0x77, 0x24, 0x53, 0x85,
+			0x09, 0x05, 0x9c, 0xe7, 0xbc, 0xb0
+	};
+
+	@Test
+	public void testMultiStream() throws IOException {
+		byte[] data = new byte[TWO_STREAMS.length];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) TWO_STREAMS[i];
+		for (int threads = 1; threads <= 3; threads++) {
+			InputStream is = new ParallelBZip2InputStream(new ByteArrayInputStream(data), threads);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int b;
+			while ((b = is.read()) >= 0)
+				out.write(b);
+			is.close();
+			Assert.assertEquals(out.toString("UTF-8"), "hello world", "threads=" + threads);
+		}
+	}
+}
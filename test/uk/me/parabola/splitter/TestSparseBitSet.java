@@ -13,6 +13,11 @@
 
 package uk.me.parabola.splitter;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.util.HashSet;
+
 import org.testng.Assert;
 import org.testng.annotations.Test; 
 
@@ -53,4 +58,29 @@ public class TestSparseBitSet{
          }
          
   }
-}
\ No newline at end of file
+
+	@Test
+	public void testSparseBitSetBulkAndIterator() {
+		SparseBitSet sparseSet = new SparseBitSet();
+		LongArrayList ids = new LongArrayList();
+		for (long i : POS)
+			ids.add(i);
+		ids.add(64);
+		ids.add(-5);
+		sparseSet.setAll(ids);
+		Assert.assertEquals(sparseSet.cardinality(), POS.length + 1, "cardinality() returns wrong value");
+		HashSet<Long> found = new HashSet<Long>();
+		LongIterator iter = sparseSet.iterator();
+		while (iter.hasNext())
+			Assert.assertTrue(found.add(iter.nextLong()), "key returned twice");
+		Assert.assertEquals(found.size(), POS.length + 1);
+		for (long i : POS)
+			Assert.assertTrue(found.contains(i), "iterator misses " + i);
+		Assert.assertTrue(found.contains(-5L), "iterator misses -5");
+		sparseSet.clear(64);
+		Assert.assertEquals(sparseSet.get(64), false, "get(64)");
+		sparseSet.clear();
+		Assert.assertEquals(sparseSet.cardinality(), 0, "cardinality() returns wrong value");
+		Assert.assertFalse(sparseSet.iterator().hasNext());
+	}
+}
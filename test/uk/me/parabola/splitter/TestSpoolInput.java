@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the spool file that is used for data from stdin
+ */
+public class TestSpoolInput {
+	private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n"
+			+ "<osm version='0.6'>\n"
+			+ "<node id='1' lat='48.1' lon='9.1'/>\n"
+			+ "<node id='2' lat='48.2' lon='9.2'/>\n"
+			+ "<way id='10'><nd ref='1'/><nd ref='2'/><tag k='highway' v='track'/></way>\n"
+			+ "</osm>\n";
+
+	/**
+	 * A run on stdin needs more than one pass, so it must stop when
+	 * the spool file cannot be written instead of reading stdin again.
+	 */
+	@Test
+	public void testStdInWithoutSpool() throws IOException {
+		final File dir = File.createTempFile("spooltest", "");
+		dir.delete();
+		dir.mkdir();
+		InputStream oldIn = System.in;
+		try {
+			// a spool file that cannot be created and one that cannot be written
+			final File[] spoolFiles = {null, dir};
+			for (final File spoolFile : spoolFiles) {
+				System.setIn(new ByteArrayInputStream(OSM.getBytes("UTF-8")));
+				Main main = new Main() {
+					@Override
+					File createSpoolFile() throws IOException {
+						if (spoolFile == null)
+							throw new IOException("no space left");
+						return spoolFile;
+					}
+				};
+				try {
+					main.start(new String[] {"--output-dir=" + dir, "--status-freq=0", "--max-threads=1"});
+					Assert.fail("missing spool file was not reported");
+				} catch (IllegalArgumentException e) {
+					// expected
+				}
+			}
+		} finally {
+			System.setIn(oldIn);
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files)
+					file.delete();
+			}
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the tag dictionary and the tag storage of elements
+ */
+public class TestTagDictionary {
+	@Test
+	public void testIds() {
+		int id = TagDictionary.getKeyId("highway");
+		Assert.assertEquals(TagDictionary.getKeyId(new String("highway")), id);
+		Assert.assertEquals(TagDictionary.getValueId("highway"), id);
+		Assert.assertEquals(TagDictionary.get(id), "highway");
+		Assert.assertEquals(TagDictionary.getUtf8Length(TagDictionary.getValueId("Stra\u00dfe")), 7);
+		String longValue = "a value that is much too long to be kept in the dictionary";
+		Assert.assertEquals(TagDictionary.getValueId(longValue), TagDictionary.NO_ID);
+	}
+
+	@Test
+	public void testElementTags() {
+		Way w = new Way();
+		w.addTag("highway", "residential");
+		w.addTag("created_by", "JOSM");
+		String name = "a name that is much too long to be kept in the dictionary";
+		w.addTag("name", name);
+		Assert.assertEquals(w.getTagCount(), 2);
+		Assert.assertEquals(w.getTagKey(0), "highway");
+		Assert.assertEquals(w.getTagValue(0), "residential");
+		Assert.assertEquals(w.getTagKey(1), "name");
+		Assert.assertEquals(w.getTagValue(1), name);
+		Assert.assertEquals(w.getTagValueId(1), TagDictionary.NO_ID);
+
+		WayBatch batch = new WayBatch();
+		batch.add(1);
+		batch.addTags(w);
+		Way copy = batch.createWay(0);
+		Assert.assertEquals(copy.getTagCount(), 2);
+		Assert.assertEquals(copy.getTagKeyId(0), w.getTagKeyId(0));
+		Assert.assertEquals(copy.getTagValue(1), name);
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the keep and drop rules of the tag filter
+ */
+public class TestTagFilter {
+	private static String writeRules(String rules) throws IOException {
+		File file = File.createTempFile("tagfilter", ".txt");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write(rules);
+		writer.close();
+		return file.getPath();
+	}
+
+	@Test
+	public void testRules() throws IOException {
+		TagFilter filter = new TagFilter();
+		Assert.assertTrue(filter.readRules(writeRules("# comment\nhighway\nname*\ntype=multipolygon\ntype=boundary\n"), true));
+		Assert.assertTrue(filter.readRules(writeRules("highway=proposed\n"), false));
+
+		Assert.assertEquals(filter.getKeyAction("name:de"), TagFilter.KEEP);
+		Assert.assertEquals(filter.getKeyAction("note"), TagFilter.DROP);
+		Assert.assertEquals(filter.getKeyAction("created_by"), TagFilter.DROP);
+		Assert.assertEquals(filter.getKeyAction("highway"), TagFilter.CHECK);
+		Assert.assertEquals(filter.getKeyAction("type"), TagFilter.CHECK);
+
+		Assert.assertFalse(filter.isDropped("highway", "primary"));
+		Assert.assertTrue(filter.isDropped("highway", "proposed"));
+		Assert.assertFalse(filter.isDropped("type", "boundary"));
+		Assert.assertTrue(filter.isDropped("type", "route"));
+	}
+}
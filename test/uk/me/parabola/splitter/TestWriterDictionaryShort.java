@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.splitter;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the dictionary of writer combinations
+ */
+public class TestWriterDictionaryShort {
+
+	/**
+	 * @return a dictionary for a row of numWriters areas
+	 */
+	private static WriterDictionaryShort createDictionary(int numWriters) {
+		OSMWriter[] writers = new OSMWriter[numWriters];
+		for (int i = 0; i < numWriters; i++)
+			writers[i] = new OSMXMLWriter(new Area(0, i * 100, 100, (i + 1) * 100), null, 63240001 + i, 0);
+		return new WriterDictionaryShort(writers);
+	}
+
+	@Test
+	public void testTranslate() {
+		for (int numWriters : new int[] {10, 100, 3000}) {
+			WriterDictionaryShort dict = createDictionary(numWriters);
+			Random random = new Random(numWriters);
+			for (int i = 0; i < 2000; i++) {
+				BitSet writerSet = new BitSet();
+				int num = 1 + random.nextInt(4);
+				for (int j = 0; j < num; j++)
+					writerSet.set(random.nextInt(numWriters));
+				short idx = dict.translate(writerSet);
+				Assert.assertEquals(dict.getBitSet(idx), writerSet);
+				Assert.assertEquals(dict.getList(idx).size(), writerSet.cardinality());
+				Assert.assertEquals(dict.translate(writerSet), idx);
+				long[] words = new long[(numWriters + 63) / 64 + 1];
+				for (int w = writerSet.nextSetBit(0); w >= 0; w = writerSet.nextSetBit(w + 1))
+					words[w >> 6] |= 1L << w;
+				Assert.assertEquals(dict.translate(words), idx);
+				if (writerSet.cardinality() == 1)
+					Assert.assertTrue(dict.isSingleWriterIdx(idx));
+			}
+		}
+	}
+
+	@Test
+	public void testNewWords() {
+		WriterDictionaryShort dict = createDictionary(200);
+		int size = dict.size();
+		long[] words = {0x5L, 0, 1L << 7};
+		short idx = dict.translate(words);
+		Assert.assertEquals(dict.size(), size + 1);
+		BitSet expected = new BitSet();
+		expected.set(0);
+		expected.set(2);
+		expected.set(135);
+		Assert.assertEquals(dict.getBitSet(idx), expected);
+		Assert.assertEquals(dict.translate(expected), idx);
+		Assert.assertFalse(dict.mayCross(dict.translate(new long[] {0x1L})));
+	}
+}